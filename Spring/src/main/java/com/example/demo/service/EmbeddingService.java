@@ -14,7 +14,7 @@ public class EmbeddingService {
 
     public static final String COPILOT_CHAT_EMBEDDINGS_URL = "https://api.individual.githubcopilot.com/embeddings";
 
-    private final OkHttpClient client = new OkHttpClient.Builder()
+    private final OkHttpClient client = Utils.getOkHttpClient().newBuilder()
             .connectTimeout(java.time.Duration.ofSeconds(120))
             .readTimeout(java.time.Duration.ofSeconds(120))
             .build();
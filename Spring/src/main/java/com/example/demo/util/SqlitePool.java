@@ -0,0 +1,119 @@
+package com.example.demo.util;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Long-lived SQLite connection pool.
+ * <p>
+ * The database is opened in WAL mode with {@code synchronous=NORMAL}. Reads borrow one of a fixed set of
+ * connections, writes go through the single writer connection under a lock (SQLite allows one writer).
+ * Each connection caches its PreparedStatements, so the request path never opens a connection or
+ * recompiles SQL.
+ */
+public final class SqlitePool {
+
+    /**
+     * Work to run on a borrowed connection.
+     */
+    @FunctionalInterface
+    public interface SqlFunction<T> {
+        T apply(PooledConnection connection) throws SQLException;
+    }
+
+    /**
+     * A connection with its PreparedStatement cache.
+     */
+    public static final class PooledConnection {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Returns the cached statement for {@code sql}, with parameters cleared.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null || statement.isClosed()) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        public Connection connection() {
+            return connection;
+        }
+    }
+
+    private final BlockingQueue<PooledConnection> readers;
+    private final PooledConnection writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    public SqlitePool(String url, int readerCount) {
+        try {
+            // Open the writer first so journal_mode is set; WAL is persisted in the database file
+            this.writer = open(url);
+            this.readers = new ArrayBlockingQueue<>(readerCount);
+            for (int i = 0; i < readerCount; i++) {
+                readers.add(open(url));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Unable to open SQLite database " + url + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static PooledConnection open(String url) throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL;");
+            stmt.execute("PRAGMA synchronous = NORMAL;");
+            stmt.execute("PRAGMA foreign_keys = ON;");
+            stmt.execute("PRAGMA busy_timeout = 5000;");
+        }
+        return new PooledConnection(conn);
+    }
+
+    /**
+     * Runs a query on a borrowed reader connection.
+     */
+    public <T> T read(SqlFunction<T> fn) throws SQLException {
+        PooledConnection conn;
+        try {
+            conn = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        try {
+            return fn.apply(conn);
+        } finally {
+            readers.add(conn);
+        }
+    }
+
+    /**
+     * Runs an update on the single writer connection.
+     */
+    public <T> T write(SqlFunction<T> fn) throws SQLException {
+        writeLock.lock();
+        try {
+            return fn.apply(writer);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -3,12 +3,17 @@ package com.example.demo.util;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class TokenManager {
-    private static final String DB_URL = "jdbc:sqlite:tokens.db";
+    private static final String DB_URL = "jdbc:sqlite:" + System.getProperty("copilot.db.path", "tokens.db");
+    private static final int POOL_SIZE = Integer.getInteger("copilot.db.poolSize", 4);
 
-    public TokenManager() {
+    // Shared by every instance; the schema is created once when the class loads
+    private static final SqlitePool POOL = initPool();
+
+    private static SqlitePool initPool() {
+        SqlitePool pool = new SqlitePool(DB_URL, POOL_SIZE);
         String createTableSQL = "CREATE TABLE IF NOT EXISTS tokens (" +
                 "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
                 "username TEXT, " +
@@ -16,33 +21,31 @@ public class TokenManager {
                 "temp_token TEXT, " +
                 "temp_token_expiry INTEGER" +
                 ");";
-        try (Connection conn = this.connect();
-             Statement stmt = conn.createStatement()) {
-            stmt.execute(createTableSQL);
+        try {
+            pool.write(conn -> {
+                try (Statement stmt = conn.connection().createStatement()) {
+                    return stmt.execute(createTableSQL);
+                }
+            });
         } catch (SQLException e) {
             System.out.println("Error creating table: " + e.getMessage());
         }
+        return pool;
     }
 
-    private Connection connect() {
-        Connection conn = null;
-        try {
-            conn = DriverManager.getConnection(DB_URL);
-            Statement stmt = conn.createStatement();
-            stmt.execute("PRAGMA foreign_keys = ON;");
-        } catch (SQLException e) {
-            System.out.println("Connection error: " + e.getMessage());
-        }
-        return conn;
+    public TokenManager() {
     }
 
     public boolean isLongTermTokenExists(String longTermToken) {
         String query = "SELECT id FROM tokens WHERE long_term_token = ?";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
-            pstmt.setString(1, longTermToken);
-            ResultSet rs = pstmt.executeQuery();
-            return rs.next();
+        try {
+            return POOL.read(conn -> {
+                PreparedStatement pstmt = conn.prepare(query);
+                pstmt.setString(1, longTermToken);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next();
+                }
+            });
         } catch (SQLException e) {
             System.out.println("Error checking long_term_token: " + e.getMessage());
             return false;
@@ -51,13 +54,15 @@ public class TokenManager {
 
     public boolean addLongTermToken(String longTermToken, String tempToken, long tempTokenExpiry, String username) {
         String insertSQL = "INSERT INTO tokens(username, long_term_token, temp_token, temp_token_expiry) VALUES(?, ?, ?, ?)";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(insertSQL)) {
-            pstmt.setString(1, username);
-            pstmt.setString(2, longTermToken);
-            pstmt.setString(3, tempToken);
-            pstmt.setLong(4, tempTokenExpiry);
-            pstmt.executeUpdate();
+        try {
+            POOL.write(conn -> {
+                PreparedStatement pstmt = conn.prepare(insertSQL);
+                pstmt.setString(1, username);
+                pstmt.setString(2, longTermToken);
+                pstmt.setString(3, tempToken);
+                pstmt.setLong(4, tempTokenExpiry);
+                return pstmt.executeUpdate();
+            });
             System.out.println("Long-term token added successfully.");
             return true;
         } catch (SQLException e) {
@@ -68,17 +73,19 @@ public class TokenManager {
 
     public String getRandomLongTermToken() {
         String query = "SELECT long_term_token FROM tokens";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
-            ResultSet rs = pstmt.executeQuery();
-            List<String> tokens = new ArrayList<>();
-            while (rs.next()) {
-                tokens.add(rs.getString("long_term_token"));
-            }
+        try {
+            List<String> tokens = POOL.read(conn -> {
+                PreparedStatement pstmt = conn.prepare(query);
+                List<String> result = new ArrayList<>();
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        result.add(rs.getString("long_term_token"));
+                    }
+                }
+                return result;
+            });
             if (!tokens.isEmpty()) {
-                Random random = new Random();
-                int index = random.nextInt(tokens.size());
-                return tokens.get(index);
+                return tokens.get(ThreadLocalRandom.current().nextInt(tokens.size()));
             } else {
                 System.out.println("No tokens found in the database.");
                 return null;
@@ -90,43 +97,23 @@ public class TokenManager {
     }
 
     public String getTempToken(String longTermToken) {
-        String query = "SELECT temp_token FROM tokens WHERE long_term_token = ?";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
-            pstmt.setString(1, longTermToken);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getString("temp_token");
-            }
-        } catch (SQLException e) {
-            System.out.println("Error retrieving temp_token: " + e.getMessage());
-        }
-        return null;
+        return queryString("SELECT temp_token FROM tokens WHERE long_term_token = ?", longTermToken, "temp_token");
     }
 
     public String getUsername(String longTermToken) {
-        String query = "SELECT username FROM tokens WHERE long_term_token = ?";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
-            pstmt.setString(1, longTermToken);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getString("username");
-            }
-        } catch (SQLException e) {
-            System.out.println("Error retrieving username: " + e.getMessage());
-        }
-        return null;
+        return queryString("SELECT username FROM tokens WHERE long_term_token = ?", longTermToken, "username");
     }
 
     public boolean updateTempToken(String longTermToken, String newTempToken, long newExpiry) {
         String updateSQL = "UPDATE tokens SET temp_token = ?, temp_token_expiry = ? WHERE long_term_token = ?";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(updateSQL)) {
-            pstmt.setString(1, newTempToken);
-            pstmt.setLong(2, newExpiry);
-            pstmt.setString(3, longTermToken);
-            int affectedRows = pstmt.executeUpdate();
+        try {
+            int affectedRows = POOL.write(conn -> {
+                PreparedStatement pstmt = conn.prepare(updateSQL);
+                pstmt.setString(1, newTempToken);
+                pstmt.setLong(2, newExpiry);
+                pstmt.setString(3, longTermToken);
+                return pstmt.executeUpdate();
+            });
             if (affectedRows > 0) {
                 System.out.println("Temp token updated successfully.");
                 return true;
@@ -136,4 +123,19 @@ public class TokenManager {
         }
         return false;
     }
+
+    private String queryString(String query, String longTermToken, String column) {
+        try {
+            return POOL.read(conn -> {
+                PreparedStatement pstmt = conn.prepare(query);
+                pstmt.setString(1, longTermToken);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? rs.getString(column) : null;
+                }
+            });
+        } catch (SQLException e) {
+            System.out.println("Error retrieving " + column + ": " + e.getMessage());
+            return null;
+        }
+    }
 }
@@ -0,0 +1,123 @@
+package com.example.demo.util;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide upstream OkHttpClient shared by every service.
+ * <p>
+ * One ConnectionPool / Dispatcher / SSLContext so that TLS sessions are reused and requests to Copilot
+ * are multiplexed over HTTP/2. Tunable through system properties:
+ * {@code copilot.http.maxIdleConnections}, {@code copilot.http.keepAliveSeconds},
+ * {@code copilot.http.maxRequests}, {@code copilot.http.maxRequestsPerHost}, {@code copilot.http.http2}.
+ */
+public final class UpstreamClient {
+    private static final int MAX_IDLE_CONNECTIONS = Integer.getInteger("copilot.http.maxIdleConnections", 32);
+    private static final long KEEP_ALIVE_SECONDS = Long.getLong("copilot.http.keepAliveSeconds", 300L);
+    private static final int MAX_REQUESTS = Integer.getInteger("copilot.http.maxRequests", 256);
+    private static final int MAX_REQUESTS_PER_HOST = Integer.getInteger("copilot.http.maxRequestsPerHost", 64);
+    private static final boolean PREFER_HTTP2 = Boolean.parseBoolean(System.getProperty("copilot.http.http2", "true"));
+
+    private static final ConnectionPool CONNECTION_POOL =
+            new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+    private static final Dispatcher DISPATCHER = createDispatcher();
+    private static final OkHttpClient CLIENT = createClient();
+
+    private UpstreamClient() {
+    }
+
+    /**
+     * The shared client. Use {@code get().newBuilder()} for per-service timeouts; the pool stays shared.
+     */
+    public static OkHttpClient get() {
+        return CLIENT;
+    }
+
+    /**
+     * Snapshot of the connection pool and dispatcher state.
+     */
+    public static PoolStats stats() {
+        return new PoolStats(
+                CONNECTION_POOL.connectionCount(),
+                CONNECTION_POOL.idleConnectionCount(),
+                DISPATCHER.runningCallsCount(),
+                DISPATCHER.queuedCallsCount());
+    }
+
+    private static Dispatcher createDispatcher() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+        return dispatcher;
+    }
+
+    private static OkHttpClient createClient() {
+        try {
+            final X509TrustManager trustAllCertificates = new X509TrustManager() {
+                @Override
+                public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException { }
+                @Override
+                public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException { }
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            };
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[]{trustAllCertificates}, null);
+            List<Protocol> protocols = PREFER_HTTP2
+                    ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                    : Collections.singletonList(Protocol.HTTP_1_1);
+            return new OkHttpClient.Builder()
+                    .sslSocketFactory(sslContext.getSocketFactory(), trustAllCertificates)
+                    .hostnameVerifier((hostname, session) -> true)
+                    .connectionPool(CONNECTION_POOL)
+                    .dispatcher(DISPATCHER)
+                    .protocols(protocols)
+                    .connectTimeout(30, TimeUnit.SECONDS)
+                    .readTimeout(30, TimeUnit.SECONDS)
+                    .writeTimeout(30, TimeUnit.SECONDS)
+                    .build();
+        } catch (Exception e) {
+            throw new RuntimeException("OkHttpClient initialization failed", e);
+        }
+    }
+
+    public static final class PoolStats {
+        public final int connections;
+        public final int idleConnections;
+        public final int runningCalls;
+        public final int queuedCalls;
+
+        PoolStats(int connections, int idleConnections, int runningCalls, int queuedCalls) {
+            this.connections = connections;
+            this.idleConnections = idleConnections;
+            this.runningCalls = runningCalls;
+            this.queuedCalls = queuedCalls;
+        }
+
+        public int activeConnections() {
+            return connections - idleConnections;
+        }
+
+        @Override
+        public String toString() {
+            return "connections=" + connections
+                    + ", idle=" + idleConnections
+                    + ", running=" + runningCalls
+                    + ", queued=" + queuedCalls;
+        }
+    }
+}
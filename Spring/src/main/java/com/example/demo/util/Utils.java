@@ -6,17 +6,10 @@ import com.sun.jna.platform.win32.WinReg;
 import okhttp3.*;
 import org.json.JSONObject;
 
-import javax.net.ssl.*;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.nio.charset.StandardCharsets;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
@@ -24,42 +17,14 @@ import java.util.concurrent.locks.ReentrantLock;
 public class Utils {
     private static final ReentrantLock tokenLock = new ReentrantLock();
     private static final TokenManager tokenManager = new TokenManager();
-    public static OkHttpClient client = createOkHttpClient();
+    // 长期 token -> 解析后的临时 token
+    private static final ConcurrentHashMap<String, CopilotToken> TEMP_TOKENS = new ConcurrentHashMap<>();
+    public static OkHttpClient client = UpstreamClient.get();
 
     public static OkHttpClient getOkHttpClient(){
         return client;
     }
 
-    private static OkHttpClient createOkHttpClient(){
-        OkHttpClient okHttpClient1 = null;
-        try {
-            final X509TrustManager trustAllCertificates = new X509TrustManager() {
-                @Override
-                public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException { }
-                @Override
-                public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException { }
-                @Override
-                public X509Certificate[] getAcceptedIssuers() {
-                    return new X509Certificate[0];
-                }
-            };
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, new TrustManager[]{trustAllCertificates}, null);
-//            Proxy proxy = getSystemProxy();
-            okHttpClient1 = new OkHttpClient.Builder()
-//                    .proxy(proxy)
-                    .sslSocketFactory(sslContext.getSocketFactory(), trustAllCertificates)
-                    .hostnameVerifier((hostname, session) -> true)
-                    .connectTimeout(30, TimeUnit.SECONDS)
-                    .readTimeout(30, TimeUnit.SECONDS)
-                    .writeTimeout(30, TimeUnit.SECONDS)
-                    .build();
-        } catch(Exception e){
-            throw new RuntimeException("OkHttpClient initialization failed", e);
-        }
-        return okHttpClient1;
-    }
-
 //    public static Proxy getSystemProxy(){
 //        String os = System.getProperty("os.name").toLowerCase();
 //        Proxy proxy = Proxy.NO_PROXY;
@@ -197,57 +162,48 @@ public class Utils {
     }
 
     public static String getValidTempToken(String longTermToken) throws IOException {
+        // 命中时只比较 exp，不访问数据库
+        CopilotToken cached = TEMP_TOKENS.get(longTermToken);
+        if (cached != null && !cached.isExpired()) {
+            return cached.raw();
+        }
         tokenLock.lock();
         try{
             String tempToken = tokenManager.getTempToken(longTermToken);
             System.out.println("Login in as:" + tokenManager.getUsername(longTermToken));
-            if(isTokenExpired(tempToken)){
+            CopilotToken token = tempToken != null ? CopilotToken.parse(tempToken) : null;
+            if(token == null || token.isExpired()){
                 System.out.println("Token has expired");
                 String newTempToken = GetToken(longTermToken);
                 if(newTempToken == null || newTempToken.isEmpty()){
                     throw new IOException("Unable to generate a new temporary token.");
                 }
-                int newExpiry = extractTimestamp(newTempToken);
-                boolean updated = tokenManager.updateTempToken(longTermToken, newTempToken, newExpiry);
+                token = CopilotToken.parse(newTempToken);
+                boolean updated = tokenManager.updateTempToken(longTermToken, newTempToken, token.exp());
                 if(!updated){
                     throw new IOException("Unable to update temporary token.");
                 }
-                return newTempToken;
-            } else {
-                return tempToken;
             }
+            TEMP_TOKENS.put(longTermToken, token);
+            return token.raw();
         } finally {
             tokenLock.unlock();
         }
     }
 
+    /**
+     * 获取过的临时 token（已解析），可用于按 sku / proxy-ep 等字段做路由
+     */
+    public static CopilotToken getTokenDescriptor(String longTermToken) {
+        return TEMP_TOKENS.get(longTermToken);
+    }
+
     public static int extractTimestamp(String input){
-        String[] splitArray = input.split(";");
-        for(String part : splitArray){
-            if(part.startsWith("exp=")){
-                return Integer.parseInt(part.substring(4));
-            }
-        }
-        return 0;
+        return (int) CopilotToken.parse(input).exp();
     }
 
     public static boolean isTokenExpired(String token){
-        int exp = extractTimestamp(token);
-        int currentEpoch = (int) Instant.now().getEpochSecond();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
-        LocalDateTime expirationTime = LocalDateTime.ofInstant(Instant.ofEpochSecond(exp), ZoneId.systemDefault());
-        String formattedExpiration = expirationTime.format(formatter);
-        LocalDateTime currentTime = LocalDateTime.ofInstant(Instant.ofEpochSecond(currentEpoch), ZoneId.systemDefault());
-        String formattedCurrent = currentTime.format(formatter);
-        int remainingSeconds = exp - currentEpoch;
-        int minutes = remainingSeconds / 60;
-        int seconds = remainingSeconds % 60;
-        System.out.println("\n   Current epoch: " + currentEpoch);
-        System.out.println("Expiration epoch: " + exp);
-        System.out.println("  Current  time: " + formattedCurrent);
-        System.out.println("Expiration time: " + formattedExpiration);
-        System.out.println("Remaining: " + minutes + " minutes " + seconds + " seconds");
-        return exp < currentEpoch;
+        return CopilotToken.parse(token).isExpired();
     }
 
     // 为 Spring 重载的 getToken（不使用 HttpExchange）
@@ -302,11 +258,12 @@ public class Utils {
                 if (newTempToken == null || newTempToken.isEmpty()) {
                     return null;
                 }
-                int tempTokenExpiry = extractTimestamp(newTempToken);
-                boolean added = tokenManager.addLongTermToken(longTermToken, newTempToken, tempTokenExpiry, login.get());
+                CopilotToken parsed = CopilotToken.parse(newTempToken);
+                boolean added = tokenManager.addLongTermToken(longTermToken, newTempToken, parsed.exp(), login.get());
                 if (!added) {
                     return null;
                 }
+                TEMP_TOKENS.put(longTermToken, parsed);
             }
         }
         String tempToken;
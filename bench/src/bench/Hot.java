@@ -0,0 +1,125 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Handles to the proxy's hot-path methods.
+ * <p>
+ * The proxy lives in the default package, which a named package cannot import, and JMH refuses
+ * benchmarks in the default package. The methods are therefore reached through {@code static final}
+ * method handles, which the JIT inlines like direct calls.
+ * <p>
+ * Loading this class points {@code copilot.db.path} at a temporary SQLite file, before anything
+ * touches {@code TokenManager}.
+ */
+final class Hot {
+    static final String DB_PATH;
+
+    static {
+        // Same setting as Main's static initializer
+        System.setProperty("sqlite.purejava", "true");
+        String path = System.getProperty("copilot.db.path");
+        if (path == null) {
+            try {
+                File db = File.createTempFile("copilot-bench-", ".db");
+                db.deleteOnExit();
+                new File(db.getPath() + "-wal").deleteOnExit();
+                new File(db.getPath() + "-shm").deleteOnExit();
+                path = db.getAbsolutePath();
+            } catch (IOException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+            System.setProperty("copilot.db.path", path);
+        }
+        DB_PATH = path;
+    }
+
+    // CompletionHandler
+    static final MethodHandle BUILD_SSE_WRAPPER = method("CompletionHandler", "buildSSEWrapper", 4);
+    static final MethodHandle REWRITE_DELTA = method("CompletionHandler", "rewriteDelta", 6);
+    static final MethodHandle APPEND_DELTA_CONTENT = method("CompletionHandler", "appendDeltaContent", 2);
+    static final MethodHandle COUNT_PROMPT_TOKENS = method("CompletionHandler", "countPromptTokens", 1);
+
+    // StreamingRequest / StreamingTokenCounter / TokenizerRegistry
+    static final MethodHandle PARSE_REQUEST = method("StreamingRequest", "parse", 1);
+    static final MethodHandle PROMPT_TEXTS = method("StreamingRequest", "promptTexts", 1);
+    static final MethodHandle NEW_COUNTER = constructor("StreamingTokenCounter", 1);
+    static final MethodHandle COUNTER_APPEND = method("StreamingTokenCounter", "append", 2);
+    static final MethodHandle FOR_MODEL = method("TokenizerRegistry", "forModel", 1);
+
+    // HeadersInfo / utils
+    static final MethodHandle GET_COPILOT_HEADERS = method("HeadersInfo", "getCopilotHeaders", 4);
+    static final MethodHandle RANDOM_X_REQUEST_ID = method("HeadersInfo", "RandomXRequestID", 1);
+    static final MethodHandle IS_TOKEN_EXPIRED = method("utils", "isTokenExpired", 1);
+    static final MethodHandle EXTRACT_TIMESTAMP = method("utils", "extractTimestamp", 1);
+
+    // TokenManager
+    static final MethodHandle NEW_TOKEN_MANAGER = constructor("TokenManager", 0);
+    static final MethodHandle ADD_LONG_TERM_TOKEN = method("TokenManager", "addLongTermToken", 5);
+    static final MethodHandle IS_LONG_TERM_TOKEN_EXISTS = method("TokenManager", "isLongTermTokenExists", 2);
+    static final MethodHandle GET_TEMP_TOKEN = method("TokenManager", "getTempToken", 2);
+    static final MethodHandle GET_MACHINE_ID = method("TokenManager", "getMachineId", 2);
+
+    private Hot() {
+    }
+
+    /**
+     * Finds a method by name and parameter count; instance methods take the receiver as the first argument.
+     * Types from the default package are erased to Object.
+     */
+    private static MethodHandle method(String className, String name, int arity) {
+        try {
+            Class<?> type = Class.forName(className);
+            for (Method m : type.getDeclaredMethods()) {
+                boolean isStatic = java.lang.reflect.Modifier.isStatic(m.getModifiers());
+                if (m.getName().equals(name) && m.getParameterCount() + (isStatic ? 0 : 1) == arity) {
+                    m.setAccessible(true);
+                    MethodHandle handle = MethodHandles.lookup().unreflect(m);
+                    return handle.asType(erase(handle.type()));
+                }
+            }
+            throw new NoSuchMethodException(className + "." + name + "/" + arity);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(String className, int arity) {
+        try {
+            Class<?> type = Class.forName(className);
+            for (Constructor<?> c : type.getDeclaredConstructors()) {
+                if (c.getParameterCount() == arity) {
+                    c.setAccessible(true);
+                    MethodHandle handle = MethodHandles.lookup().unreflectConstructor(c);
+                    return handle.asType(erase(handle.type()));
+                }
+            }
+            throw new NoSuchMethodException(className + ".<init>/" + arity);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodType erase(MethodType type) {
+        MethodType erased = type;
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isDefaultPackage(type.parameterType(i))) {
+                erased = erased.changeParameterType(i, Object.class);
+            }
+        }
+        if (isDefaultPackage(type.returnType())) {
+            erased = erased.changeReturnType(Object.class);
+        }
+        return erased;
+    }
+
+    private static boolean isDefaultPackage(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && type.getPackageName().isEmpty();
+    }
+}
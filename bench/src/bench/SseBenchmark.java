@@ -0,0 +1,74 @@
+package bench;
+
+import com.knuddels.jtokkit.api.Encoding;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-token cost of relaying a streamed completion: one upstream SSE line in, one client frame out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SseBenchmark {
+    // A typical upstream chunk: one short content delta plus the metadata Copilot sends with it
+    static final String DATA = "{\"choices\":[{\"index\":0,\"content_filter_offsets\":{\"check_offset\":3165,"
+            + "\"start_offset\":3165,\"end_offset\":3206},\"content_filter_results\":{\"hate\":{\"filtered\":false,"
+            + "\"severity\":\"safe\"},\"self_harm\":{\"filtered\":false,\"severity\":\"safe\"},\"sexual\":"
+            + "{\"filtered\":false,\"severity\":\"safe\"},\"violence\":{\"filtered\":false,\"severity\":\"safe\"}},"
+            + "\"delta\":{\"content\":\" the quick\\\\nbrown \\\"fox\\\"\"}}],\"created\":1735000000,"
+            + "\"id\":\"chatcmpl-AbCdEfGhIjKlMnOpQrStUvWxYz\",\"model\":\"gpt-4o-2024-11-20\","
+            + "\"system_fingerprint\":\"fp_b705f0c291\"}";
+    static final String LINE = "data: " + DATA + "\n";
+
+    private final OutputStream sink = OutputStream.nullOutputStream();
+    private final StringBuilder deltaBuf = new StringBuilder();
+    private Encoding encoding;
+    private Object counter;
+
+    @Setup
+    public void setup() throws Throwable {
+        encoding = (Encoding) Hot.FOR_MODEL.invokeExact("gpt-4o");
+        counter = (Object) Hot.NEW_COUNTER.invokeExact(encoding);
+    }
+
+    @Benchmark
+    public JSONObject buildSseWrapper() throws Throwable {
+        return (JSONObject) Hot.BUILD_SSE_WRAPPER.invokeExact(" the quick", "gpt-4o", "chatcmpl-1234", 1735000000L);
+    }
+
+    /** Rewrite mode without usage: parse the line, re-wrap the content, write the frame */
+    @Benchmark
+    public void rewriteLine() throws Throwable {
+        Hot.REWRITE_DELTA.invokeExact(DATA, "gpt-4o", "chatcmpl-1234", 1735000000L, (Object) null, sink);
+    }
+
+    /** Rewrite mode with include_usage: also feeds the incremental token counter */
+    @Benchmark
+    public void rewriteLineCounted() throws Throwable {
+        Hot.REWRITE_DELTA.invokeExact(DATA, "gpt-4o", "chatcmpl-1234", 1735000000L, counter, sink);
+    }
+
+    /** Passthrough mode with include_usage: only the content tap runs on each line */
+    @Benchmark
+    public void passthroughTap() throws Throwable {
+        deltaBuf.setLength(0);
+        Hot.APPEND_DELTA_CONTENT.invokeExact(LINE, deltaBuf);
+        Hot.COUNTER_APPEND.invokeExact(counter, (CharSequence) deltaBuf);
+    }
+}
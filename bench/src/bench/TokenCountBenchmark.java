@@ -0,0 +1,83 @@
+package bench;
+
+import com.knuddels.jtokkit.api.Encoding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request cost of reading a chat request and counting its prompt tokens.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenCountBenchmark {
+    @Param({"gpt-4o", "gpt-4"})
+    public String model;
+
+    /** Number of conversation turns in the request */
+    @Param({"4", "32"})
+    public int turns;
+
+    private byte[] body;
+    private Object request;
+    private Encoding encoding;
+
+    @Setup
+    public void setup() throws Throwable {
+        StringBuilder sb = new StringBuilder("{\"model\":\"").append(model).append("\",\"stream\":true,")
+                .append("\"stream_options\":{\"include_usage\":true},\"messages\":[")
+                .append("{\"role\":\"system\",\"content\":\"You are a helpful coding assistant. Answer concisely, ")
+                .append("prefer code over prose, and explain trade-offs when asked.\"}");
+        for (int i = 0; i < turns; i++) {
+            sb.append(",{\"role\":\"user\",\"content\":\"Turn ").append(i)
+                    .append(": how do I read a file line by line in Java without loading it all into memory?\"}")
+                    .append(",{\"role\":\"assistant\",\"content\":\"Use Files.lines(path) in a try-with-resources block, ")
+                    .append("or a BufferedReader with readLine() in a loop.\\n\\n```java\\ntry (var lines = Files.lines(p)) ")
+                    .append("{\\n    lines.forEach(System.out::println);\\n}\\n```\"}");
+        }
+        sb.append("]}");
+        body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        request = (Object) Hot.PARSE_REQUEST.invokeExact((InputStream) new ByteArrayInputStream(body));
+        encoding = (Encoding) Hot.FOR_MODEL.invokeExact(model);
+    }
+
+    @Benchmark
+    public Object parseRequest() throws Throwable {
+        return (Object) Hot.PARSE_REQUEST.invokeExact((InputStream) new ByteArrayInputStream(body));
+    }
+
+    /** What the handler does; repeated turns hit the token-count memo */
+    @Benchmark
+    public int countPromptTokens() throws Throwable {
+        return (int) Hot.COUNT_PROMPT_TOKENS.invokeExact(request);
+    }
+
+    /** Same texts tokenized from scratch, without the memo */
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public int countPromptTokensUncached() throws Throwable {
+        int total = 0;
+        for (String text : (List<String>) Hot.PROMPT_TEXTS.invokeExact(request)) {
+            total += encoding.countTokens(text);
+        }
+        return total;
+    }
+}
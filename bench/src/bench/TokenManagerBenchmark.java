@@ -0,0 +1,69 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TokenManager lookups against a temporary SQLite file (see {@link Hot}), with several threads reading at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class TokenManagerBenchmark {
+    /** Rows in the tokens table */
+    @Param({"1000"})
+    public int accounts;
+
+    private Object tokenManager;
+    private String[] tokens;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        tokenManager = (Object) Hot.NEW_TOKEN_MANAGER.invokeExact();
+        tokens = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            tokens[i] = String.format("ghu_benchAccount%024d", i);
+            if (!(boolean) Hot.IS_LONG_TERM_TOKEN_EXISTS.invokeExact(tokenManager, tokens[i])) {
+                boolean added = (boolean) Hot.ADD_LONG_TERM_TOKEN.invokeExact(tokenManager, tokens[i],
+                        HeadersBenchmark.TEMP_TOKEN, 2000000000L, "bench" + i);
+            }
+        }
+    }
+
+    private String randomToken() {
+        return tokens[ThreadLocalRandom.current().nextInt(tokens.length)];
+    }
+
+    @Benchmark
+    public boolean isLongTermTokenExists() throws Throwable {
+        return (boolean) Hot.IS_LONG_TERM_TOKEN_EXISTS.invokeExact(tokenManager, randomToken());
+    }
+
+    @Benchmark
+    public String getTempToken() throws Throwable {
+        return (String) Hot.GET_TEMP_TOKEN.invokeExact(tokenManager, randomToken());
+    }
+
+    @Benchmark
+    public String getMachineId() throws Throwable {
+        return (String) Hot.GET_MACHINE_ID.invokeExact(tokenManager, randomToken());
+    }
+}
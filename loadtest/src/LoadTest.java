@@ -0,0 +1,437 @@
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 端到端压测：在进程内启动 {@link MockCopilot} 和代理（{@link Main#startServer}），
+ * 用 N 个并发客户端发送流式 / 非流式 chat completions（以及可选的 embeddings）请求。
+ * <p>
+ * 报告首 token 延迟（TTFT）、token 间隔、非流式延迟的 p50 / p90 / p99，吞吐，以及堆和 GC 统计。
+ * 第 i 个请求的内容只由 {@code --seed} 和 i 决定，与线程调度无关，相同参数的两次运行发出完全相同的请求。
+ * 全程只访问 127.0.0.1，不需要网络和真实账号。
+ */
+public final class LoadTest {
+    private static final String[] WORDS = {
+            "please", "explain", "why", "this", "java", "method", "throws", "an", "exception", "when",
+            "the", "list", "is", "empty", "and", "suggest", "a", "fix", "with", "tests",
+            "为什么", "这个", "函数", "会", "超时", "?", "for", "(int", "i", "=", "0;", "i++)", "{", "}"
+    };
+
+    private int clients = 16;
+    private int requests = 2000;
+    private int warmup = 200;
+    private int accounts = 4;
+    private double streamRatio = 0.8;
+    private double embeddingRatio = 0.0;
+    private int tokens = 64;
+    private double tokenRate = 100;
+    private long latencyMillis = 50;
+    private long seed = 42;
+    private boolean verbose = false;
+
+    private String baseUrl;
+    private HttpClient http;
+    private PrintStream out;
+
+    /**
+     * 一个客户端线程记录的样本（纳秒）
+     */
+    private static final class Samples {
+        long[] values = new long[256];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        static long[] merge(List<Samples> all) {
+            int total = 0;
+            for (Samples s : all) total += s.size;
+            long[] merged = new long[total];
+            int i = 0;
+            for (Samples s : all) {
+                System.arraycopy(s.values, 0, merged, i, s.size);
+                i += s.size;
+            }
+            Arrays.sort(merged);
+            return merged;
+        }
+    }
+
+    /**
+     * 一个客户端线程的统计
+     */
+    private static final class Recorder {
+        final Samples ttft = new Samples();
+        final Samples interToken = new Samples();
+        final Samples streamTotal = new Samples();
+        final Samples normalTotal = new Samples();
+        final Samples embedding = new Samples();
+        long ok;
+        long failed;
+        long contentChunks;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // 必须在任何代理类加载之前设置
+        System.setProperty("sqlite.purejava", "true");
+        System.setProperty("copilot.http.systemProxy", "false");
+        if (System.getProperty("copilot.db.path") == null) {
+            File db = File.createTempFile("copilot-loadtest-", ".db");
+            db.deleteOnExit();
+            new File(db.getPath() + "-wal").deleteOnExit();
+            new File(db.getPath() + "-shm").deleteOnExit();
+            System.setProperty("copilot.db.path", db.getAbsolutePath());
+        }
+
+        LoadTest test = new LoadTest();
+        test.parseArgs(args);
+        test.run();
+        System.exit(0);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-h":
+                case "--help":
+                    printHelp();
+                    System.exit(0);
+                    break;
+                case "--clients": clients = Integer.parseInt(args[++i]); break;
+                case "--requests": requests = Integer.parseInt(args[++i]); break;
+                case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+                case "--accounts": accounts = Integer.parseInt(args[++i]); break;
+                case "--stream-ratio": streamRatio = Double.parseDouble(args[++i]); break;
+                case "--embedding-ratio": embeddingRatio = Double.parseDouble(args[++i]); break;
+                case "--tokens": tokens = Integer.parseInt(args[++i]); break;
+                case "--token-rate": tokenRate = Double.parseDouble(args[++i]); break;
+                case "--latency": latencyMillis = Long.parseLong(args[++i]); break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--verbose": verbose = true; break;
+                // 代理本身的选项，与 Main 相同
+                case "--virtual-threads": Main.virtualThreads = true; break;
+                case "--sse-passthrough": Main.ssePassthrough = true; break;
+                case "--batch-embeddings": EmbeddingBatcher.setEnabled(true); break;
+                case "--pool-strategy": Main.poolStrategy = AccountPool.Strategy.parse(args[++i]); break;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    printHelp();
+                    System.exit(1);
+            }
+        }
+    }
+
+    private static void printHelp() {
+        System.out.println("Usage: java -cp <jar-with-dependencies> LoadTest [options]");
+        System.out.println("Options:");
+        System.out.println("  --clients <n>              Concurrent clients (default: 16)");
+        System.out.println("  --requests <n>             Measured requests (default: 2000)");
+        System.out.println("  --warmup <n>               Unmeasured requests before the run (default: 200)");
+        System.out.println("  --accounts <n>             Mock accounts registered in the pool (default: 4)");
+        System.out.println("  --stream-ratio <0..1>      Share of chat requests that stream (default: 0.8)");
+        System.out.println("  --embedding-ratio <0..1>   Share of requests sent to /v1/embeddings (default: 0)");
+        System.out.println("  --tokens <n>               Tokens per mock completion (default: 64)");
+        System.out.println("  --token-rate <n>           Mock tokens per second per stream, 0 = unlimited (default: 100)");
+        System.out.println("  --latency <ms>             Mock delay before the first token (default: 50)");
+        System.out.println("  --seed <n>                 Seed for requests and mock replies (default: 42)");
+        System.out.println("  --verbose                  Keep the proxy's log output");
+        System.out.println("  --virtual-threads, --sse-passthrough, --pool-strategy <name>, --batch-embeddings");
+        System.out.println("                             Passed to the proxy");
+    }
+
+    private void run() throws Exception {
+        out = System.out;
+        if (!verbose) {
+            // 代理按请求打印日志；压测时丢弃，只保留报告
+            PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+            System.setOut(discard);
+            System.setErr(discard);
+        }
+
+        MockCopilot mock = new MockCopilot(seed, latencyMillis, tokens, tokenRate);
+        mock.start();
+        String upstream = mock.baseUrl();
+        utils.setCopilotTokenUrl(upstream + "/copilot_internal/v2/token");
+        utils.setGithubUserUrl(upstream + "/user");
+        ModelService.setModelsUrl(upstream + "/models");
+        CompletionHandler.setCopilotChatCompletionsUrl(upstream + "/chat/completions");
+        EmbeddingHandler.setCopilotChatEmbeddingsUrl(upstream + "/embeddings");
+
+        HttpServer server = Main.startServer(0);
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        ExecutorService clientExecutor = Executors.newFixedThreadPool(clients, r -> {
+            Thread t = new Thread(r, "loadtest-client");
+            t.setDaemon(true);
+            return t;
+        });
+        http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(clientExecutor)
+                .build();
+
+        out.printf(Locale.ROOT, "proxy %s, mock upstream %s%n", baseUrl, upstream);
+        out.printf(Locale.ROOT, "clients=%d requests=%d warmup=%d accounts=%d stream-ratio=%.2f embedding-ratio=%.2f"
+                        + " tokens=%d token-rate=%.1f/s latency=%dms seed=%d virtual-threads=%s sse-passthrough=%s pool-strategy=%s%n",
+                clients, requests, warmup, accounts, streamRatio, embeddingRatio, tokens, tokenRate, latencyMillis, seed,
+                Main.virtualThreads, Main.ssePassthrough, Main.poolStrategy);
+
+        // 通过代理自己的注册流程登记账号（token / user / models 都由 mock 提供）
+        for (int i = 0; i < accounts; i++) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/v1/models"))
+                    .header("Authorization", "Bearer loadtest-account-" + i)
+                    .GET()
+                    .build();
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                out.println("Failed to register account " + i + ": " + response.statusCode() + " " + response.body());
+                return;
+            }
+        }
+
+        if (warmup > 0) {
+            phase(0, warmup);
+        }
+        System.gc();
+
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        long[] gcCount = new long[collectors.size()];
+        long[] gcTime = new long[collectors.size()];
+        for (int i = 0; i < collectors.size(); i++) {
+            gcCount[i] = collectors.get(i).getCollectionCount();
+            gcTime[i] = collectors.get(i).getCollectionTime();
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long mockChats = mock.chatRequests.sum();
+        long mockEmbeddings = mock.embeddingRequests.sum();
+
+        long start = System.nanoTime();
+        List<Recorder> recorders = phase(warmup, requests);
+        long elapsed = System.nanoTime() - start;
+
+        report(recorders, elapsed);
+
+        out.println("GC:");
+        for (int i = 0; i < collectors.size(); i++) {
+            GarbageCollectorMXBean gc = collectors.get(i);
+            out.printf(Locale.ROOT, "  %-24s %6d collections %8d ms%n", gc.getName(),
+                    gc.getCollectionCount() - gcCount[i], gc.getCollectionTime() - gcTime[i]);
+        }
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peakHeap += pool.getPeakUsage().getUsed();
+        }
+        out.printf(Locale.ROOT, "Heap: used %s, peak %s, committed %s, max %s%n",
+                mib(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()), mib(peakHeap),
+                mib(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted()),
+                mib(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax()));
+        out.println("Threads: " + ManagementFactory.getThreadMXBean().getThreadCount()
+                + " live, " + ManagementFactory.getThreadMXBean().getPeakThreadCount() + " peak");
+        out.println("Upstream: " + (mock.chatRequests.sum() - mockChats) + " chat calls and "
+                + (mock.embeddingRequests.sum() - mockEmbeddings) + " embedding calls during the run, "
+                + mock.tokenRequests.sum() + " token fetches; " + UpstreamClient.stats());
+
+        server.stop(0);
+        mock.stop();
+    }
+
+    /**
+     * 用全部客户端发送编号为 [from, from + count) 的请求
+     */
+    private List<Recorder> phase(int from, int count) throws InterruptedException {
+        AtomicInteger next = new AtomicInteger(from);
+        int end = from + count;
+        List<Recorder> recorders = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Recorder recorder = new Recorder();
+            recorders.add(recorder);
+            Thread t = new Thread(() -> {
+                for (int i = next.getAndIncrement(); i < end; i = next.getAndIncrement()) {
+                    try {
+                        send(i, recorder);
+                    } catch (Exception e) {
+                        recorder.failed++;
+                        if (verbose) e.printStackTrace(out);
+                    }
+                }
+            }, "loadtest-" + c);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return recorders;
+    }
+
+    /**
+     * 发送第 index 个请求；请求内容只由种子和 index 决定
+     */
+    private void send(int index, Recorder recorder) throws IOException, InterruptedException {
+        // SplittableRandom 会打散相邻的种子；java.util.Random 对相邻种子的第一个值高度相关
+        SplittableRandom random = new SplittableRandom(seed * 1_000_003L + index);
+        double kind = random.nextDouble();
+        String prompt = prompt(random);
+
+        if (kind < embeddingRatio) {
+            String body = new JSONObject().put("model", "text-embedding-3-small").put("input", prompt).toString();
+            long t0 = System.nanoTime();
+            HttpResponse<String> response = http.send(post("/v1/embeddings", body), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() == 200) {
+                recorder.embedding.add(System.nanoTime() - t0);
+                recorder.ok++;
+            } else {
+                recorder.failed++;
+            }
+            return;
+        }
+
+        boolean stream = random.nextDouble() < streamRatio;
+        JSONObject body = new JSONObject()
+                .put("model", random.nextBoolean() ? "gpt-4o" : "claude-3.5-sonnet")
+                .put("stream", stream)
+                .put("messages", new JSONArray()
+                        .put(new JSONObject().put("role", "system").put("content", "You are a helpful assistant."))
+                        .put(new JSONObject().put("role", "user").put("content", prompt)));
+        if (stream && random.nextBoolean()) {
+            body.put("stream_options", new JSONObject().put("include_usage", true));
+        }
+
+        long t0 = System.nanoTime();
+        if (!stream) {
+            HttpResponse<String> response = http.send(post("/v1/chat/completions", body.toString()), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() == 200) {
+                recorder.normalTotal.add(System.nanoTime() - t0);
+                recorder.ok++;
+            } else {
+                recorder.failed++;
+            }
+            return;
+        }
+
+        HttpResponse<InputStream> response = http.send(post("/v1/chat/completions", body.toString()), HttpResponse.BodyHandlers.ofInputStream());
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+            if (response.statusCode() != 200) {
+                recorder.failed++;
+                return;
+            }
+            long last = 0;
+            boolean done = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("data: ")) continue;
+                if (line.startsWith("data: [DONE]")) {
+                    done = true;
+                    break;
+                }
+                if (!line.contains("\"content\"")) continue;
+                long now = System.nanoTime();
+                if (last == 0) {
+                    recorder.ttft.add(now - t0);
+                } else {
+                    recorder.interToken.add(now - last);
+                }
+                last = now;
+                recorder.contentChunks++;
+            }
+            if (done && last != 0) {
+                recorder.streamTotal.add(System.nanoTime() - t0);
+                recorder.ok++;
+            } else {
+                recorder.failed++;
+            }
+        }
+    }
+
+    private HttpRequest post(String path, String body) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(Duration.ofSeconds(120))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    private static String prompt(SplittableRandom random) {
+        int words = 16 + random.nextInt(400);
+        StringBuilder sb = new StringBuilder(words * 6);
+        for (int i = 0; i < words; i++) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return sb.toString();
+    }
+
+    private void report(List<Recorder> recorders, long elapsedNanos) {
+        List<Samples> ttft = new ArrayList<>(), interToken = new ArrayList<>(), streamTotal = new ArrayList<>(),
+                normalTotal = new ArrayList<>(), embedding = new ArrayList<>();
+        long ok = 0, failed = 0, chunks = 0;
+        for (Recorder r : recorders) {
+            ttft.add(r.ttft);
+            interToken.add(r.interToken);
+            streamTotal.add(r.streamTotal);
+            normalTotal.add(r.normalTotal);
+            embedding.add(r.embedding);
+            ok += r.ok;
+            failed += r.failed;
+            chunks += r.contentChunks;
+        }
+        double seconds = elapsedNanos / 1e9;
+        out.printf(Locale.ROOT, "Completed %d requests (%d failed) in %.2f s: %.1f req/s, %.0f streamed tokens/s%n",
+                ok, failed, seconds, ok / seconds, chunks / seconds);
+        out.printf(Locale.ROOT, "%-22s %8s %10s %10s %10s %10s%n", "", "count", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        row("time to first token", Samples.merge(ttft));
+        row("inter-token latency", Samples.merge(interToken));
+        row("stream total", Samples.merge(streamTotal));
+        row("non-stream total", Samples.merge(normalTotal));
+        row("embeddings", Samples.merge(embedding));
+    }
+
+    private void row(String name, long[] sorted) {
+        if (sorted.length == 0) return;
+        out.printf(Locale.ROOT, "%-22s %8d %10.2f %10.2f %10.2f %10.2f%n", name, sorted.length,
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted[sorted.length - 1] / 1e6);
+    }
+
+    /**
+     * nearest-rank 百分位，单位毫秒
+     */
+    private static double percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    private static String mib(long bytes) {
+        return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024.0 * 1024.0));
+    }
+}
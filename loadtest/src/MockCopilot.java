@@ -0,0 +1,217 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 进程内的 Copilot 上游 mock，只监听 127.0.0.1，不访问网络。
+ * <p>
+ * 提供 {@code /copilot_internal/v2/token}、{@code /user}、{@code /models}、{@code /chat/completions}
+ * 和 {@code /embeddings}。token 响应中的 {@code endpoints.api} 指向 mock 自己，所以代理的账号端点和
+ * 故障转移地址也都落在这里。
+ * <p>
+ * 回复内容只由种子和请求体决定：相同的参数和请求得到完全相同的输出。
+ */
+public final class MockCopilot {
+    private static final String[] WORDS = {
+            "the", "proxy", "streams", "tokens", "from", "upstream", "to", "every", "client", "while",
+            "counting", "usage", "and", "retrying", "failed", "calls", "on", "another", "account", "quickly",
+            "函数", "返回", "结果", "请求", "并发", "缓存", "0", "1", "42", "{", "}", "(", ")", ";"
+    };
+    private static final Pattern STREAM = Pattern.compile("\"stream\"\\s*:\\s*true");
+    private static final Pattern MODEL = Pattern.compile("\"model\"\\s*:\\s*\"([^\"]*)\"");
+    private static final int EMBEDDING_DIMENSIONS = 64;
+
+    private final long seed;
+    private final long latencyMillis;
+    private final int tokensPerResponse;
+    private final long tokenIntervalNanos;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicInteger tokenSerial = new AtomicInteger();
+
+    final LongAdder tokenRequests = new LongAdder();
+    final LongAdder chatRequests = new LongAdder();
+    final LongAdder embeddingRequests = new LongAdder();
+    final LongAdder modelRequests = new LongAdder();
+
+    /**
+     * @param latencyMillis     首个 token 之前的延迟
+     * @param tokensPerResponse 每个回复的 token（SSE 帧）数
+     * @param tokensPerSecond   每个流的输出速率，0 表示不限速
+     */
+    public MockCopilot(long seed, long latencyMillis, int tokensPerResponse, double tokensPerSecond) throws IOException {
+        this.seed = seed;
+        this.latencyMillis = latencyMillis;
+        this.tokensPerResponse = tokensPerResponse;
+        this.tokenIntervalNanos = tokensPerSecond > 0 ? (long) (1_000_000_000L / tokensPerSecond) : 0;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "mock-copilot-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        server.createContext("/copilot_internal/v2/token", this::token);
+        server.createContext("/user", this::user);
+        server.createContext("/models", this::models);
+        server.createContext("/chat/completions", this::chatCompletions);
+        server.createContext("/embeddings", this::embeddings);
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        tokenRequests.increment();
+        long exp = Instant.now().getEpochSecond() + 1800;
+        JSONObject body = new JSONObject()
+                .put("token", "tid=mock-" + tokenSerial.incrementAndGet() + ";exp=" + exp + ";sku=loadtest;chat=1")
+                .put("expires_at", exp)
+                .put("refresh_in", 1500)
+                .put("endpoints", new JSONObject().put("api", baseUrl()));
+        sendJson(exchange, 200, body.toString());
+    }
+
+    private void user(HttpExchange exchange) throws IOException {
+        sendJson(exchange, 200, new JSONObject().put("login", "loadtest").toString());
+    }
+
+    private void models(HttpExchange exchange) throws IOException {
+        modelRequests.increment();
+        sendJson(exchange, 200, new JSONObject().put("data", new JSONArray(ModelService.models)).toString());
+    }
+
+    private void chatCompletions(HttpExchange exchange) throws IOException {
+        chatRequests.increment();
+        String request = readBody(exchange);
+        boolean stream = STREAM.matcher(request).find();
+        Matcher m = MODEL.matcher(request);
+        String model = m.find() ? m.group(1) : "gpt-4o";
+        Random random = new Random(seed ^ request.hashCode());
+        long created = Instant.now().getEpochSecond();
+        String id = "chatcmpl-mock-" + Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+
+        sleepMillis(latencyMillis);
+        if (!stream) {
+            StringBuilder content = new StringBuilder();
+            for (int i = 0; i < tokensPerResponse; i++) {
+                content.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                sleepNanos(tokenIntervalNanos);
+            }
+            JSONObject body = new JSONObject()
+                    .put("id", id)
+                    .put("object", "chat.completion")
+                    .put("created", created)
+                    .put("model", model)
+                    .put("choices", new JSONArray().put(new JSONObject()
+                            .put("index", 0)
+                            .put("finish_reason", "stop")
+                            .put("message", new JSONObject().put("role", "assistant").put("content", content.toString()))))
+                    .put("usage", new JSONObject()
+                            .put("prompt_tokens", request.length() / 4)
+                            .put("completion_tokens", tokensPerResponse)
+                            .put("total_tokens", request.length() / 4 + tokensPerResponse));
+            sendJson(exchange, 200, body.toString());
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream os = exchange.getResponseBody()) {
+            String prefix = "data: {\"choices\":[{\"index\":0,\"delta\":{\"content\":\"";
+            String suffix = "\"}}],\"created\":" + created + ",\"id\":\"" + id + "\",\"model\":\"" + model + "\"}\n\n";
+            for (int i = 0; i < tokensPerResponse; i++) {
+                if (i > 0) sleepNanos(tokenIntervalNanos);
+                String word = WORDS[random.nextInt(WORDS.length)] + " ";
+                os.write((prefix + word + suffix).getBytes(StandardCharsets.UTF_8));
+                os.flush();
+            }
+            os.write(("data: {\"choices\":[{\"index\":0,\"finish_reason\":\"stop\",\"delta\":{}}],\"created\":"
+                    + created + ",\"id\":\"" + id + "\"}\n\ndata: [DONE]\n\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // 代理提前断开
+        }
+    }
+
+    private void embeddings(HttpExchange exchange) throws IOException {
+        embeddingRequests.increment();
+        JSONObject request = new JSONObject(readBody(exchange));
+        Object input = request.opt("input");
+        JSONArray inputs = input instanceof JSONArray ? (JSONArray) input : new JSONArray().put(String.valueOf(input));
+        // 每个输入的向量只由种子和输入本身决定，合并发送和单独发送得到相同的结果
+        JSONArray data = new JSONArray();
+        int promptTokens = 0;
+        for (int n = 0; n < inputs.length(); n++) {
+            String text = String.valueOf(inputs.opt(n));
+            Random random = new Random(seed ^ text.hashCode());
+            JSONArray vector = new JSONArray();
+            for (int i = 0; i < EMBEDDING_DIMENSIONS; i++) {
+                vector.put(Math.round((random.nextDouble() * 2 - 1) * 1e6) / 1e6);
+            }
+            data.put(new JSONObject().put("object", "embedding").put("index", n).put("embedding", vector));
+            promptTokens += Math.max(1, text.length() / 4);
+        }
+        JSONObject body = new JSONObject()
+                .put("object", "list")
+                .put("data", data)
+                .put("model", request.optString("model", "text-embedding-3-small"))
+                .put("usage", new JSONObject().put("prompt_tokens", promptTokens).put("total_tokens", promptTokens));
+        sleepMillis(latencyMillis);
+        sendJson(exchange, 200, body.toString());
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream is = exchange.getRequestBody()) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static void sleepMillis(long millis) {
+        sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private static void sleepNanos(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        for (long left = nanos; left > 0; left = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+}
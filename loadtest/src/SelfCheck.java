@@ -0,0 +1,542 @@
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 行为自检：逐项检查代理中容易写错的逻辑，任一检查失败时以非零状态退出。
+ * <p>
+ * 仓库没有单元测试框架，这里和 {@link LoadTest} 一样是一个可以直接运行的 main（{@code java ... SelfCheck [--verbose]}）。
+ * 覆盖 {@link CopilotToken} 解析、Retry-After 解析、限流的 GCRA 和准入控制的 AIMD 计算、流式 token 计数的切分、
+ * embeddings 合并后的重新编号、{@link SseRelay} 的合并刷新和断开处理，以及临时 token、模型列表和请求合并的 singleflight。
+ * 上游由进程内一个故意变慢的 HTTP 服务代替，只访问 127.0.0.1。GCRA 的检查假设默认的
+ * {@code copilot.ratelimit.burstSeconds}（10）。
+ */
+public final class SelfCheck {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    // 慢上游的响应延迟，保证并发的调用一定重叠
+    private static final long UPSTREAM_DELAY_MILLIS = 200;
+
+    private final List<String> failures = new ArrayList<>();
+    private final AtomicInteger tokenCalls = new AtomicInteger();
+    private final AtomicInteger modelCalls = new AtomicInteger();
+    private PrintStream out;
+    private int passed;
+
+    public static void main(String[] args) throws Exception {
+        // 必须在任何代理类加载之前设置
+        System.setProperty("sqlite.purejava", "true");
+        System.setProperty("copilot.http.systemProxy", "false");
+        System.setProperty("copilot.embeddings.batchWindowMillis", "200");
+        if (System.getProperty("copilot.db.path") == null) {
+            File db = File.createTempFile("copilot-selfcheck-", ".db");
+            db.deleteOnExit();
+            new File(db.getPath() + "-wal").deleteOnExit();
+            new File(db.getPath() + "-shm").deleteOnExit();
+            System.setProperty("copilot.db.path", db.getAbsolutePath());
+        }
+
+        SelfCheck check = new SelfCheck();
+        boolean verbose = args.length > 0 && args[0].equals("--verbose");
+        System.exit(check.run(verbose) ? 0 : 1);
+    }
+
+    private boolean run(boolean verbose) throws Exception {
+        out = System.out;
+        if (!verbose) {
+            // 只保留检查结果，丢弃代理自己的日志
+            PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+            System.setOut(discard);
+            System.setErr(discard);
+        }
+        HttpServer upstream = startUpstream();
+        try {
+            section("CopilotToken", this::copilotToken);
+            section("Retry-After", this::retryAfter);
+            section("GCRA", this::gcra);
+            section("AIMD", this::aimd);
+            section("StreamingTokenCounter", this::streamingTokenCounter);
+            section("EmbeddingBatcher", this::embeddingBatcher);
+            section("SseRelay", this::sseRelay);
+            section("Singleflight", this::singleflight);
+        } finally {
+            upstream.stop(0);
+        }
+        out.println(passed + " passed, " + failures.size() + " failed");
+        for (String failure : failures) {
+            out.println("  FAILED " + failure);
+        }
+        return failures.isEmpty();
+    }
+
+    private interface Section {
+        void run() throws Exception;
+    }
+
+    private void section(String name, Section section) {
+        out.println("== " + name);
+        try {
+            section.run();
+        } catch (Exception e) {
+            check(name + " threw " + e, false, "");
+        }
+    }
+
+    private void check(String name, boolean ok, Object detail) {
+        if (ok) {
+            passed++;
+            out.println("  ok   " + name);
+        } else {
+            failures.add(name + ": " + detail);
+            out.println("  FAIL " + name + ": " + detail);
+        }
+    }
+
+    private void checkEquals(String name, Object expected, Object actual) {
+        boolean ok = expected == null ? actual == null : expected.equals(actual);
+        check(name, ok, "expected " + expected + ", got " + actual);
+    }
+
+    // ---- CopilotToken ----
+
+    private void copilotToken() {
+        CopilotToken token = CopilotToken.parse(
+                "tid=abc123;exp=1700000000;sku=free_limited_copilot;proxy-ep=proxy.individual.githubcopilot.com;chat=1;8kp=1:5f3a");
+        checkEquals("exp", 1700000000L, token.exp());
+        checkEquals("tid", "abc123", token.trackingId());
+        checkEquals("sku", "free_limited_copilot", token.sku());
+        checkEquals("api endpoint from proxy-ep", "https://api.individual.githubcopilot.com", token.apiEndpoint());
+        checkEquals("chat=1", true, token.chatEnabled());
+        checkEquals("other field keeps the signature", "1:5f3a", token.field("8kp"));
+        checkEquals("missing field", null, token.field("rt"));
+        check("expired only after exp", token.isExpired(1700000001L) && !token.isExpired(1700000000L), token.exp());
+
+        CopilotToken bare = CopilotToken.parse("tid=x;chat=0");
+        checkEquals("missing exp is 0", 0L, bare.exp());
+        check("missing exp is expired", bare.isExpired(), bare.exp());
+        checkEquals("chat=0", false, bare.chatEnabled());
+        checkEquals("no proxy-ep", null, bare.apiEndpoint());
+        checkEquals("exp before the signature", 1700000000L, CopilotToken.parse("tid=x;exp=1700000000:sig").exp());
+    }
+
+    // ---- Retry-After ----
+
+    private void retryAfter() {
+        checkEquals("seconds", 5000L, UpstreamRetry.retryAfterMillis("5"));
+        checkEquals("seconds with spaces", 2000L, UpstreamRetry.retryAfterMillis(" 2 "));
+        checkEquals("negative seconds", 0L, UpstreamRetry.retryAfterMillis("-3"));
+        checkEquals("null", -1L, UpstreamRetry.retryAfterMillis(null));
+        checkEquals("empty", -1L, UpstreamRetry.retryAfterMillis(""));
+        checkEquals("garbage", -1L, UpstreamRetry.retryAfterMillis("soon"));
+
+        String future = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(30));
+        long millis = UpstreamRetry.retryAfterMillis(future);
+        check("HTTP date 30 s ahead", millis > 25_000 && millis <= 30_000, millis);
+        String past = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).minusSeconds(30));
+        checkEquals("HTTP date in the past", 0L, UpstreamRetry.retryAfterMillis(past));
+    }
+
+    // ---- RateLimiter.Bucket（GCRA）----
+
+    private void gcra() {
+        long now = TimeUnit.MINUTES.toNanos(5);
+        // 60 RPM：间隔 1 s，桶容量 10 s，即 10 个请求的突发
+        RateLimiter.Bucket bucket = new RateLimiter.Bucket();
+        boolean burstFree = true;
+        for (int i = 0; i < 10; i++) {
+            burstFree &= bucket.reserve(1, 60, now, 0) == 0;
+        }
+        check("burst of 10 passes without waiting", burstFree, bucket.tat.get() - now);
+        checkEquals("11th is rejected with the wait, not charged", -SECOND, bucket.reserve(1, 60, now, 0));
+        checkEquals("one interval later it passes", 0L, bucket.reserve(1, 60, now + SECOND, 0));
+        checkEquals("within maxWait it is delayed", SECOND, bucket.reserve(1, 60, now + SECOND, 2 * SECOND));
+        bucket.refund(1, 60);
+        // 没有退还时要等 2 s
+        checkEquals("refund returns the slot", SECOND, bucket.reserve(1, 60, now + SECOND, 2 * SECOND));
+
+        RateLimiter.Bucket large = new RateLimiter.Bucket();
+        checkEquals("oversized cost fits an empty bucket", 0L, large.reserve(1000, 60, now, 0));
+        checkEquals("and then fills it", -SECOND, large.reserve(1, 60, now, 0));
+
+        RateLimiter.Bucket charged = new RateLimiter.Bucket();
+        charged.charge(120, 60, now);
+        checkEquals("charge is capped at one minute of debt", -51 * SECOND, charged.reserve(1, 60, now, 0));
+
+        RateLimiter.Bucket blocked = new RateLimiter.Bucket();
+        blocked.blockUntil(now + 5 * SECOND, 60);
+        checkEquals("blocked before Retry-After", -SECOND, blocked.reserve(1, 60, now + 4 * SECOND, 0));
+        checkEquals("open at Retry-After", 0L, blocked.reserve(1, 60, now + 5 * SECOND, 0));
+    }
+
+    // ---- AdmissionController.Limiter（AIMD）----
+
+    private void aimd() {
+        AdmissionController.Limiter limiter = new AdmissionController.Limiter(10, 4, 32);
+        int acquired = 0;
+        while (acquired < 20 && limiter.tryAcquire()) {
+            acquired++;
+        }
+        checkEquals("admits up to the limit", 10, acquired);
+
+        // 每个样本加 1/limit：20 个样本约加 2
+        double expected = 10;
+        for (int i = 0; i < 20; i++) {
+            limiter.onSample(false, SECOND);
+            expected += 1 / expected;
+        }
+        checkEquals("additive increase while busy", Math.floor(expected), limiter.limit());
+
+        limiter.onSample(true, SECOND);
+        double decreased = limiter.limit();
+        checkEquals("multiplicative decrease on overload", Math.floor(expected * 0.9), decreased);
+        limiter.onSample(true, SECOND);
+        checkEquals("one decrease per congestion window", decreased, limiter.limit());
+
+        for (int i = 0; i < acquired; i++) {
+            limiter.release();
+        }
+        checkEquals("release returns the slots", 0, limiter.inFlight());
+        limiter.onSample(false, SECOND);
+        checkEquals("no increase while mostly idle", decreased, limiter.limit());
+
+        limiter.setMax(5);
+        checkEquals("setMax clamps the limit", 5.0, limiter.limit());
+        AdmissionController.Limiter floor = new AdmissionController.Limiter(1, 4, 32);
+        checkEquals("initial limit respects the minimum", 4.0, floor.limit());
+    }
+
+    // ---- StreamingTokenCounter ----
+
+    private void streamingTokenCounter() {
+        Encoding encoding = TokenizerRegistry.encoding(EncodingType.CL100K_BASE);
+        String[] words = {"the", "proxy", "streams", "tokens", "函数", "返回", "结果", "0", "42", "{", "}", "(", ")", ";",
+                "\n", "\n\n", "    ", "don't", "😀", "naïve"};
+        SplittableRandom random = new SplittableRandom(42);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 20_000) {
+            text.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        checkEquals("split count equals whole-text count", encoding.countTokens(text.toString()), count(encoding, text, random));
+
+        // 没有空白的长串强制切开，只在切点附近可能差一两个 token
+        StringBuilder solid = new StringBuilder();
+        while (solid.length() < 20_000) {
+            solid.append(random.nextInt(3) == 0 ? "😀" : "QUJD");
+        }
+        int whole = encoding.countTokens(solid.toString());
+        int split = count(encoding, solid, random);
+        check("forced splits stay close", Math.abs(whole - split) <= 2 * (solid.length() / 2048 + 1), whole + " vs " + split);
+    }
+
+    private static int count(Encoding encoding, CharSequence text, SplittableRandom random) {
+        StreamingTokenCounter counter = new StreamingTokenCounter(encoding);
+        int i = 0;
+        while (i < text.length()) {
+            int end = Math.min(text.length(), i + 1 + random.nextInt(8));
+            // delta 不会把代理对拆开
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) end++;
+            counter.append(text.subSequence(i, end));
+            i = end;
+        }
+        return counter.finish();
+    }
+
+    // ---- EmbeddingBatcher ----
+
+    private void embeddingBatcher() throws Exception {
+        EmbeddingBatcher.setEnabled(true);
+        AtomicInteger calls = new AtomicInteger();
+        List<JSONObject> bodies = new ArrayList<>();
+        // 假上游：按 index 倒序返回，embedding 的值就是输入的数字，usage 固定为 1000
+        EmbeddingBatcher.Upstream upstream = body -> {
+            calls.incrementAndGet();
+            synchronized (bodies) {
+                bodies.add(body);
+            }
+            Object input = body.get("input");
+            JSONArray inputs = input instanceof JSONArray ? (JSONArray) input : new JSONArray().put(input);
+            JSONArray data = new JSONArray();
+            for (int i = inputs.length() - 1; i >= 0; i--) {
+                data.put(new JSONObject().put("object", "embedding").put("index", i)
+                        .put("embedding", new JSONArray().put(Integer.parseInt(inputs.getString(i)))));
+            }
+            return new EmbeddingBatcher.Reply(200, new JSONObject().put("object", "list").put("data", data)
+                    .put("model", body.getString("model"))
+                    .put("usage", new JSONObject().put("prompt_tokens", 1000).put("total_tokens", 1000)).toString());
+        };
+
+        JSONObject[] requests = {
+                new JSONObject().put("model", "text-embedding-3-small").put("input", "1"),
+                new JSONObject().put("model", "text-embedding-3-small").put("input", new JSONArray().put("2").put("3")),
+                new JSONObject().put("model", "text-embedding-3-small").put("input", new JSONArray().put("4").put("5").put("6")),
+        };
+        List<EmbeddingBatcher.Reply> replies = concurrently(requests.length,
+                i -> EmbeddingBatcher.submit("scope-a", requests[i], upstream));
+        checkEquals("same scope makes one upstream call", 1, calls.get());
+        checkEquals("merged input size", 6, bodies.get(0).getJSONArray("input").length());
+
+        int usage = 0;
+        for (int i = 0; i < requests.length; i++) {
+            EmbeddingBatcher.Reply reply = replies.get(i);
+            JSONObject body = new JSONObject(reply.body);
+            Object input = requests[i].get("input");
+            JSONArray inputs = input instanceof JSONArray ? (JSONArray) input : new JSONArray().put(input);
+            JSONArray data = body.getJSONArray("data");
+            boolean remapped = data.length() == inputs.length();
+            for (int k = 0; remapped && k < data.length(); k++) {
+                JSONObject item = findIndex(data, k);
+                remapped = item != null && item.getJSONArray("embedding").getInt(0) == Integer.parseInt(inputs.getString(k));
+            }
+            check("request " + i + " gets its own inputs renumbered from 0", reply.isSuccessful() && remapped, body);
+            usage += body.getJSONObject("usage").getInt("prompt_tokens");
+        }
+        checkEquals("usage shares add up to the upstream total", 1000, usage);
+
+        EmbeddingBatcher.Reply other = EmbeddingBatcher.submit("scope-b", requests[0], upstream);
+        checkEquals("another scope is not merged", 2, calls.get());
+        checkEquals("single request is forwarded as is", requests[0].toString(), bodies.get(1).toString());
+        check("single request reply", other.isSuccessful(), other.body);
+        EmbeddingBatcher.setEnabled(false);
+    }
+
+    private static JSONObject findIndex(JSONArray data, int index) {
+        for (int i = 0; i < data.length(); i++) {
+            if (data.getJSONObject(i).getInt("index") == index) return data.getJSONObject(i);
+        }
+        return null;
+    }
+
+    // ---- SseRelay ----
+
+    private void sseRelay() throws Exception {
+        AtomicInteger flushes = new AtomicInteger();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        OutputStream client = new OutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                received.write(b, off, len);
+            }
+
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void flush() {
+                flushes.incrementAndGet();
+            }
+        };
+        AtomicInteger disconnects = new AtomicInteger();
+        SseRelay relay = SseRelay.start(client, disconnects::incrementAndGet);
+        byte[] frame = "data: {\"choices\":[{\"delta\":{\"content\":\"x\"}}]}\n\n".getBytes(StandardCharsets.UTF_8);
+        relay.write(frame);
+        relay.flush();
+        long deadline = System.nanoTime() + SECOND;
+        while (flushes.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        checkEquals("first frame is flushed immediately", 1, flushes.get());
+
+        int frames = 2000;
+        for (int i = 1; i < frames; i++) {
+            relay.write(frame);
+            relay.flush();
+        }
+        relay.close();
+        checkEquals("every byte is delivered", frames * frame.length, received.size());
+        check("flushes are coalesced", flushes.get() < frames / 4, flushes.get() + " flushes for " + frames + " frames");
+        checkEquals("no disconnect", 0, disconnects.get());
+
+        // 客户端写失败：回调一次，读线程随后收到 ClientDisconnectedException
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+        AtomicInteger brokenDisconnects = new AtomicInteger();
+        SseRelay failing = SseRelay.start(broken, brokenDisconnects::incrementAndGet);
+        boolean thrown = false;
+        try {
+            for (int i = 0; i < 100_000 && !thrown; i++) {
+                failing.write(frame);
+                failing.flush();
+            }
+        } catch (SseRelay.ClientDisconnectedException e) {
+            thrown = true;
+        }
+        check("writer sees ClientDisconnectedException", thrown, "no exception");
+        check("isDisconnected", failing.isDisconnected(), false);
+        checkEquals("onDisconnect runs once", 1, brokenDisconnects.get());
+    }
+
+    // ---- singleflight ----
+
+    private void singleflight() throws Exception {
+        int clients = 16;
+
+        // RequestCoalescer：同一 key 并发只调用一次上游，所有请求拿到同一个结果
+        AtomicInteger coalescerCalls = new AtomicInteger();
+        RequestCoalescer.Upstream slow = () -> {
+            coalescerCalls.incrementAndGet();
+            sleep(UPSTREAM_DELAY_MILLIS);
+            return new RequestCoalescer.Result(200, "{}".getBytes(StandardCharsets.UTF_8));
+        };
+        List<RequestCoalescer.Result> results = concurrently(clients, i -> RequestCoalescer.execute("scope:digest", slow));
+        checkEquals("RequestCoalescer calls upstream once", 1, coalescerCalls.get());
+        boolean shared = true;
+        for (RequestCoalescer.Result result : results) {
+            shared &= result == results.get(0);
+        }
+        check("RequestCoalescer shares the result", shared, results);
+        RequestCoalescer.execute("scope:digest", slow);
+        checkEquals("RequestCoalescer does not cache finished calls", 2, coalescerCalls.get());
+
+        AtomicInteger failingCalls = new AtomicInteger();
+        List<Object> errors = concurrently(clients, i -> {
+            try {
+                return RequestCoalescer.execute("scope:failing", () -> {
+                    failingCalls.incrementAndGet();
+                    sleep(UPSTREAM_DELAY_MILLIS);
+                    throw new IOException("upstream down");
+                });
+            } catch (IOException e) {
+                return e.getMessage();
+            }
+        });
+        checkEquals("RequestCoalescer failure is shared", 1, failingCalls.get());
+        check("every follower sees the failure", errors.stream().allMatch("upstream down"::equals), errors);
+
+        // TempTokenCache：新账号的并发请求只获取一次临时 token
+        String account = "selfcheck-account";
+        new TokenManager().addLongTermToken(account, "", 0, "selfcheck");
+        List<String> tokens = concurrently(clients, i -> TempTokenCache.get(account));
+        checkEquals("TempTokenCache fetches the token once", 1, tokenCalls.get());
+        check("TempTokenCache returns one token", tokens.stream().distinct().count() == 1, tokens);
+        TempTokenCache.get(account);
+        checkEquals("TempTokenCache serves the cached token", 1, tokenCalls.get());
+
+        // ModelCatalog：并发加载只拉取一次模型列表
+        List<ModelCatalog.Snapshot> snapshots = concurrently(clients, i -> ModelCatalog.load(account, tokens.get(0)));
+        checkEquals("ModelCatalog fetches the models once", 1, modelCalls.get());
+        check("ModelCatalog shares the snapshot", snapshots.stream().distinct().count() == 1, snapshots.size());
+        check("ModelCatalog caches the snapshot", ModelCatalog.cached(account) == snapshots.get(0), "not cached");
+    }
+
+    /**
+     * 一个慢的 Copilot 上游：临时 token 和模型列表，各自计数
+     */
+    private HttpServer startUpstream() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/copilot_internal/v2/token", exchange -> {
+            int serial = tokenCalls.incrementAndGet();
+            sleep(UPSTREAM_DELAY_MILLIS);
+            long exp = Instant.now().getEpochSecond() + 1800;
+            respond(exchange, new JSONObject()
+                    .put("token", "tid=selfcheck-" + serial + ";exp=" + exp + ";sku=selfcheck;chat=1")
+                    .put("expires_at", exp)
+                    .put("refresh_in", 1500));
+        });
+        server.createContext("/models", exchange -> {
+            modelCalls.incrementAndGet();
+            sleep(UPSTREAM_DELAY_MILLIS);
+            respond(exchange, new JSONObject().put("data", new JSONArray()
+                    .put(new JSONObject().put("id", "gpt-4o").put("capabilities",
+                            new JSONObject().put("tokenizer", "o200k_base")))));
+        });
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "selfcheck-upstream");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        utils.setCopilotTokenUrl(base + "/copilot_internal/v2/token");
+        ModelService.setModelsUrl(base + "/models");
+        return server;
+    }
+
+    private static void respond(HttpExchange exchange, JSONObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private interface Task<T> {
+        T call(int i) throws Exception;
+    }
+
+    /**
+     * 在 n 个线程上同时开始执行 task，按编号返回结果
+     */
+    private static <T> List<T> concurrently(int n, Task<T> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(n);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<T>> futures = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                int index = i;
+                Callable<T> callable = () -> {
+                    start.await();
+                    return task.call(index);
+                };
+                futures.add(executor.submit(callable));
+            }
+            start.countDown();
+            List<T> results = new ArrayList<>(n);
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get(30, TimeUnit.SECONDS));
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+import okhttp3.Headers;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 内存中的多账号池，替代每次请求都全表查询的 {@code getRandomLongTermToken}。
+ * <p>
+ * 账号列表保存在一个不可变数组快照中（新增账号时整体替换），请求路径上的选择不加锁：
+ * <ul>
+ *     <li>{@code round-robin}：原子计数器轮询</li>
+ *     <li>{@code least-in-flight}：随机取两个账号，选进行中请求较少的（power of two choices）</li>
+ *     <li>{@code quota}：随机取两个账号，选上游返回的剩余额度较多的</li>
+ * </ul>
+ * 上游返回 429 时账号进入冷却（优先使用 Retry-After，否则从 {@code copilot.pool.cooldownSeconds} 开始指数退避），
+ * 连续 5xx / 网络错误达到 {@code copilot.pool.errorThreshold} 次也会冷却；冷却中的账号不参与选择。
+ */
+public final class AccountPool {
+    private static final Log.Logger LOG = Log.logger(AccountPool.class);
+    private static final long COOLDOWN_MILLIS = Long.getLong("copilot.pool.cooldownSeconds", 30L) * 1000L;
+    private static final long MAX_COOLDOWN_MILLIS = Long.getLong("copilot.pool.maxCooldownSeconds", 600L) * 1000L;
+    private static final int ERROR_THRESHOLD = Integer.getInteger("copilot.pool.errorThreshold", 3);
+
+    public enum Strategy {
+        ROUND_ROBIN, LEAST_IN_FLIGHT, QUOTA;
+
+        public static Strategy parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    private static final TokenManager tokenManager = new TokenManager();
+    private static final Account[] EMPTY = new Account[0];
+    private static final AtomicReference<Account[]> SNAPSHOT = new AtomicReference<>(EMPTY);
+    private static final ConcurrentHashMap<String, Account> BY_TOKEN = new ConcurrentHashMap<>();
+    // 每个账号 token 响应中的 endpoints.api
+    private static final ConcurrentHashMap<String, String> ENDPOINTS = new ConcurrentHashMap<>();
+    private static final AtomicInteger CURSOR = new AtomicInteger();
+    private static volatile Strategy strategy = Strategy.ROUND_ROBIN;
+
+    static {
+        List<String> tokens = tokenManager.getAllLongTermTokens();
+        for (String token : tokens) {
+            add(token);
+        }
+    }
+
+    private AccountPool() {
+    }
+
+    /**
+     * 池中的一个账号及其健康状态
+     */
+    public static final class Account {
+        final String longTermToken;
+        final String label;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final LongAdder requests = new LongAdder();
+        final LongAdder throttled = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        // 上游报告的剩余请求数，未知时为 Long.MAX_VALUE
+        volatile long remaining = Long.MAX_VALUE;
+        volatile long cooldownUntil;
+        // 只由上报结果的线程更新，丢失个别更新不影响正确性
+        volatile int consecutiveThrottles;
+        volatile int consecutiveErrors;
+
+        Account(String longTermToken) {
+            this.longTermToken = longTermToken;
+            this.label = Log.mask(longTermToken);
+        }
+
+        public String token() {
+            return longTermToken;
+        }
+
+        /**
+         * 打码后的 token，用于日志和指标
+         */
+        public String label() {
+            return label;
+        }
+
+        boolean available(long now) {
+            return cooldownUntil <= now;
+        }
+
+        /**
+         * 开始一个请求
+         */
+        public void acquire() {
+            inFlight.incrementAndGet();
+        }
+
+        /**
+         * 请求结束（包括流式响应发送完毕）
+         */
+        public void release() {
+            inFlight.decrementAndGet();
+        }
+
+        /**
+         * 记录上游响应；status 为 -1 表示网络错误，headers 可以为 null
+         */
+        public void record(int status, Headers headers) {
+            requests.increment();
+            if (headers != null) {
+                String r = headers.get("x-ratelimit-remaining-requests");
+                if (r == null) r = headers.get("x-ratelimit-remaining");
+                long parsed = parseLong(r);
+                if (parsed >= 0) remaining = parsed;
+            }
+            long now = System.currentTimeMillis();
+            if (status == 429) {
+                throttled.increment();
+                int n = ++consecutiveThrottles;
+                long retryAfter = headers != null ? UpstreamRetry.retryAfterMillis(headers.get("Retry-After")) : -1;
+                long cooldown = retryAfter >= 0
+                        ? retryAfter
+                        : Math.min(COOLDOWN_MILLIS << Math.min(n - 1, 16), MAX_COOLDOWN_MILLIS);
+                coolDown(now + cooldown, "throttled");
+                RateLimiter.onThrottled(longTermToken, retryAfter);
+            } else if (status < 0 || status >= 500) {
+                errors.increment();
+                if (++consecutiveErrors >= ERROR_THRESHOLD) {
+                    consecutiveErrors = 0;
+                    coolDown(now + COOLDOWN_MILLIS, "failing");
+                }
+            } else {
+                consecutiveThrottles = 0;
+                consecutiveErrors = 0;
+            }
+        }
+
+        private void coolDown(long until, String reason) {
+            if (until > cooldownUntil) {
+                cooldownUntil = until;
+                LOG.warn("Account cooling down", "account", label, "reason", reason,
+                        "seconds", (until - System.currentTimeMillis()) / 1000);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return label + " inFlight=" + inFlight.get() + " requests=" + requests.sum()
+                    + " 429=" + throttled.sum() + " 5xx=" + errors.sum()
+                    + (remaining == Long.MAX_VALUE ? "" : " remaining=" + remaining)
+                    + (available(System.currentTimeMillis()) ? "" : " cooling");
+        }
+    }
+
+    public static void setStrategy(Strategy s) {
+        strategy = s;
+    }
+
+    public static Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * 登记一个账号（已存在时直接返回）
+     */
+    public static Account add(String longTermToken) {
+        Account account = BY_TOKEN.get(longTermToken);
+        if (account != null) return account;
+        Account created = new Account(longTermToken);
+        account = BY_TOKEN.putIfAbsent(longTermToken, created);
+        if (account != null) return account;
+        Account[] current, next;
+        do {
+            current = SNAPSHOT.get();
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = created;
+        } while (!SNAPSHOT.compareAndSet(current, next));
+        return created;
+    }
+
+    /**
+     * 按 long-term token 查找账号，不在池中时返回 null
+     */
+    public static Account get(String longTermToken) {
+        return longTermToken == null ? null : BY_TOKEN.get(longTermToken);
+    }
+
+    /**
+     * 记录账号的 API 地址（来自 token 响应的 {@code endpoints.api}）
+     */
+    public static void setEndpoint(String longTermToken, String api) {
+        if (longTermToken != null && api != null && !api.isEmpty()) {
+            ENDPOINTS.put(longTermToken, api);
+        }
+    }
+
+    /**
+     * 账号的 API 地址，未知时返回 null
+     */
+    public static String endpoint(String longTermToken) {
+        return longTermToken == null ? null : ENDPOINTS.get(longTermToken);
+    }
+
+    /**
+     * 池中所有账号的快照
+     */
+    public static List<Account> accounts() {
+        return Arrays.asList(SNAPSHOT.get());
+    }
+
+    public static int size() {
+        return SNAPSHOT.get().length;
+    }
+
+    /**
+     * 按当前策略选择一个账号；池为空时返回 null。所有账号都在冷却时返回最早恢复的那个。
+     */
+    public static Account select() {
+        Account[] accounts = SNAPSHOT.get();
+        int n = accounts.length;
+        if (n == 0) return null;
+        if (n == 1) return accounts[0];
+        long now = System.currentTimeMillis();
+        if (strategy != Strategy.ROUND_ROBIN) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int i = random.nextInt(n);
+            int j = random.nextInt(n - 1);
+            if (j >= i) j++;
+            Account a = accounts[i], b = accounts[j];
+            boolean okA = a.available(now), okB = b.available(now);
+            if (okA && okB) return better(a, b) ? a : b;
+            if (okA) return a;
+            if (okB) return b;
+        }
+        // 轮询；跳过冷却中的账号（每次探测都推进游标，冷却账号的份额均匀分给其余账号）
+        for (int k = 0; k < n; k++) {
+            Account candidate = accounts[(CURSOR.getAndIncrement() & Integer.MAX_VALUE) % n];
+            if (candidate.available(now)) return candidate;
+        }
+        Account earliest = accounts[0];
+        for (Account candidate : accounts) {
+            if (candidate.cooldownUntil < earliest.cooldownUntil) earliest = candidate;
+        }
+        return earliest;
+    }
+
+    private static boolean better(Account a, Account b) {
+        if (strategy == Strategy.QUOTA && a.remaining != b.remaining) {
+            return a.remaining > b.remaining;
+        }
+        return a.inFlight.get() <= b.inFlight.get();
+    }
+
+    /**
+     * 各账号状态，用于日志和监控
+     */
+    public static String stats() {
+        StringBuilder sb = new StringBuilder("strategy=").append(strategy.name().toLowerCase(Locale.ROOT).replace('_', '-'));
+        for (Account account : SNAPSHOT.get()) {
+            sb.append('\n').append(account);
+        }
+        return sb.toString();
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+import com.sun.net.httpserver.HttpExchange;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * /v1/chat/completions 的准入控制：限制同时进行的请求数，过载时快速拒绝而不是让所有请求一起变慢。
+ * <p>
+ * 两级限制，都是 AIMD 自适应的：
+ * <ul>
+ *     <li>全局：初始 {@code copilot.admission.initialLimit}（默认 32），范围
+ *     [{@code copilot.admission.minLimit}（默认 4），{@code copilot.admission.maxLimit}（默认 256，也可用 {@code --max-concurrency}）]。
+ *     超出时在 HttpServer 线程上排队（不占用 worker），队列 {@code copilot.admission.queueSize}（默认 128）满了
+ *     或等待超过 {@code copilot.admission.queueTimeoutMillis}（默认 5000）时返回 503</li>
+ *     <li>每个长期 token：初始 {@code copilot.admission.accountLimit}（默认 8），最大
+ *     {@code copilot.admission.accountMaxLimit}（默认 32），超出时在该账号自己的队列中等待同一个截止时间，
+ *     队列满或超时返回 429。只有账号池中已知的账号才有账号限额（未注册的 token 只受全局限制），
+ *     空闲超过 {@code copilot.admission.accountIdleSeconds}（默认 600）秒的账号限额会被移除</li>
+ * </ul>
+ * 先取账号名额再取全局名额，两级都只是排队而不占用线程，繁忙的账号不会占满 worker 和全局名额而饿死其他账号。
+ * 拒绝的响应都带 {@code Retry-After}（{@code copilot.admission.retryAfterSeconds}，默认 1）。
+ * <p>
+ * 上游每次尝试的延迟（流式为首字节）和状态驱动限额：正常返回且并发已用到一半以上时限额加 1/limit（约每轮加 1）；
+ * 上游 429 / 5xx / 网络错误，或延迟超过平均值的 {@code copilot.admission.latencyTolerance} 倍（默认 2）时乘以 0.9，
+ * 每个平均延迟内最多降一次。{@code copilot.admission.enabled=false} 或 {@code --max-concurrency 0} 关闭准入控制。
+ */
+public final class AdmissionController {
+    private static final Log.Logger LOG = Log.logger(AdmissionController.class);
+    private static final int INITIAL_LIMIT = Integer.getInteger("copilot.admission.initialLimit", 32);
+    private static final int MIN_LIMIT = Integer.getInteger("copilot.admission.minLimit", 4);
+    private static final int ACCOUNT_LIMIT = Integer.getInteger("copilot.admission.accountLimit", 8);
+    private static final int ACCOUNT_MAX_LIMIT = Integer.getInteger("copilot.admission.accountMaxLimit", 32);
+    private static final int QUEUE_SIZE = Integer.getInteger("copilot.admission.queueSize", 128);
+    private static final long QUEUE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("copilot.admission.queueTimeoutMillis", 5000L));
+    private static final String RETRY_AFTER = String.valueOf(Integer.getInteger("copilot.admission.retryAfterSeconds", 1));
+    private static final double LATENCY_TOLERANCE = Double.parseDouble(System.getProperty("copilot.admission.latencyTolerance", "2"));
+    private static final double BACKOFF = 0.9;
+    private static final long ACCOUNT_IDLE_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("copilot.admission.accountIdleSeconds", 600L));
+    private static final long EVICT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static volatile boolean enabled = Boolean.parseBoolean(System.getProperty("copilot.admission.enabled", "true"));
+
+    private static final Limiter GLOBAL = new Limiter(INITIAL_LIMIT, MIN_LIMIT, Integer.getInteger("copilot.admission.maxLimit", 256));
+    // 长期 token -> 该账号的限额
+    private static final ConcurrentHashMap<String, Limiter> ACCOUNTS = new ConcurrentHashMap<>();
+    // 上次清理空闲账号限额的时间，只由 TIMER 线程访问
+    private static long lastEviction = System.nanoTime();
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "admission-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final Metrics.Counter ADMITTED = Metrics.counter("copilot_admission_requests_total",
+            "Chat completion requests by admission outcome", "result", "admitted");
+    private static final Metrics.Counter QUEUED = Metrics.counter("copilot_admission_requests_total",
+            "Chat completion requests by admission outcome", "result", "queued");
+    private static final Metrics.Counter REJECTED_GLOBAL = Metrics.counter("copilot_admission_requests_total",
+            "Chat completion requests by admission outcome", "result", "rejected_global");
+    private static final Metrics.Counter REJECTED_ACCOUNT = Metrics.counter("copilot_admission_requests_total",
+            "Chat completion requests by admission outcome", "result", "rejected_account");
+
+    static {
+        Metrics.gauge("copilot_admission_limit", "Current adaptive global concurrency limit", GLOBAL::limit);
+        Metrics.gauge("copilot_admission_in_flight", "Admitted chat completion requests still running", GLOBAL::inFlight);
+        Metrics.gauge("copilot_admission_queued", "Chat completion requests waiting for a global slot", () -> {
+            synchronized (GLOBAL) {
+                return GLOBAL.queue.size();
+            }
+        });
+        TIMER.scheduleWithFixedDelay(AdmissionController::expireWaiters, 50, 50, TimeUnit.MILLISECONDS);
+    }
+
+    private AdmissionController() {
+    }
+
+    /**
+     * AIMD 并发限额和等待名额的请求；所有方法在实例上同步，不在锁内等待
+     */
+    static final class Limiter {
+        // 等待名额的请求，按到达顺序，由 this 保护
+        final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+        private final double min;
+        private volatile double max;
+        private double limit;
+        private int inFlight;
+        private double avgLatencyNanos;
+        private long lastDecrease;
+        private long lastUsed = System.nanoTime();
+        // 已从 ACCOUNTS 移除，持有旧引用的调用方需要重新获取
+        private boolean retired;
+
+        Limiter(int initial, int min, int max) {
+            this.min = Math.max(1, min);
+            this.max = Math.max(this.min, max);
+            this.limit = Math.max(this.min, Math.min(this.max, initial));
+        }
+
+        synchronized double limit() {
+            return Math.floor(limit);
+        }
+
+        synchronized int inFlight() {
+            return inFlight;
+        }
+
+        synchronized void setMax(int max) {
+            this.max = Math.max(min, max);
+            limit = Math.min(limit, this.max);
+        }
+
+        synchronized boolean tryAcquire() {
+            if (inFlight >= (int) limit) return false;
+            inFlight++;
+            lastUsed = System.nanoTime();
+            return true;
+        }
+
+        synchronized void release() {
+            inFlight--;
+            lastUsed = System.nanoTime();
+        }
+
+        /**
+         * 空闲足够久时标记为 retired 并返回 true
+         */
+        synchronized boolean retireIfIdle(long now) {
+            if (inFlight == 0 && queue.isEmpty() && now - lastUsed > ACCOUNT_IDLE_NANOS) {
+                retired = true;
+            }
+            return retired;
+        }
+
+        /**
+         * @param overload 上游返回 429 / 5xx 或网络错误
+         */
+        synchronized void onSample(boolean overload, long latencyNanos) {
+            long now = System.nanoTime();
+            boolean slow = avgLatencyNanos > 0 && latencyNanos > avgLatencyNanos * LATENCY_TOLERANCE;
+            if (overload || slow) {
+                // 同一波拥塞只降一次
+                if (now - lastDecrease > avgLatencyNanos) {
+                    limit = Math.max(min, limit * BACKOFF);
+                    lastDecrease = now;
+                }
+            } else if (inFlight * 2 >= limit) {
+                limit = Math.min(max, limit + 1 / limit);
+            }
+            if (!overload) {
+                avgLatencyNanos = avgLatencyNanos == 0 ? latencyNanos : avgLatencyNanos + (latencyNanos - avgLatencyNanos) * 0.05;
+            }
+        }
+    }
+
+    /**
+     * 一个等待名额的请求；account 为它的账号限额（未知账号为 null），两级队列共用同一个截止时间
+     */
+    private static final class Waiter {
+        final HttpExchange exchange;
+        final Limiter account;
+        final Runnable task;
+        final long deadline;
+
+        Waiter(HttpExchange exchange, Limiter account, Runnable task, long deadline) {
+            this.exchange = exchange;
+            this.account = account;
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * 全局并发上限；0 关闭准入控制
+     */
+    public static void setMaxConcurrency(int max) {
+        if (max <= 0) {
+            enabled = false;
+        } else {
+            GLOBAL.setMax(max);
+        }
+    }
+
+    /**
+     * 在 HttpServer 线程上调用：先占用 longTermToken 的账号名额，再占用全局名额，都有时派发 task；
+     * 否则在对应的队列中排队，账号队列满或超时返回 429，全局队列满或超时返回 503。
+     * task 结束后释放两个名额并派发排队的请求。
+     */
+    public static void dispatch(HttpExchange exchange, String longTermToken, Runnable task) {
+        if (!enabled) {
+            ServerExecutors.dispatch(task);
+            return;
+        }
+        long deadline = System.nanoTime() + QUEUE_TIMEOUT_NANOS;
+        // 任意 Bearer 字符串不会在这里建立账号限额；未注册的 token 注册成功后，后续请求才受账号限额
+        if (AccountPool.get(longTermToken) == null) {
+            enterGlobal(new Waiter(exchange, null, admitted(task, null), deadline), false);
+            return;
+        }
+        while (true) {
+            Limiter account = ACCOUNTS.computeIfAbsent(longTermToken, t -> new Limiter(ACCOUNT_LIMIT, 1, ACCOUNT_MAX_LIMIT));
+            Waiter waiter = new Waiter(exchange, account, admitted(task, account), deadline);
+            boolean admitted;
+            synchronized (account) {
+                // 刚被 evictIdle 移除，重新获取
+                if (account.retired) continue;
+                admitted = account.queue.isEmpty() && account.tryAcquire();
+                if (!admitted && account.queue.size() < QUEUE_SIZE) {
+                    account.queue.add(waiter);
+                    QUEUED.inc();
+                    return;
+                }
+            }
+            if (!admitted) {
+                REJECTED_ACCOUNT.inc();
+                reject(exchange, 429, "Too many concurrent requests for this account, retry later.");
+                return;
+            }
+            enterGlobal(waiter, false);
+            return;
+        }
+    }
+
+    /**
+     * task 结束后释放全局名额和账号名额（account 可为 null）
+     */
+    private static Runnable admitted(Runnable task, Limiter account) {
+        return () -> {
+            try {
+                task.run();
+            } finally {
+                releaseGlobal();
+                releaseAccount(account);
+            }
+        };
+    }
+
+    /**
+     * 已占用账号名额的请求申请全局名额
+     *
+     * @param queued 调用方是另一个请求的线程（而不是 HttpServer 线程）
+     */
+    private static void enterGlobal(Waiter waiter, boolean queued) {
+        boolean run;
+        synchronized (GLOBAL) {
+            run = GLOBAL.queue.isEmpty() && GLOBAL.tryAcquire();
+            if (!run && GLOBAL.queue.size() < QUEUE_SIZE) {
+                GLOBAL.queue.add(waiter);
+                if (!queued) QUEUED.inc();
+                return;
+            }
+        }
+        if (!run) {
+            REJECTED_GLOBAL.inc();
+            reject(waiter.exchange, 503, "Server is overloaded, retry later.");
+            releaseAccount(waiter.account);
+            return;
+        }
+        ADMITTED.inc();
+        if (queued) {
+            ServerExecutors.dispatchQueued(waiter.task);
+        } else {
+            ServerExecutors.dispatch(waiter.task);
+        }
+    }
+
+    /**
+     * 上游一次尝试的结果，由 {@link UpstreamRetry.Call} 在每次尝试后调用
+     *
+     * @param status HTTP 状态，网络错误为 -1
+     */
+    public static void observe(String longTermToken, int status, long latencyNanos) {
+        if (!enabled) return;
+        boolean overload = status == -1 || status == 429 || status >= 500;
+        GLOBAL.onSample(overload, latencyNanos);
+        Limiter account = longTermToken != null ? ACCOUNTS.get(longTermToken) : null;
+        if (account != null) account.onSample(overload, latencyNanos);
+        if (!overload) {
+            drainGlobal();
+            if (account != null) drainAccount(account);
+        }
+    }
+
+    private static void releaseGlobal() {
+        GLOBAL.release();
+        drainGlobal();
+    }
+
+    private static void releaseAccount(Limiter account) {
+        if (account == null) return;
+        account.release();
+        drainAccount(account);
+    }
+
+    /**
+     * 有全局名额时按到达顺序派发排队的请求
+     */
+    private static void drainGlobal() {
+        List<Waiter> ready = poll(GLOBAL);
+        if (ready == null) return;
+        for (Waiter w : ready) {
+            ADMITTED.inc();
+            ServerExecutors.dispatchQueued(w.task);
+        }
+    }
+
+    /**
+     * 有账号名额时按到达顺序让该账号排队的请求去申请全局名额
+     */
+    private static void drainAccount(Limiter account) {
+        List<Waiter> ready = poll(account);
+        if (ready == null) return;
+        for (Waiter w : ready) {
+            enterGlobal(w, true);
+        }
+    }
+
+    private static List<Waiter> poll(Limiter limiter) {
+        List<Waiter> ready = null;
+        synchronized (limiter) {
+            while (!limiter.queue.isEmpty() && limiter.tryAcquire()) {
+                if (ready == null) ready = new ArrayList<>();
+                ready.add(limiter.queue.poll());
+            }
+        }
+        return ready;
+    }
+
+    private static void expireWaiters() {
+        long now = System.nanoTime();
+        List<Waiter> expired = expired(GLOBAL, now);
+        if (expired != null) {
+            LOG.warn("Rejected queued requests after waiting for a slot", "count", expired.size(), "limit", GLOBAL.limit());
+            for (Waiter w : expired) {
+                REJECTED_GLOBAL.inc();
+                releaseAccount(w.account);
+                // 写响应可能阻塞，不在 TIMER 线程上进行
+                ServerExecutors.dispatchQueued(() -> reject(w.exchange, 503, "Server is overloaded, retry later."));
+            }
+        }
+        for (Limiter account : ACCOUNTS.values()) {
+            expired = expired(account, now);
+            if (expired == null) continue;
+            for (Waiter w : expired) {
+                REJECTED_ACCOUNT.inc();
+                ServerExecutors.dispatchQueued(() -> reject(w.exchange, 429, "Too many concurrent requests for this account, retry later."));
+            }
+        }
+        if (now - lastEviction > EVICT_INTERVAL_NANOS) {
+            lastEviction = now;
+            ACCOUNTS.values().removeIf(account -> account.retireIfIdle(now));
+        }
+    }
+
+    private static List<Waiter> expired(Limiter limiter, long now) {
+        List<Waiter> expired = null;
+        synchronized (limiter) {
+            while (!limiter.queue.isEmpty() && limiter.queue.peek().deadline - now <= 0) {
+                if (expired == null) expired = new ArrayList<>();
+                expired.add(limiter.queue.poll());
+            }
+        }
+        return expired;
+    }
+
+    private static void reject(HttpExchange exchange, int status, String message) {
+        exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+        utils.sendError(exchange, message, status);
+        exchange.close();
+    }
+}
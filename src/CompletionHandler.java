@@ -3,6 +3,7 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import okhttp3.*;
 import okio.BufferedSource;
+import okio.ByteString;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -13,19 +14,31 @@ import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
-import com.knuddels.jtokkit.Encodings;
-import com.knuddels.jtokkit.api.Encoding;
-import com.knuddels.jtokkit.api.EncodingRegistry;
-import com.knuddels.jtokkit.api.EncodingType;
 /**
  * Handler for chat completion requests, adapting the GitHub Copilot API, only handling text generation requests.
  */
 public class CompletionHandler implements HttpHandler {
+    private static final Log.Logger LOG = Log.logger(CompletionHandler.class);
     private static String COPILOT_CHAT_COMPLETIONS_URL = "https://api.individual.githubcopilot.com/chat/completions";
 
-    private final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    private static final ByteString DATA_PREFIX = ByteString.encodeUtf8("data: ");
+    private static final ByteString DONE_LINE = ByteString.encodeUtf8("data: [DONE]");
+    private static final ByteString USAGE_BYTES = ByteString.encodeUtf8("\"usage\":{");
+    private static final byte[] DONE_FRAME = "data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final String CONTENT_KEY = "\"content\":\"";
+    private static final ByteString CONTENT_BYTES = ByteString.encodeUtf8(CONTENT_KEY);
+    private static final byte[] COMPLETION_TOKENS_KEY = "\"completion_tokens\"".getBytes(StandardCharsets.UTF_8);
+
+    // 已知会在流末尾自带 usage 的模型：这些模型不预先计算 prompt tokens
+    private static final Set<String> UPSTREAM_USAGE_MODELS = ConcurrentHashMap.newKeySet();
+
+    // true: 上游 SSE 帧原样转发；false: 解析后只保留 content 重新包装
+    private static volatile boolean ssePassthrough = false;
+
+    public static void setSsePassthrough(boolean passthrough) {
+        ssePassthrough = passthrough;
+    }
 
     public static void setCopilotChatCompletionsUrl(String api) {
         COPILOT_CHAT_COMPLETIONS_URL = api;
@@ -33,12 +46,6 @@ public class CompletionHandler implements HttpHandler {
     public static String getCopilotChatCompletionsUrl() {
         return COPILOT_CHAT_COMPLETIONS_URL;
     }
-    /* ---------- JTokkit: 精确 token 计数 ---------- */
-    private static final Encoding ENCODING;
-    static {
-        EncodingRegistry reg = Encodings.newDefaultEncodingRegistry();
-        ENCODING = reg.getEncoding(EncodingType.CL100K_BASE);    // GPT-4o / GPT-4 / GPT-3.5 通用
-    }
     @Override
     public void handle(HttpExchange exchange) throws IOException {
         // Set CORS headers
@@ -79,117 +86,110 @@ public class CompletionHandler implements HttpHandler {
             return;
         }
 
-        // Asynchronously handle the request
-        executor.submit(() -> {
+        long received = System.nanoTime();
+        // Read request headers
+        Headers requestHeaders = exchange.getRequestHeaders();
+        String authorization = requestHeaders.getFirst("Authorization");
+        AccountPool.Account selected = null;
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            // 未指定账号时由账号池按策略选择；在准入之前选择，账号名额才能按实际账号计算
+            selected = AccountPool.select();
+            if (selected == null) {
+                utils.sendError(exchange, "No account available.", 503);
+                return;
+            }
+            authorization = "Bearer " + selected.token();
+        }
+        AccountPool.Account poolAccount = selected;
+        String authorizationHeader = authorization;
+        // Dispatch the request once admitted (inline on a virtual thread, otherwise on the shared worker pool)
+        AdmissionController.dispatch(exchange, authorizationHeader.substring(7).trim(), () -> {
+            AccountPool.Account account = poolAccount;
+            boolean pinned = false;
             try {
-                // Read request headers
-                Headers requestHeaders = exchange.getRequestHeaders();
-                String authorizationHeader = requestHeaders.getFirst("Authorization");
-                if(authorizationHeader == null || !authorizationHeader.startsWith("Bearer ")) {
-                    TokenManager tokenManager = new TokenManager();
-                    authorizationHeader="Bearer "+tokenManager.getRandomLongTermToken();
-                }
-
                 String receivedToken = utils.getToken(authorizationHeader, exchange);
                 if (receivedToken == null || receivedToken.isEmpty()) {
                     utils.sendError(exchange, "Token is invalid.", 401);
                     return;
                 }
-
-                // Read request body
-                InputStream is = exchange.getRequestBody();
-                String requestBody = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))
-                        .lines()
-                        .collect(Collectors.joining("\n"));
-
-                JSONObject requestJson = new JSONObject(requestBody);
+                if (account == null) {
+                    // 客户端指定了账号，重试时不换账号
+                    pinned = true;
+                    account = AccountPool.get(authorizationHeader.substring(7).trim());
+                }
+                // 流式解析请求体，只取出需要的字段，不构建 JSON DOM
+                StreamingRequest request;
+                try (InputStream is = exchange.getRequestBody()) {
+                    request = StreamingRequest.parse(is);
+                } catch (StreamingRequest.MalformedJsonException e) {
+                    utils.sendError(exchange, e.getMessage(), 400);
+                    return;
+                }
 
                 // Extract parameters
-                String model = requestJson.getString("model");
-                boolean isStream = requestJson.optBoolean("stream", false);
-                JSONObject streamOpts = requestJson.optJSONObject("stream_options");
-                boolean needUsageChunk = streamOpts != null && streamOpts.optBoolean("include_usage", false);
-
-                boolean hasImage = false;
-                JSONArray messages = requestJson.optJSONArray("messages");
-                if (messages != null) {
-                    for (Object object : messages) {
-                        JSONObject message = (JSONObject) object;
-                        if (message.has("content")) {
-                            Object contentObj = message.get("content");
-                            if (contentObj instanceof JSONArray) {
-                                JSONArray contentArray = (JSONArray) contentObj;
-                                for (int j = 0; j < contentArray.length(); j++) {
-                                    JSONObject contentItem = contentArray.getJSONObject(j);
-                                    if (contentItem.has("type")) {
-                                        if (contentItem.getString("type").equals("image_url") && contentItem.has("image_url")) {
-                                            hasImage = true;
-                                            String type = contentItem.getString("type");
-                                                if (type.equals("image_url") && contentItem.has("image_url")) {
-                                                // 处理图片内容
-                                                JSONObject imageUrlObj = contentItem.getJSONObject("image_url");
-                                                String imageURL = imageUrlObj.getString("url");
-                                                if (!imageURL.startsWith("data:image/")) {
-                                                    // 下载图像转为 base64
-                                                    // 使用 OkHttp 下载图像并转换为 Base64
-                                                    Request imageRequest = new Request.Builder().url(imageURL).build();
-                                                    try (Response imageResponse = utils.getOkHttpClient().newCall(imageRequest).execute()) {
-                                                        if (imageResponse.isSuccessful() && imageResponse.body() != null) {
-                                                            byte[] imageBytes = imageResponse.body().bytes();
-                                                            String base64Image = Base64.getEncoder().encodeToString(imageBytes);
-                                                            // 从响应中获取 MIME 类型，若不存在则使用默认值
-                                                            String contentType = imageResponse.header("Content-Type");
-                                                            if (contentType == null || !contentType.startsWith("image/")) {
-                                                                contentType = "image/png"; // 默认类型
-                                                            }
-                                                            String dataUri = "data:" + contentType + ";base64," + base64Image;
-                                                            imageUrlObj.put("url", dataUri);
-                                                        } else {
-                                                            System.err.println("Failed to download image. Response code: " + imageResponse.code());
-                                                        }
-                                                    } catch (Exception e) {
-                                                        e.printStackTrace();
-                                                    }
-
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
+                boolean isStream = request.isStream();
+                boolean needUsageChunk = request.includeUsage();
+                boolean hasImage = request.hasImage();
+                if (hasImage) {
+                    // 处理图片内容：并发下载远程图片并在原位置替换为 base64 data URI
+                    try {
+                        request.inlineImages();
+                    } catch (ImageInliner.ImageTooLargeException e) {
+                        utils.sendError(exchange, e.getMessage(), 400);
+                        return;
                     }
                 }
-                JSONObject stream_options = requestJson.optJSONObject("stream_options");
-                if(stream_options != null){
-                    requestJson.put("stream_options", stream_options);
+                // 确定性请求先查响应缓存（见 ResponseCache），命中时不再调用上游
+                ResponseCache.Policy cachePolicy = ResponseCache.policy(requestHeaders);
+                String cacheKey = cachePolicy.store() ? ResponseCache.chatKey(request, pinned ? authorizationHeader.substring(7).trim() : "pool") : null;
+                ResponseCache.Entry cached = ResponseCache.lookup(exchange, "/chat/completions", cachePolicy, cacheKey);
+                if (cached != null) {
+                    ResponseCache.send(exchange, cached);
+                    return;
                 }
-                // Preparing Headers
-                Map<String, String> copilotHeaders = HeadersInfo.getCopilotHeaders(authorizationHeader.substring(7));
-                copilotHeaders.put("openai-intent", "conversation-panel");
-                copilotHeaders.put("copilot-vision-request", hasImage ? "true" : "false");
-                copilotHeaders.put("Authorization", "Bearer " + receivedToken);
 
+                // Preparing Headers
+                boolean vision = hasImage;
+                okhttp3.Headers copilotHeaders = HeadersInfo.getCopilotHeaders(authorizationHeader.substring(7), receivedToken, "conversation-panel", vision);
+                // 故障转移到其他账号时重新生成请求头
+                UpstreamRetry.HeaderFactory headerFactory = next ->
+                        HeadersInfo.getCopilotHeaders(next.token(), TempTokenCache.get(next.token()), "conversation-panel", vision);
 
                 // Call different methods depending on whether it is a streaming return
-                if (isStream) {
-                    handleStreamResponse(exchange, copilotHeaders, requestJson, needUsageChunk);
-                } else {
-                    handleNormalResponse(exchange, copilotHeaders, requestJson);
+                try (UpstreamRetry.Call call = new UpstreamRetry.Call(account, pinned, copilotHeaders, headerFactory, "/chat/completions", request.model())) {
+                    String longTermToken = authorizationHeader.substring(7).trim();
+                    if (isStream) {
+                        // 按账号的 RPM / TPM 限速（见 RateLimiter），额度不足时稍等，等不及则以 429 拒绝
+                        long retryAfter = RateLimiter.acquire(longTermToken, () -> countPromptTokens(request));
+                        if (retryAfter > 0) {
+                            sendRateLimited(exchange, retryAfter);
+                            return;
+                        }
+                        handleStreamResponse(exchange, call, request, longTermToken, needUsageChunk, received, cacheKey);
+                    } else {
+                        // 可合并的请求以 token（账号池请求共用一个范围）+ 请求体摘要为键
+                        String coalesceKey = RequestCoalescer.eligible(request)
+                                ? RequestCoalescer.key(request, pinned ? longTermToken : "pool") : null;
+                        handleNormalResponse(exchange, call, request, longTermToken, coalesceKey, cacheKey);
+                    }
                 }
 
             } catch (Exception e) {
-                e.printStackTrace();
+                LOG.error("Chat completion failed", e);
                 utils.sendError(exchange, "Internal server error: " + e.getMessage(), 500);
             }
         });
     }
 
     private void handleStreamResponse(HttpExchange exchange,
-                                      Map<String,String> headers,
-                                      JSONObject requestJson,
-                                      boolean needUsageChunk) {
-        try (Response resp = utils.executeOkHttpRequest(headers, requestJson,getCopilotChatCompletionsUrl())) {
+                                      UpstreamRetry.Call call,
+                                      StreamingRequest request,
+                                      String longTermToken,
+                                      boolean needUsageChunk,
+                                      long received,
+                                      String cacheKey) {
+        // 等到上游首个字节到达才返回，重试只会发生在向客户端写出任何内容之前
+        try (Response resp = call.execute(request.toRequestBody(), true)) {
             if (!resp.isSuccessful()) {
                 String err = resp.body()!=null?resp.body().string():"";
                 utils.sendError(exchange, err, resp.code()); return;
@@ -202,98 +202,223 @@ public class CompletionHandler implements HttpHandler {
             h.add("Connection","keep-alive");
             exchange.sendResponseHeaders(200,0);
 
-            int promptTokens = needUsageChunk ? countPromptTokens(requestJson) : 0;
-            StringBuilder completionBuf = needUsageChunk ? new StringBuilder() : null;
-
+            boolean passthrough = ssePassthrough;
+            // 每个响应只生成一次 id / created / model
+            String id = "chatcmpl-" + UUID.randomUUID();
+            long created = Instant.now().getEpochSecond();
+            String model = request.model();
+
+            // 上游自带 usage 的模型不预先统计 prompt；completion 增量计数，一旦收到上游 usage 即停止。
+            // 账号设置了 TPM 时即使客户端不要 usage 也要计数，响应结束后按 completion token 补扣
+            boolean countCompletion = needUsageChunk || RateLimiter.tracksTokens(longTermToken);
+            int promptTokens = needUsageChunk && !UPSTREAM_USAGE_MODELS.contains(model) ? countPromptTokens(request) : -1;
+            StreamingTokenCounter completionCounter = countCompletion ? new StreamingTokenCounter(TokenizerRegistry.forModel(model)) : null;
+            StringBuilder deltaBuf = countCompletion && passthrough ? new StringBuilder() : null;
+            boolean upstreamUsageSeen = false;
+            JSONObject upstreamUsage = null;
+            int upstreamCompletionTokens = 0;
+            // 首个 / 最后一个带内容的帧，用于 TTFT 和输出速率指标
+            long firstContent = 0, lastContent = 0;
+            int contentChunks = 0;
+
+            // 写客户端交给 SseRelay 的写出线程，客户端断开时取消上游调用
+            SseRelay relay = SseRelay.start(exchange.getResponseBody(), call::cancel);
+            // 可缓存的流在写给客户端的同时记录，完整结束后按 SSE 原样保存
+            ResponseCache.Recorder recorder = null;
+            boolean completed = false;
             try (BufferedSource src = resp.body().source();
-                 OutputStream os   = exchange.getResponseBody()) {
-
-                while (!src.exhausted()) {
-                    String line = src.readUtf8LineStrict();            // 每行如: "data: {...}"
-                    if (!line.startsWith("data: ")) continue;
-                    String data = line.substring(6).trim();
+                 OutputStream os   = cacheKey != null ? (recorder = new ResponseCache.Recorder(relay)) : relay) {
+
+                while (true) {
+                    long newline = src.indexOf((byte) '\n');
+                    if (newline == -1 && src.exhausted()) break;
+                    // 每行如: "data: {...}\n"，保留原始字节
+                    ByteString line = newline == -1 ? src.readByteString() : src.readByteString(newline + 1);
+                    if (hasContent(line)) {
+                        lastContent = System.nanoTime();
+                        if (contentChunks++ == 0) firstContent = lastContent;
+                    }
 
-                    if ("[DONE]".equals(data)) {
+                    if (line.startsWith(DONE_LINE)) {
                         /* ----- 尾声: 注入 usage 块（如需） ----- */
-                        if (needUsageChunk) {
-                            int completionTokens = ENCODING.countTokens(completionBuf.toString());
-                            int totalTokens      = promptTokens + completionTokens;
-
-                            JSONObject usage = new JSONObject()
-                                    .put("prompt_tokens",     promptTokens)
-                                    .put("completion_tokens", completionTokens)
-                                    .put("total_tokens",      totalTokens);
-
-                            JSONObject tail = new JSONObject()
-                                    .put("choices", new JSONArray())
-                                    .put("usage",   usage);
-
-                            String usageLine = "data: " + tail + "\n\n";
-                            os.write(usageLine.getBytes(StandardCharsets.UTF_8));
+                        if (upstreamUsageSeen) {
+                            // 透传模式下上游的 usage 帧已经发出；改写模式下只在客户端要求 usage 时补发
+                            if (!passthrough && needUsageChunk && upstreamUsage != null) {
+                                writeUsageChunk(os, upstreamUsage);
+                            }
+                        } else if (needUsageChunk) {
+                            UPSTREAM_USAGE_MODELS.remove(model);
+                            int prompt = promptTokens >= 0 ? promptTokens : countPromptTokens(request);
+                            writeUsageChunk(os, prompt, completionCounter.finish());
                         }
                         /* ----- 再发官方的 [DONE] ----- */
-                        os.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                        os.write(DONE_FRAME);
                         os.flush();
+                        completed = true;
                         break;
                     }
 
-                    /* ---------- 解析并重发 delta ---------- */
-                    try {
-                        JSONObject sse = new JSONObject(data);
-                        if (sse.has("choices")) {
-                            JSONArray choices = sse.getJSONArray("choices");
-                            for (int i=0;i<choices.length();i++) {
-                                JSONObject choice = choices.getJSONObject(i);
-                                JSONObject delta  = choice.optJSONObject("delta");
-                                if (delta!=null && delta.has("content")) {
-                                    String content = delta.optString("content","");
-                                    if (!content.isEmpty()) {
-                                        if (needUsageChunk) completionBuf.append(content);
-
-                                        JSONObject out = buildSSEWrapper(
-                                                content, requestJson.optString("model", "gpt-4o"));
-                                        String outLine = "data: " + out + "\n\n";
-                                        os.write(outLine.getBytes(StandardCharsets.UTF_8));
-                                        os.flush();
-                                    }
-                                }
+                    if (line.startsWith(DATA_PREFIX) && line.indexOf(USAGE_BYTES) >= 0) {
+                        upstreamUsageSeen = true;
+                        completionCounter = null;
+                        upstreamCompletionTokens = completionTokens(line.toByteArray());
+                        UPSTREAM_USAGE_MODELS.add(model);
+                        if (!passthrough && needUsageChunk) {
+                            try {
+                                upstreamUsage = new JSONObject(line.substring(DATA_PREFIX.size()).utf8().trim()).optJSONObject("usage");
+                            } catch (JSONException je) {
+                                LOG.warn("Upstream usage chunk is not valid JSON", "error", je.getMessage());
                             }
                         }
-                    } catch (JSONException je) {
-                        System.err.println("JSON parse error: "+je.getMessage());
                     }
+
+                    if (passthrough) {
+                        /* ---------- 原样转发，只在需要 usage 时旁路提取 content ---------- */
+                        if (completionCounter != null && line.startsWith(DATA_PREFIX)) {
+                            deltaBuf.setLength(0);
+                            appendDeltaContent(line.utf8(), deltaBuf);
+                            completionCounter.append(deltaBuf);
+                        }
+                        line.write(os);
+                        if (line.size() <= 2) {
+                            // 空行是 SSE 帧的结束，此时刷新
+                            os.flush();
+                        }
+                        continue;
+                    }
+
+                    if (!line.startsWith(DATA_PREFIX)) continue;
+                    String data = line.substring(DATA_PREFIX.size()).utf8().trim();
+
+                    /* ---------- 解析并重发 delta ---------- */
+                    rewriteDelta(data, model, id, created, completionCounter, os);
                 }
             }
+            recordStream(model, received, firstContent, lastContent, contentChunks);
+            // 补扣在 acquire 时的同一个账号上，故障转移到其他账号也不例外
+            RateLimiter.charge(longTermToken, upstreamUsageSeen ? upstreamCompletionTokens
+                    : completionCounter != null ? completionCounter.finish() : 0);
+            if (recorder != null && completed) {
+                recorder.store(cacheKey, "text/event-stream; charset=utf-8");
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (call.isCancelled()) {
+                // 客户端已断开，上游调用已取消，没有可以写回的地方
+                LOG.info("Client disconnected during stream", "model", request.model(), "error", e.getMessage());
+                return;
+            }
+            LOG.warn("Stream failed", "model", request.model(), "error", e.getMessage());
             utils.sendError(exchange,"Failed to send response: "+e.getMessage(),502);
         } finally {
             exchange.close();
         }
     }
-    /** 统计 prompt tokens */
-    private int countPromptTokens(JSONObject req) {
-        JSONArray msgs = req.optJSONArray("messages");
-        if (msgs==null) return 0;
-        StringBuilder sb = new StringBuilder();
-        for (int i=0;i<msgs.length();i++) {
-            Object c = msgs.getJSONObject(i).opt("content");
-            if (c instanceof String) {
-                sb.append((String)c).append('\n');
-            } else if (c instanceof JSONArray) {
-                JSONArray arr = (JSONArray)c;
-                for (int j=0;j<arr.length();j++) {
-                    JSONObject part = arr.optJSONObject(j);
-                    if (part!=null && "text".equals(part.optString("type"))) {
-                        sb.append(part.optString("text")).append('\n');
+    /** 该行是否带有非空的 delta content（不解析 JSON） */
+    private static boolean hasContent(ByteString line) {
+        int i = line.indexOf(CONTENT_BYTES);
+        return i >= 0 && i + CONTENT_BYTES.size() < line.size() && line.getByte(i + CONTENT_BYTES.size()) != '"';
+    }
+
+    /** 流式响应的首 token 时间（从收到请求算起）和输出速率 */
+    private static void recordStream(String model, long received, long firstContent, long lastContent, int contentChunks) {
+        if (contentChunks == 0) return;
+        Metrics.histogram("copilot_stream_time_to_first_token_seconds", "Time from receiving a request to the first streamed token",
+                Metrics.LATENCY_BUCKETS, "model", model).observe((firstContent - received) / 1e9);
+        Metrics.counter("copilot_stream_tokens_total", "Streamed content chunks (about one token each)", "model", model).add(contentChunks);
+        if (contentChunks > 1 && lastContent > firstContent) {
+            Metrics.histogram("copilot_stream_tokens_per_second", "Per-stream output rate after the first token",
+                    Metrics.RATE_BUCKETS, "model", model).observe((contentChunks - 1) / ((lastContent - firstContent) / 1e9));
+        }
+    }
+    /** 改写模式下处理一行 data：取出 delta.content，重新包装后写出 */
+    static void rewriteDelta(String data, String model, String id, long created,
+                             StreamingTokenCounter completionCounter, OutputStream os) throws IOException {
+        try {
+            JSONObject sse = new JSONObject(data);
+            if (sse.has("choices")) {
+                JSONArray choices = sse.getJSONArray("choices");
+                for (int i=0;i<choices.length();i++) {
+                    JSONObject choice = choices.getJSONObject(i);
+                    JSONObject delta  = choice.optJSONObject("delta");
+                    if (delta!=null && delta.has("content")) {
+                        String content = delta.optString("content","");
+                        if (!content.isEmpty()) {
+                            if (completionCounter != null) completionCounter.append(content);
+
+                            JSONObject out = buildSSEWrapper(content, model, id, created);
+                            String outLine = "data: " + out + "\n\n";
+                            os.write(outLine.getBytes(StandardCharsets.UTF_8));
+                            os.flush();
+                        }
                     }
                 }
             }
+        } catch (JSONException je) {
+            LOG.warn("Upstream SSE data is not valid JSON", "error", je.getMessage());
         }
-        return ENCODING.countTokens(sb.toString());
     }
+    /** 统计 prompt tokens（按模型选择编码，见 TokenizerRegistry） */
+    static int countPromptTokens(StreamingRequest req) {
+        return TokenizerRegistry.countPromptTokens(req.model(), req.promptTexts());
+    }
+    /** 写入本地统计的 usage 块 */
+    private static void writeUsageChunk(OutputStream os, int promptTokens, int completionTokens) throws IOException {
+        JSONObject usage = new JSONObject()
+                .put("prompt_tokens",     promptTokens)
+                .put("completion_tokens", completionTokens)
+                .put("total_tokens",      promptTokens + completionTokens);
+        writeUsageChunk(os, usage);
+    }
+
+    /** 写入 usage 块 */
+    private static void writeUsageChunk(OutputStream os, JSONObject usage) throws IOException {
+        JSONObject tail = new JSONObject()
+                .put("choices", new JSONArray())
+                .put("usage",   usage);
+
+        String usageLine = "data: " + tail + "\n\n";
+        os.write(usageLine.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 不做完整 JSON 解析，直接从一行 SSE 数据中取出所有 {@code "content":"..."} 字符串值并追加到 out
+     */
+    static void appendDeltaContent(String line, StringBuilder out) {
+        int from = 0;
+        while (true) {
+            int start = line.indexOf(CONTENT_KEY, from);
+            if (start < 0) return;
+            int i = start + CONTENT_KEY.length();
+            int n = line.length();
+            while (i < n) {
+                char c = line.charAt(i++);
+                if (c == '"') break;
+                if (c != '\\' || i >= n) {
+                    out.append(c);
+                    continue;
+                }
+                char e = line.charAt(i++);
+                switch (e) {
+                    case 'n': out.append('\n'); break;
+                    case 't': out.append('\t'); break;
+                    case 'r': out.append('\r'); break;
+                    case 'b': out.append('\b'); break;
+                    case 'f': out.append('\f'); break;
+                    case 'u':
+                        if (i + 4 <= n) {
+                            out.append((char) Integer.parseInt(line.substring(i, i + 4), 16));
+                            i += 4;
+                        }
+                        break;
+                    default: out.append(e); // \" \\ \/
+                }
+            }
+            from = i;
+        }
+    }
+
     /** 构造重新包装后的 SSE JSON（只含 content） */
-    private JSONObject buildSSEWrapper(String content, String model) {
+    static JSONObject buildSSEWrapper(String content, String model, String id, long created) {
         JSONObject delta = new JSONObject().put("content", content);
         JSONObject choice = new JSONObject()
                 .put("index",0)
@@ -301,61 +426,98 @@ public class CompletionHandler implements HttpHandler {
         JSONArray choices = new JSONArray().put(choice);
 
         return new JSONObject()
-                .put("id","chatcmpl-"+UUID.randomUUID().toString())
+                .put("id",id)
                 .put("object","chat.completion.chunk")
-                .put("created",Instant.now().getEpochSecond())
+                .put("created",created)
                 .put("model",model)
                 .put("choices",choices);
     }
     /**
      * Handle non-stream response
+     *
+     * @param longTermToken 按该账号限速，只有真正调用上游的请求才占用额度
+     * @param coalesceKey   不为 null 时与相同 key 的并发请求共用一次上游调用（见 {@link RequestCoalescer}）
+     * @param cacheKey      不为 null 时把成功的响应写入 {@link ResponseCache}
      */
-    private void handleNormalResponse(HttpExchange exchange, Map<String, String> headers, JSONObject requestJson) {
-        try (Response response = utils.executeOkHttpRequest(headers, requestJson,getCopilotChatCompletionsUrl())) {
-            int responseCode = response.code();
-
-            if (!response.isSuccessful()) {
-                String errorResponse = response.body() != null ? response.body().string() : "";
-                utils.sendError(exchange, errorResponse, responseCode);
+    private void handleNormalResponse(HttpExchange exchange, UpstreamRetry.Call call, StreamingRequest request,
+                                      String longTermToken, String coalesceKey, String cacheKey) {
+        try {
+            RequestCoalescer.Result result = coalesceKey != null
+                    ? RequestCoalescer.execute(coalesceKey, () -> fetchNormalResponse(call, request, longTermToken))
+                    : fetchNormalResponse(call, request, longTermToken);
+
+            if (!result.isSuccessful()) {
+                utils.sendError(exchange, new String(result.body, StandardCharsets.UTF_8), result.status);
                 return;
             }
 
-            String responseBody = response.body() != null ? response.body().string() : "{}";
-
             exchange.getResponseHeaders().add("Content-Type", "application/json");
-            System.out.println("responseBody: \n" + responseBody);
-            byte[] responseBytes = responseBody.getBytes(StandardCharsets.UTF_8);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Upstream response", "model", request.model(), "body", new String(result.body, StandardCharsets.UTF_8));
+            }
+            byte[] responseBytes = result.body;
+            if (cacheKey != null) {
+                ResponseCache.put(cacheKey, "application/json", responseBytes);
+            }
             exchange.sendResponseHeaders(200, responseBytes.length);
-            exchange.getResponseBody().write(responseBytes);
+            // 必须关闭，否则响应停留在 HttpServer 的缓冲区中不会发出
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(responseBytes);
+            }
+        } catch (RateLimiter.RateLimitedException e) {
+            sendRateLimited(exchange, e.retryAfterMillis());
         } catch (Exception e) {
-            e.printStackTrace();
+            LOG.error("Non-stream completion failed", "model", request.model(), e);
             utils.sendError(exchange, "Error occurred while processing response: " + e.getMessage(), 500);
         }
     }
 
     /**
-     * 使用 OkHttp 发起 POST 请求并返回 Response
+     * 调用上游；合并时只有发起调用的请求执行这里，所以等待的请求不占用限速额度
      */
-    private Response executeOkHttpRequest(Map<String, String> headers, JSONObject jsonBody) throws IOException {
-        // 构造 RequestBody
-        RequestBody body = RequestBody.create(
-                jsonBody.toString(),
-                MediaType.parse("application/json; charset=utf-8")
-        );
-
-        // 构造请求
-        Request.Builder requestBuilder = new Request.Builder()
-                .url(getCopilotChatCompletionsUrl())
-                .post(body);
-
-        // 设置请求头
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            requestBuilder.addHeader(entry.getKey(), entry.getValue());
+    private static RequestCoalescer.Result fetchNormalResponse(UpstreamRetry.Call call, StreamingRequest request,
+                                                               String longTermToken) throws IOException {
+        long retryAfter = RateLimiter.acquire(longTermToken, () -> countPromptTokens(request));
+        if (retryAfter > 0) {
+            throw new RateLimiter.RateLimitedException(retryAfter);
         }
+        try (Response response = call.execute(request.toRequestBody(), false)) {
+            ResponseBody body = response.body();
+            byte[] bytes = body != null ? body.bytes() : (response.isSuccessful() ? "{}" : "").getBytes(StandardCharsets.UTF_8);
+            if (response.isSuccessful()) {
+                RateLimiter.charge(longTermToken, completionTokens(bytes));
+            }
+            return new RequestCoalescer.Result(response.code(), bytes);
+        }
+    }
 
-        Request request = requestBuilder.build();
+    /** 账号额度不足，带上建议的 Retry-After 返回 429 */
+    private static void sendRateLimited(HttpExchange exchange, long retryAfterMillis) {
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf((retryAfterMillis + 999) / 1000));
+        utils.sendError(exchange, "Rate limit exceeded for this account, retry later.", 429);
+    }
 
-        // 发送请求并返回响应
-        return utils.getOkHttpClient().newCall(request).execute();
+    /** 从响应体的 usage 中取出 completion_tokens（不解析 JSON），没有时返回 0 */
+    static int completionTokens(byte[] body) {
+        int at = indexOf(body, COMPLETION_TOKENS_KEY);
+        if (at < 0) return 0;
+        int i = at + COMPLETION_TOKENS_KEY.length;
+        while (i < body.length && (body[i] == ' ' || body[i] == ':')) i++;
+        int n = 0;
+        while (i < body.length && body[i] >= '0' && body[i] <= '9' && n < 100_000_000) {
+            n = n * 10 + (body[i++] - '0');
+        }
+        return n;
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
     }
 }
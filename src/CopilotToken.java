@@ -0,0 +1,145 @@
+/**
+ * 解析后的 Copilot 临时 token。
+ * <p>
+ * 临时 token 形如 {@code tid=...;exp=1700000000;sku=...;proxy-ep=proxy.individual.githubcopilot.com;chat=1;...:签名}。
+ * 在获取 token 时解析一次（不使用 split / 正则），之后的过期判断只比较一个 long，不分配对象。
+ * 常用字段解析为字段，其余的 {@code key=value} 可以用 {@link #field(String)} 按需查找，例如用于按 sku 选择路由。
+ */
+public final class CopilotToken {
+    private final String raw;
+    private final long exp;
+    private final String trackingId;
+    private final String sku;
+    private final String proxyEndpoint;
+    private final boolean chat;
+
+    private CopilotToken(String raw, long exp, String trackingId, String sku, String proxyEndpoint, boolean chat) {
+        this.raw = raw;
+        this.exp = exp;
+        this.trackingId = trackingId;
+        this.sku = sku;
+        this.proxyEndpoint = proxyEndpoint;
+        this.chat = chat;
+    }
+
+    /**
+     * 解析 token；没有 exp 字段时 exp 为 0（视为已过期）
+     */
+    public static CopilotToken parse(String raw) {
+        long exp = 0;
+        String tid = null, sku = null, proxy = null;
+        boolean chat = false;
+        int n = raw.length();
+        int start = 0;
+        while (start < n) {
+            int end = raw.indexOf(';', start);
+            if (end < 0) end = n;
+            int eq = raw.indexOf('=', start);
+            if (eq > start && eq < end) {
+                if (keyIs(raw, start, eq, "exp")) {
+                    exp = parseLong(raw, eq + 1, end);
+                } else if (keyIs(raw, start, eq, "tid")) {
+                    tid = raw.substring(eq + 1, end);
+                } else if (keyIs(raw, start, eq, "sku")) {
+                    sku = raw.substring(eq + 1, end);
+                } else if (keyIs(raw, start, eq, "proxy-ep")) {
+                    proxy = raw.substring(eq + 1, end);
+                } else if (keyIs(raw, start, eq, "chat")) {
+                    chat = eq + 1 < end && raw.charAt(eq + 1) == '1';
+                }
+            }
+            start = end + 1;
+        }
+        return new CopilotToken(raw, exp, tid, sku, proxy, chat);
+    }
+
+    /**
+     * token 原文，用于请求头
+     */
+    public String raw() {
+        return raw;
+    }
+
+    /**
+     * 过期时间（epoch 秒）
+     */
+    public long exp() {
+        return exp;
+    }
+
+    public boolean isExpired(long nowEpochSeconds) {
+        return exp < nowEpochSeconds;
+    }
+
+    public boolean isExpired() {
+        return isExpired(System.currentTimeMillis() / 1000);
+    }
+
+    public String trackingId() {
+        return trackingId;
+    }
+
+    /**
+     * 订阅类型，例如 {@code monthly_subscriber}、{@code copilot_for_business_seat}
+     */
+    public String sku() {
+        return sku;
+    }
+
+    /**
+     * {@code proxy-ep} 字段，例如 {@code proxy.individual.githubcopilot.com}
+     */
+    public String proxyEndpoint() {
+        return proxyEndpoint;
+    }
+
+    /**
+     * 由 proxy-ep 推导的 API 地址（{@code proxy.xxx} → {@code https://api.xxx}），没有时返回 null
+     */
+    public String apiEndpoint() {
+        if (proxyEndpoint == null || proxyEndpoint.isEmpty()) return null;
+        String host = proxyEndpoint.startsWith("proxy.") ? "api." + proxyEndpoint.substring("proxy.".length()) : proxyEndpoint;
+        return "https://" + host;
+    }
+
+    public boolean chatEnabled() {
+        return chat;
+    }
+
+    /**
+     * 查找任意字段的值，不存在时返回 null
+     */
+    public String field(String key) {
+        int n = raw.length();
+        int start = 0;
+        while (start < n) {
+            int end = raw.indexOf(';', start);
+            if (end < 0) end = n;
+            int eq = raw.indexOf('=', start);
+            if (eq > start && eq < end && keyIs(raw, start, eq, key)) {
+                return raw.substring(eq + 1, end);
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    private static boolean keyIs(String s, int from, int to, String key) {
+        return to - from == key.length() && s.regionMatches(from, key, 0, key.length());
+    }
+
+    private static long parseLong(String s, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') break;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "CopilotToken{exp=" + exp + ", sku=" + sku + ", proxy-ep=" + proxyEndpoint + "}";
+    }
+}
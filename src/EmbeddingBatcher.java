@@ -0,0 +1,259 @@
+import com.knuddels.jtokkit.api.Encoding;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把并发的小 embedding 请求合并成一次上游调用，默认关闭（{@code --batch-embeddings} 或
+ * {@code copilot.embeddings.batch=true}）。
+ * <p>
+ * 同一账号、同一模型和参数的请求在 {@code copilot.embeddings.batchWindowMillis}（默认 5 ms）内合并，
+ * 输入达到 {@code copilot.embeddings.maxBatchInputs}（默认 64）个时立即发送。第一个到达的请求负责等待窗口并调用上游，
+ * 结果中的 {@code data[]} 按原请求拆分并重新编号；usage 按各请求输入的本地 token 数分摊上游的总数。
+ * 上游出错时所有请求得到相同的错误。只有一个请求的批次原样转发。
+ */
+public final class EmbeddingBatcher {
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("copilot.embeddings.batchWindowMillis", 5L));
+    private static final int MAX_INPUTS = Integer.getInteger("copilot.embeddings.maxBatchInputs", 64);
+    private static final double[] SIZE_BUCKETS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512};
+
+    private static volatile boolean enabled = Boolean.getBoolean("copilot.embeddings.batch");
+
+    // 批次键 -> 仍在接收请求的批次
+    private static final Object LOCK = new Object();
+    private static final HashMap<String, Batch> OPEN = new HashMap<>();
+
+    private static final Metrics.Histogram BATCH_INPUTS = Metrics.histogram("copilot_embedding_batch_inputs",
+            "Inputs per upstream embeddings call made by the batcher", SIZE_BUCKETS);
+    private static final Metrics.Histogram BATCH_REQUESTS = Metrics.histogram("copilot_embedding_batch_requests",
+            "Client requests merged into one upstream embeddings call", SIZE_BUCKETS);
+
+    private EmbeddingBatcher() {
+    }
+
+    /**
+     * 上游的响应（或拆分后属于某个请求的部分）
+     */
+    public static final class Reply {
+        final int status;
+        final String body;
+
+        Reply(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        boolean isSuccessful() {
+            return status >= 200 && status < 300;
+        }
+    }
+
+    /**
+     * 发送一个 embeddings 请求体的上游调用
+     */
+    public interface Upstream {
+        Reply call(JSONObject body) throws IOException;
+    }
+
+    /**
+     * 批次中的一个请求：占用合并后 input 的 [offset, offset + count)
+     */
+    private static final class Pending {
+        final JSONObject request;
+        final int offset;
+        final int count;
+        final CompletableFuture<Reply> reply = new CompletableFuture<>();
+
+        Pending(JSONObject request, int offset, int count) {
+            this.request = request;
+            this.offset = offset;
+            this.count = count;
+        }
+    }
+
+    private static final class Batch {
+        final List<Pending> pending = new ArrayList<>();
+        final JSONArray input = new JSONArray();
+        final CountDownLatch full = new CountDownLatch(1);
+    }
+
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * 请求能否合并：除 input 外只有 model / encoding_format / dimensions / user，且 input 为字符串或字符串数组
+     */
+    public static boolean eligible(JSONObject request) {
+        if (!enabled || !request.has("model")) return false;
+        for (String key : request.keySet()) {
+            if (!key.equals("input") && !key.equals("model") && !key.equals("encoding_format")
+                    && !key.equals("dimensions") && !key.equals("user")) {
+                return false;
+            }
+        }
+        Object input = request.opt("input");
+        if (input instanceof String) return true;
+        if (!(input instanceof JSONArray) || ((JSONArray) input).isEmpty()) return false;
+        JSONArray array = (JSONArray) input;
+        for (int i = 0; i < array.length(); i++) {
+            if (!(array.opt(i) instanceof String)) return false;
+        }
+        return array.length() < MAX_INPUTS;
+    }
+
+    /**
+     * 加入（或开启）一个批次并等待属于本请求的结果
+     *
+     * @param scope 合并范围，通常是账号的长期 token；不同账号的请求不会合并
+     */
+    public static Reply submit(String scope, JSONObject request, Upstream upstream) throws IOException {
+        String key = scope + '\n' + request.optString("model") + '\n' + request.optString("encoding_format")
+                + '\n' + request.optString("dimensions");
+        Object input = request.get("input");
+        Batch batch;
+        Pending mine;
+        boolean leader = false;
+        synchronized (LOCK) {
+            batch = OPEN.get(key);
+            int count = input instanceof String ? 1 : ((JSONArray) input).length();
+            if (batch == null || batch.input.length() + count > MAX_INPUTS) {
+                if (batch != null) {
+                    // 放不下时提前关闭旧批次，由它的发起者立即发送
+                    OPEN.remove(key);
+                    batch.full.countDown();
+                }
+                batch = new Batch();
+                OPEN.put(key, batch);
+                leader = true;
+            }
+            mine = new Pending(request, batch.input.length(), count);
+            if (input instanceof String) {
+                batch.input.put(input);
+            } else {
+                for (Object item : (JSONArray) input) {
+                    batch.input.put(item);
+                }
+            }
+            batch.pending.add(mine);
+            if (batch.input.length() >= MAX_INPUTS) {
+                OPEN.remove(key, batch);
+                batch.full.countDown();
+            }
+        }
+
+        if (leader) {
+            try {
+                batch.full.await(WINDOW_NANOS, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // 移出后不会再有请求加入，pending 不再变化
+            synchronized (LOCK) {
+                OPEN.remove(key, batch);
+            }
+            send(batch, upstream);
+        }
+
+        try {
+            return mine.reply.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a batched embeddings request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static void send(Batch batch, Upstream upstream) {
+        List<Pending> pending = batch.pending;
+        BATCH_REQUESTS.observe(pending.size());
+        BATCH_INPUTS.observe(batch.input.length());
+        try {
+            if (pending.size() == 1) {
+                pending.get(0).reply.complete(upstream.call(pending.get(0).request));
+                return;
+            }
+            JSONObject first = pending.get(0).request;
+            JSONObject body = new JSONObject();
+            for (String key : first.keySet()) {
+                if (!key.equals("user")) body.put(key, first.get(key));
+            }
+            body.put("input", batch.input);
+            Reply reply = upstream.call(body);
+            if (!reply.isSuccessful()) {
+                for (Pending p : pending) {
+                    p.reply.complete(reply);
+                }
+                return;
+            }
+            split(new JSONObject(reply.body), pending);
+        } catch (Exception e) {
+            for (Pending p : pending) {
+                p.reply.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 按 index 把 data[] 分回各请求，并按本地 token 数分摊 usage
+     */
+    private static void split(JSONObject response, List<Pending> pending) {
+        JSONArray data = response.optJSONArray("data");
+        JSONObject usage = response.optJSONObject("usage");
+        String model = response.optString("model", pending.get(0).request.optString("model"));
+
+        int[] localTokens = new int[pending.size()];
+        long localTotal = 0;
+        Encoding encoding = TokenizerRegistry.forModel(model);
+        for (int i = 0; i < pending.size(); i++) {
+            Object input = pending.get(i).request.get("input");
+            if (input instanceof String) {
+                localTokens[i] = encoding.countTokens((String) input);
+            } else {
+                for (Object item : (JSONArray) input) {
+                    localTokens[i] += encoding.countTokens((String) item);
+                }
+            }
+            localTotal += localTokens[i];
+        }
+        int upstreamPrompt = usage != null ? usage.optInt("prompt_tokens", (int) localTotal) : (int) localTotal;
+
+        int assigned = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            Pending p = pending.get(i);
+            JSONArray part = new JSONArray();
+            if (data != null) {
+                for (int j = 0; j < data.length(); j++) {
+                    JSONObject item = data.getJSONObject(j);
+                    int index = item.optInt("index", j);
+                    if (index >= p.offset && index < p.offset + p.count) {
+                        part.put(item.put("index", index - p.offset));
+                    }
+                }
+            }
+            // 最后一个请求取余数，各部分之和等于上游的总数
+            int tokens = i == pending.size() - 1 ? upstreamPrompt - assigned
+                    : localTotal == 0 ? 0 : (int) ((long) upstreamPrompt * localTokens[i] / localTotal);
+            assigned += tokens;
+            JSONObject body = new JSONObject()
+                    .put("object", response.optString("object", "list"))
+                    .put("data", part)
+                    .put("model", model)
+                    .put("usage", new JSONObject().put("prompt_tokens", tokens).put("total_tokens", tokens));
+            p.reply.complete(new Reply(200, body.toString()));
+        }
+    }
+}
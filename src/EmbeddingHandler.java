@@ -8,17 +8,17 @@ import org.json.JSONObject;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 public class EmbeddingHandler implements HttpHandler {
-    public static final String COPILOT_CHAT_EMBEDDINGS_URL = "https://api.individual.githubcopilot.com/embeddings";
+    private static final Log.Logger LOG = Log.logger(EmbeddingHandler.class);
+    private static String COPILOT_CHAT_EMBEDDINGS_URL = "https://api.individual.githubcopilot.com/embeddings";
+    public static void setCopilotChatEmbeddingsUrl(String url) {
+        COPILOT_CHAT_EMBEDDINGS_URL = url;
+    }
     public static String getCopilotChatEmbeddingsUrl() {
         return COPILOT_CHAT_EMBEDDINGS_URL;
     }
-    private final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
 
 
@@ -49,44 +49,65 @@ public class EmbeddingHandler implements HttpHandler {
             return;
         }
 
-        // Handle the request asynchronously
-        executor.submit(() -> {
+        // Dispatch the request (inline on a virtual thread, otherwise on the shared worker pool)
+        ServerExecutors.dispatch(() -> {
             try {
                 Headers requestHeaders = exchange.getRequestHeaders();
                 String authorizationHeader = requestHeaders.getFirst("Authorization");
+                boolean pinned = authorizationHeader != null && authorizationHeader.startsWith("Bearer ");
+                if (!pinned) {
+                    // 未指定账号时由账号池按策略选择
+                    AccountPool.Account selected = AccountPool.select();
+                    if (selected == null) {
+                        utils.sendError(exchange, "No account available.", 503);
+                        return;
+                    }
+                    authorizationHeader = "Bearer " + selected.token();
+                }
                 String receivedToken = utils.getToken(authorizationHeader, exchange);
                 if (receivedToken == null || receivedToken.isEmpty()) {
                     utils.sendError(exchange, "Token is invalid.", 401);
                     return;
                 }
+                AccountPool.Account account = AccountPool.get(authorizationHeader.substring("Bearer ".length()).trim());
 
                 // Read the request body
                 String requestBody = readRequestBody(exchange.getRequestBody());
-                // Log the received JSON (formatted output)
-                System.out.println("Received Embedding Request JSON:");
-                System.out.println(requestBody);
+                LOG.debug("Embedding request", "body", requestBody);
                 JSONObject requestJson = new JSONObject(requestBody);
+                // 相同的 embedding 请求直接返回缓存（见 ResponseCache）
+                ResponseCache.Policy cachePolicy = ResponseCache.policy(requestHeaders);
+                String cacheKey = cachePolicy.store() ? ResponseCache.embeddingKey(requestJson, pinned ? authorizationHeader.substring(7).trim() : "pool") : null;
+                ResponseCache.Entry cached = ResponseCache.lookup(exchange, "/embeddings", cachePolicy, cacheKey);
+                if (cached != null) {
+                    ResponseCache.send(exchange, cached);
+                    return;
+                }
                 // 准备 Headers
-                Map<String, String> headers = HeadersInfo.getCopilotHeaders(authorizationHeader.substring("Bearer ".length()));
-                // 加上用户传入的 Token
-                headers.put("Authorization", "Bearer " + receivedToken);
-                headers.put("openai-intent","copilot-panel");
+                okhttp3.Headers headers = HeadersInfo.getCopilotHeaders(authorizationHeader.substring("Bearer ".length()),
+                        receivedToken, "copilot-panel", null);
                 // 发送 Embedding 请求至 GitHub Copilot API
-                handleEmbeddingRequest(exchange, headers, requestJson);
+                if (account != null) account.acquire();
+                try {
+                    handleEmbeddingRequest(exchange, headers, requestJson, account,
+                            authorizationHeader.substring("Bearer ".length()).trim(), cacheKey);
+                } finally {
+                    if (account != null) account.release();
+                }
 
             } catch (JSONException e) {
-                e.printStackTrace();
+                LOG.warn("Invalid embedding request JSON", "error", e.getMessage());
                 try {
                     sendErrorResponse(exchange, 400, "Invalid JSON format");
                 } catch (IOException ioException) {
-                    ioException.printStackTrace();
+                    LOG.debug("Error response not sent", "error", ioException.getMessage());
                 }
             } catch (Exception e) {
-                e.printStackTrace();
+                LOG.error("Embedding request failed", e);
                 try {
                     sendErrorResponse(exchange, 500, "Internal server error");
                 } catch (IOException ioException) {
-                    ioException.printStackTrace();
+                    LOG.debug("Error response not sent", "error", ioException.getMessage());
                 }
             }
         });
@@ -136,32 +157,64 @@ public class EmbeddingHandler implements HttpHandler {
 
     /**
      * 负责处理 Embedding 请求：使用 OkHttp 发送给 Copilot 并返回结果
+     *
+     * @param longTermToken 账号的长期 token，同一账号的请求才会合并（见 {@link EmbeddingBatcher}）
+     * @param cacheKey      不为 null 时把成功的响应写入 {@link ResponseCache}
      */
-    private void handleEmbeddingRequest(HttpExchange exchange,  Map<String, String> headers,JSONObject jsonBody) throws IOException {
+    private void handleEmbeddingRequest(HttpExchange exchange, okhttp3.Headers headers, JSONObject jsonBody,
+                                        AccountPool.Account account, String longTermToken, String cacheKey) throws IOException {
+
+        // 用 OkHttp 发起请求；可合并的小请求交给 EmbeddingBatcher
+        String model = jsonBody.optString("model", "");
+        EmbeddingBatcher.Upstream upstream = body -> callUpstream(headers, body, account, model);
+        EmbeddingBatcher.Reply reply = EmbeddingBatcher.eligible(jsonBody)
+                ? EmbeddingBatcher.submit(longTermToken, jsonBody, upstream)
+                : upstream.call(jsonBody);
+        String responseBody = reply.body;
+
+        // 完整响应（包括 embedding 向量）只在 debug 级别格式化输出
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Embedding response", "body", formatJson(responseBody));
+        }
 
-        // 用 OkHttp 发起请求
-        try (Response response = utils.executeOkHttpRequest(headers, jsonBody,getCopilotChatEmbeddingsUrl())) {
-            int responseCode = response.code();
-            String responseBody = response.body() != null ? response.body().string() : "";
-
-            // 打印/格式化日志
-            System.out.println("Embedding Response from Copilot API:");
-            System.out.println(formatJson(responseBody));
-
-            if (response.isSuccessful()) {
-                // 直接把返回结果写回给客户端
-                byte[] responseBytes = responseBody.getBytes(StandardCharsets.UTF_8);
-                exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-                exchange.sendResponseHeaders(200, responseBytes.length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(responseBytes);
-                }
-            } else {
-                // 出现非200时，返回错误信息
-                System.err.println("Error: Received non-200 response from GitHub Copilot Embedding API.");
-                sendErrorResponse(exchange, responseCode,
-                        "Failed to get embeddings from Copilot API: " + responseBody);
+        if (reply.isSuccessful()) {
+            // 直接把返回结果写回给客户端
+            byte[] responseBytes = responseBody.getBytes(StandardCharsets.UTF_8);
+            if (cacheKey != null) {
+                ResponseCache.put(cacheKey, "application/json; charset=utf-8", responseBytes);
             }
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, responseBytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(responseBytes);
+            }
+        } else {
+            // 出现非200时，返回错误信息
+            LOG.warn("Non-200 response from the Copilot embeddings API", "status", reply.status);
+            sendErrorResponse(exchange, reply.status,
+                    "Failed to get embeddings from Copilot API: " + responseBody);
+        }
+    }
+
+    /**
+     * 调用上游 embeddings 接口，记录指标和账号状态
+     */
+    private static EmbeddingBatcher.Reply callUpstream(okhttp3.Headers headers, JSONObject body,
+                                                       AccountPool.Account account, String model) throws IOException {
+        long start = System.nanoTime();
+        Response upstream;
+        try {
+            upstream = utils.executeOkHttpRequest(headers, body, getCopilotChatEmbeddingsUrl());
+        } catch (IOException e) {
+            UpstreamRetry.recordAttempt("/embeddings", model, account, -1, start);
+            if (account != null) account.record(-1, null);
+            throw e;
+        }
+        try (Response response = upstream) {
+            int responseCode = response.code();
+            UpstreamRetry.recordAttempt("/embeddings", model, account, responseCode, start);
+            if (account != null) account.record(responseCode, response.headers());
+            return new EmbeddingBatcher.Reply(responseCode, response.body() != null ? response.body().string() : "");
         }
     }
 
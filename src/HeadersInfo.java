@@ -1,12 +1,16 @@
+import okhttp3.Headers;
+
 import java.security.SecureRandom;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class HeadersInfo {
+    private static final Log.Logger LOG = Log.logger(HeadersInfo.class);
     private static final String HEX_CHARS = "0123456789abcdef";
     private static final SecureRandom secureRandom = new SecureRandom();
+    private static final TokenManager tokenManager = new TokenManager();
     public static final String VScode_SessionId = UUID.randomUUID() + String.valueOf((long)(Math.random() * 1e13));
     public static final String vscode_machineid = generateRandomHex(64);
     public static final String openai_organization = "github-copilot";
@@ -21,52 +25,103 @@ public class HeadersInfo {
     public static final String content_type = "application/json";
     public static final String user_agent = "GitHubCopilotChat/"+copilot_language_server_version;
 
+    // 每个长期 token 一份不可变的公共请求头，machine_id 只在第一次用到时从 DB 解析
+    private static final ConcurrentHashMap<String, Headers> TEMPLATES = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, CompletableFuture<Headers>> BUILDING = new ConcurrentHashMap<>();
+    private static final char[] REQUEST_ID_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
     /**
      * Build request headers
+     * <p>
+     * 在账号的请求头模板上只追加每次请求不同的字段，不访问 DB。
+     *
+     * @param intent openai-intent，例如 conversation-panel
+     * @param vision copilot-vision-request，null 表示不发送
      */
-    public static Map<String, String> getCopilotHeaders(String longTermToken) {
-        // 先从 DB 读取 machine_id
-        TokenManager tokenManager = new TokenManager();
-        String machineId = null;
+    public static Headers getCopilotHeaders(String longTermToken, String tempToken, String intent, Boolean vision) {
+        Headers.Builder builder = template(longTermToken).newBuilder()
+                .add("X-Request-Id", RandomXRequestID(32))
+                .add("Authorization", "Bearer " + tempToken)
+                .add("openai-intent", intent);
+        if (vision != null) {
+            builder.add("copilot-vision-request", vision ? "true" : "false");
+        }
+        return builder.build();
+    }
+
+    /**
+     * 账号的公共请求头，第一次调用时构建并缓存。
+     * machine_id 的读写（SQLite）不放在 ConcurrentHashMap 的锁内；同一账号并发的首次调用只构建一次，
+     * 保证写入 DB 的 machine_id 和缓存的请求头一致。
+     */
+    public static Headers template(String longTermToken) {
+        Headers template = TEMPLATES.get(longTermToken);
+        if (template != null) {
+            return template;
+        }
+        CompletableFuture<Headers> mine = new CompletableFuture<>();
+        CompletableFuture<Headers> existing = BUILDING.putIfAbsent(longTermToken, mine);
+        if (existing != null) {
+            return existing.join();
+        }
+        try {
+            template = TEMPLATES.get(longTermToken);
+            if (template == null) {
+                template = buildTemplate(resolveMachineId(longTermToken));
+                TEMPLATES.put(longTermToken, template);
+            }
+            mine.complete(template);
+            return template;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            BUILDING.remove(longTermToken, mine);
+        }
+    }
 
+    private static String resolveMachineId(String longTermToken) {
+        // 先从 DB 读取 machine_id
         try {
-            machineId = tokenManager.getMachineId(longTermToken);
+            String machineId = tokenManager.getMachineId(longTermToken);
             if (machineId == null) {
                 // 不存在则生成并尝试写入
                 machineId = generateRandomHex(64);
                 boolean saved = tokenManager.setMachineId(longTermToken, machineId);
                 if (!saved) {
-                    System.out.println("Warning: failed to save new machine_id, using generated one.");
+                    LOG.warn("Failed to save new machine_id, using generated one");
                 }
             }
+            return machineId;
         } catch (Exception e) {
             // 读取或写入失败，退回到新生成的
-            System.out.println("Error accessing machine_id in DB: " + e.getMessage());
-            machineId = generateRandomHex(64);
+            LOG.warn("Error accessing machine_id in DB", "error", e.getMessage());
+            return generateRandomHex(64);
         }
-        // 生成一个 sessionId（每次启动不同）
-        Map<String, String> headers = new HashMap<>();
-        headers.put("Content-Type", content_type);
-        headers.put("Connection", "keep-alive");
-        headers.put("Editor-Plugin-Version", editor_plugin_version);
-        headers.put("copilot-integration-id","vscode-chat");
-        headers.put("Editor-Version", editor_version);
-        headers.put("Openai-Organization", openai_organization);
-        headers.put("User-Agent", user_agent);
-        headers.put("VScode-MachineId", machineId);
-        headers.put("VScode-SessionId", VScode_SessionId);
-        headers.put("accept", "*/*");
-        headers.put("Sec-Fetch-Site", "none");
-        headers.put("Sec-Fetch-Mode", "no-cors");
-        headers.put("Sec-Fetch-Dest", "empty");
-        headers.put("accept-encoding", "gzip, deflate, br, zstd");
-        headers.put("X-GitHub-Api-Version", x_github_api_version);
-        headers.put("X-Request-Id", RandomXRequestID(32));
-        return headers;
+    }
+
+    private static Headers buildTemplate(String machineId) {
+        return new Headers.Builder()
+                .add("Content-Type", content_type)
+                .add("Connection", "keep-alive")
+                .add("Editor-Plugin-Version", editor_plugin_version)
+                .add("copilot-integration-id", "vscode-chat")
+                .add("Editor-Version", editor_version)
+                .add("Openai-Organization", openai_organization)
+                .add("User-Agent", user_agent)
+                .add("VScode-MachineId", machineId)
+                // sessionId 每次启动不同
+                .add("VScode-SessionId", VScode_SessionId)
+                .add("accept", "*/*")
+                .add("Sec-Fetch-Site", "none")
+                .add("Sec-Fetch-Mode", "no-cors")
+                .add("Sec-Fetch-Dest", "empty")
+                .add("accept-encoding", "gzip, deflate, br, zstd")
+                .add("X-GitHub-Api-Version", x_github_api_version)
+                .build();
     }
 
     public static String generateRandomHex(int length) {
-        TokenManager tokenManager = new TokenManager();
         StringBuilder sb = new StringBuilder(length);
         for (int i = 0; i < length; i++) {
             int index = secureRandom.nextInt(HEX_CHARS.length());
@@ -75,23 +130,19 @@ public class HeadersInfo {
         return sb.toString();
     }
 
+    /**
+     * 随机请求 id，格式为 xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx（length 个数字或小写字母）
+     */
     public static String RandomXRequestID(int length) {
-        StringBuilder sb = new StringBuilder(32);
-        Random random = new Random();
-
-        // Generate a 32-character random string consisting of digits and lowercase letters
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        char[] id = new char[length + 4];
+        int pos = 0;
         for (int i = 0; i < length; i++) {
-            int index = random.nextInt("abcdefghijklmnopqrstuvwxyz0123456789".length());
-            sb.append("abcdefghijklmnopqrstuvwxyz0123456789".charAt(index));
+            if (i == 8 || i == 12 || i == 16 || i == 20) {
+                id[pos++] = '-';
+            }
+            id[pos++] = REQUEST_ID_CHARS[random.nextInt(REQUEST_ID_CHARS.length)];
         }
-
-        // Format the output as xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx
-        String x = String.format("%s-%s-%s-%s-%s",
-                sb.substring(0, 8),
-                sb.substring(8, 12),
-                sb.substring(12, 16),
-                sb.substring(16, 20),
-                sb.substring(20, 32));
-        return x;
+        return new String(id, 0, pos);
     }
 }
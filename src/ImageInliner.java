@@ -0,0 +1,318 @@
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 把请求中的远程 {@code image_url} 下载为 data URI（由 {@link StreamingRequest} 在原位置替换）。
+ * <p>
+ * 同一请求的所有图片并发下载，每个请求最多 {@code copilot.images.perRequest}（默认 4）个、全局最多
+ * {@code copilot.images.maxConcurrent}（默认 16）个同时进行。下载时边读边检查大小（模型的
+ * {@code max_prompt_image_size}，未知模型用 {@code copilot.images.maxBytes}），超限立即中止；
+ * 读到的数据直接流式 Base64 编码，编码结果以共享 segment 的 {@link ByteString} 保存，写请求体时直接写出，不再转成 String。
+ * <p>
+ * 结果按内容哈希存入 LRU（{@code copilot.images.cacheBytes}，默认 64 MiB），URL 只是指向内容的索引，
+ * 对话中每轮都重复发送的图片只下载一次，不同 URL 的相同图片也只保存一份。缓存记录图片的原始字节数，
+ * 命中时仍按当前模型的上限检查；正在进行的下载按 (URL, 上限) 合并。
+ * URL 索引最多保留 {@code copilot.images.urlTtlSeconds}（默认 600）秒，并遵循图片响应的
+ * {@code Cache-Control}：{@code no-store} / {@code no-cache} 不缓存，{@code max-age} 更短时按它过期。
+ */
+public final class ImageInliner {
+    private static final Log.Logger LOG = Log.logger(ImageInliner.class);
+    private static final int PER_REQUEST = Integer.getInteger("copilot.images.perRequest", 4);
+    private static final Semaphore GLOBAL = new Semaphore(Integer.getInteger("copilot.images.maxConcurrent", 16));
+    private static final long DEFAULT_MAX_BYTES = Long.getLong("copilot.images.maxBytes", 20L * 1024 * 1024);
+    private static final long CACHE_BYTES = Long.getLong("copilot.images.cacheBytes", 64L * 1024 * 1024);
+    private static final int MAX_URLS = 4096;
+    private static final long URL_TTL_MILLIS = Long.getLong("copilot.images.urlTtlSeconds", 600L) * 1000L;
+
+    // 模型 id -> max_prompt_image_size
+    private static final ConcurrentHashMap<String, Long> MODEL_LIMITS = new ConcurrentHashMap<>();
+    // "上限 URL" -> 正在进行的下载；上限不同的请求不共用，避免较大上限的下载结果绕过较小的上限
+    private static final ConcurrentHashMap<String, CompletableFuture<ByteString>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    // URL -> 内容哈希，内容哈希 -> 图片；两者共用一把锁
+    private static final Object CACHE_LOCK = new Object();
+    private static final LinkedHashMap<String, UrlEntry> URL_INDEX = new LinkedHashMap<String, UrlEntry>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, UrlEntry> eldest) {
+            return size() > MAX_URLS;
+        }
+    };
+    private static final LinkedHashMap<String, Image> CONTENT = new LinkedHashMap<>(64, 0.75f, true);
+    private static long contentBytes;
+
+    static {
+        registerModels(ModelService.models);
+    }
+
+    private ImageInliner() {
+    }
+
+    /**
+     * 图片超过模型允许的大小
+     */
+    public static final class ImageTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ImageTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 缓存中的一张图片：data URI 和原始（解码后）字节数
+     */
+    private static final class Image {
+        final ByteString dataUri;
+        final long bytes;
+
+        Image(ByteString dataUri, long bytes) {
+            this.dataUri = dataUri;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * URL 指向的内容哈希及其过期时间
+     */
+    private static final class UrlEntry {
+        final String hash;
+        final long expiresAt;
+
+        UrlEntry(String hash, long expiresAt) {
+            this.hash = hash;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * 登记模型列表中声明的图片大小上限
+     */
+    public static void registerModels(List<JSONObject> models) {
+        for (JSONObject model : models) {
+            JSONObject capabilities = model.optJSONObject("capabilities");
+            JSONObject limits = capabilities != null ? capabilities.optJSONObject("limits") : null;
+            JSONObject vision = limits != null ? limits.optJSONObject("vision") : null;
+            String id = model.optString("id", null);
+            if (vision != null && id != null && vision.has("max_prompt_image_size")) {
+                MODEL_LIMITS.put(id, vision.optLong("max_prompt_image_size"));
+            }
+        }
+    }
+
+    public static long maxImageBytes(String model) {
+        return model == null ? DEFAULT_MAX_BYTES : MODEL_LIMITS.getOrDefault(model, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * 并发下载一组远程图片，返回对应的 data URI；下载失败的位置为 null。
+     * 任一图片超过大小上限时抛出 {@link ImageTooLargeException}。
+     */
+    public static ByteString[] resolve(List<String> urls, String model) throws IOException {
+        long maxBytes = maxImageBytes(model);
+        Semaphore perRequest = new Semaphore(PER_REQUEST);
+        List<CompletableFuture<ByteString>> futures = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            futures.add(fetch(url, maxBytes, perRequest));
+        }
+        ByteString[] resolved = new ByteString[urls.size()];
+        for (int i = 0; i < resolved.length; i++) {
+            try {
+                resolved[i] = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading images", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ImageTooLargeException) {
+                    throw (ImageTooLargeException) e.getCause();
+                }
+                LOG.warn("Failed to download image", "error", e.getCause().getMessage());
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * 下载一张图片；命中缓存或已有相同 URL、相同上限在下载时不会再次请求
+     */
+    private static CompletableFuture<ByteString> fetch(String url, long maxBytes, Semaphore perRequest) throws IOException {
+        Image cached = cachedByUrl(url);
+        if (cached != null) {
+            if (cached.bytes > maxBytes) {
+                CompletableFuture<ByteString> tooLarge = new CompletableFuture<>();
+                tooLarge.completeExceptionally(new ImageTooLargeException(
+                        "Image " + url + " is " + cached.bytes + " bytes, limit is " + maxBytes));
+                return tooLarge;
+            }
+            return CompletableFuture.completedFuture(cached.dataUri);
+        }
+        String key = maxBytes + " " + url;
+        CompletableFuture<ByteString> mine = new CompletableFuture<>();
+        CompletableFuture<ByteString> existing = IN_FLIGHT.putIfAbsent(key, mine);
+        if (existing != null) {
+            return existing;
+        }
+        mine.whenComplete((r, e) -> IN_FLIGHT.remove(key, mine));
+
+        try {
+            perRequest.acquire();
+            try {
+                GLOBAL.acquire();
+            } catch (InterruptedException e) {
+                perRequest.release();
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mine.completeExceptionally(e);
+            throw new IOException("Interrupted while waiting for an image download slot", e);
+        }
+
+        Request request;
+        try {
+            request = new Request.Builder().url(url).build();
+        } catch (IllegalArgumentException e) {
+            GLOBAL.release();
+            perRequest.release();
+            mine.completeExceptionally(e);
+            return mine;
+        }
+        utils.getOkHttpClient().newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                GLOBAL.release();
+                perRequest.release();
+                mine.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response r = response) {
+                    MessageDigest digest = sha256();
+                    Image image = encode(r, maxBytes, url, digest);
+                    store(url, hex(digest.digest()), image, urlTtlMillis(r));
+                    mine.complete(image.dataUri);
+                } catch (Exception e) {
+                    mine.completeExceptionally(e);
+                } finally {
+                    GLOBAL.release();
+                    perRequest.release();
+                }
+            }
+        });
+        return mine;
+    }
+
+    /**
+     * 边读边计数边编码，同时计算原始内容的哈希
+     */
+    private static Image encode(Response response, long maxBytes, String url, MessageDigest digest) throws IOException {
+        ResponseBody body = response.body();
+        if (!response.isSuccessful() || body == null) {
+            throw new IOException("Response code " + response.code() + " for " + url);
+        }
+        long declared = body.contentLength();
+        if (declared > maxBytes) {
+            throw new ImageTooLargeException("Image " + url + " is " + declared + " bytes, limit is " + maxBytes);
+        }
+        String contentType = response.header("Content-Type");
+        if (contentType == null || !contentType.startsWith("image/")) {
+            contentType = "image/png"; // 默认类型
+        }
+        int semicolon = contentType.indexOf(';');
+        if (semicolon > 0) contentType = contentType.substring(0, semicolon).trim();
+
+        Buffer out = new Buffer().writeUtf8("data:").writeUtf8(contentType).writeUtf8(";base64,");
+        BufferedSource source = body.source();
+        byte[] chunk = new byte[8192];
+        long total = 0;
+        try (OutputStream encoder = Base64.getEncoder().wrap(out.outputStream())) {
+            int n;
+            while ((n = source.read(chunk)) != -1) {
+                total += n;
+                if (total > maxBytes) {
+                    throw new ImageTooLargeException("Image " + url + " exceeds the limit of " + maxBytes + " bytes");
+                }
+                digest.update(chunk, 0, n);
+                encoder.write(chunk, 0, n);
+            }
+        }
+        // snapshot 共享 Buffer 的 segment，不再复制一次
+        return new Image(out.snapshot(), total);
+    }
+
+    /**
+     * URL 索引的有效期：默认 TTL，响应的 Cache-Control 更严格时以它为准，不允许缓存时为 0
+     */
+    private static long urlTtlMillis(Response response) {
+        CacheControl cacheControl = response.cacheControl();
+        if (cacheControl.noStore() || cacheControl.noCache()) return 0;
+        int maxAge = cacheControl.maxAgeSeconds();
+        return maxAge >= 0 ? Math.min(URL_TTL_MILLIS, maxAge * 1000L) : URL_TTL_MILLIS;
+    }
+
+    private static Image cachedByUrl(String url) {
+        synchronized (CACHE_LOCK) {
+            UrlEntry entry = URL_INDEX.get(url);
+            if (entry == null) return null;
+            if (System.currentTimeMillis() >= entry.expiresAt) {
+                URL_INDEX.remove(url);
+                return null;
+            }
+            return CONTENT.get(entry.hash);
+        }
+    }
+
+    private static void store(String url, String hash, Image image, long ttlMillis) {
+        if (ttlMillis <= 0 || image.dataUri.size() > CACHE_BYTES) return;
+        synchronized (CACHE_LOCK) {
+            URL_INDEX.put(url, new UrlEntry(hash, System.currentTimeMillis() + ttlMillis));
+            if (CONTENT.putIfAbsent(hash, image) == null) {
+                contentBytes += image.dataUri.size();
+                Iterator<Map.Entry<String, Image>> it = CONTENT.entrySet().iterator();
+                while (contentBytes > CACHE_BYTES && it.hasNext()) {
+                    contentBytes -= it.next().getValue().dataUri.size();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,269 @@
+import org.json.JSONObject;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步结构化日志，替代请求路径上的 {@code System.out.println}。
+ * <p>
+ * 调用线程只做级别判断，并把事件（消息 + 交替的 key / value）放进一个定长环形缓冲区，不做任何格式化和 I/O。
+ * 一个后台线程批量取出、格式化并写到 {@code System.out}。缓冲区满时丢弃新事件而不是阻塞请求，
+ * 丢弃数记到 {@code copilot_log_dropped_total}。
+ * <ul>
+ *     <li>{@code copilot.log.level}：debug / info（默认）/ warn / error，也可用 {@code --log-level}</li>
+ *     <li>{@code copilot.log.format}：text（默认）或 json（每行一个 JSON 对象）</li>
+ *     <li>{@code copilot.log.bufferSize}：环形缓冲区大小，取 2 的幂（默认 8192）</li>
+ * </ul>
+ * 完整的请求 / 响应体只在 debug 级别输出。高频事件可以用 {@link Logger#sampled(int)} 只记录 1/N。
+ */
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(16, Integer.getInteger("copilot.log.bufferSize", 8192)));
+    private static final int MASK = CAPACITY - 1;
+    private static final boolean JSON = "json".equalsIgnoreCase(System.getProperty("copilot.log.format"));
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final Object[] NO_FIELDS = new Object[0];
+    // 缓冲区为空时写出线程最长休眠时间；有新事件时由生产者 unpark
+    private static final long IDLE_PARK_NANOS = 1_000_000_000L;
+
+    private static final AtomicReferenceArray<Event> RING = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong HEAD = new AtomicLong();
+    // 只由写出线程推进
+    private static volatile long tail;
+    // 写出线程因缓冲区为空而休眠
+    private static volatile boolean idle;
+    private static final Metrics.Counter DROPPED = Metrics.counter("copilot_log_dropped_total", "Log events dropped because the buffer was full");
+    private static volatile Level threshold = parseLevel(System.getProperty("copilot.log.level", "info"));
+    private static final Thread WRITER = new Thread(Log::drainLoop, "log-writer");
+
+    static {
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    private static final class Event {
+        final long time = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final Level level;
+        final String logger;
+        final String message;
+        final Object[] fields;
+        final int sample;
+
+        Event(Level level, String logger, String message, Object[] fields, int sample) {
+            this.level = level;
+            this.logger = logger;
+            this.message = message;
+            this.fields = fields;
+            this.sample = sample;
+        }
+    }
+
+    /**
+     * 一个组件的日志入口，通常保存为 {@code static final}
+     */
+    public static final class Logger {
+        private final String name;
+        private final int sample;
+        private final AtomicLong calls;
+
+        private Logger(String name, int sample) {
+            this.name = name;
+            this.sample = sample;
+            this.calls = sample > 1 ? new AtomicLong() : null;
+        }
+
+        /**
+         * 只记录每 n 次调用中的第一次，事件带 {@code sample=n} 字段
+         */
+        public Logger sampled(int n) {
+            return new Logger(name, n);
+        }
+
+        public boolean isDebugEnabled() {
+            return enabled(Level.DEBUG);
+        }
+
+        public boolean enabled(Level level) {
+            return level.compareTo(threshold) >= 0;
+        }
+
+        /**
+         * fields 为交替的 key / value；最后多出的一个 Throwable 会输出堆栈
+         */
+        public void debug(String message, Object... fields) {
+            log(Level.DEBUG, message, fields);
+        }
+
+        public void info(String message, Object... fields) {
+            log(Level.INFO, message, fields);
+        }
+
+        public void warn(String message, Object... fields) {
+            log(Level.WARN, message, fields);
+        }
+
+        public void error(String message, Object... fields) {
+            log(Level.ERROR, message, fields);
+        }
+
+        public void log(Level level, String message, Object... fields) {
+            if (!enabled(level)) return;
+            if (calls != null && calls.getAndIncrement() % sample != 0) return;
+            publish(new Event(level, name, message, fields == null ? NO_FIELDS : fields, sample));
+        }
+    }
+
+    public static Logger logger(Class<?> type) {
+        return new Logger(type.getSimpleName(), 1);
+    }
+
+    /**
+     * 打码后的 token，日志中不输出完整的账号凭据
+     */
+    public static String mask(String token) {
+        if (token == null) return null;
+        return token.length() <= 8 ? "****" : token.substring(0, 4) + "****" + token.substring(token.length() - 4);
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    public static Level parseLevel(String name) {
+        return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+    private static void publish(Event event) {
+        long h;
+        do {
+            h = HEAD.get();
+            if (h - tail >= CAPACITY) {
+                DROPPED.inc();
+                return;
+            }
+        } while (!HEAD.compareAndSet(h, h + 1));
+        // volatile 写：与下面读 idle 构成和写出线程对称的 store-load，避免漏掉唤醒
+        RING.set((int) (h & MASK), event);
+        if (idle) {
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    /**
+     * 等待缓冲区中已有的事件写出（最多 2 秒），用于退出前
+     */
+    public static void flush() {
+        long target = HEAD.get();
+        long deadline = System.nanoTime() + 2_000_000_000L;
+        while (tail < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(1_000_000L);
+        }
+    }
+
+    private static void drainLoop() {
+        StringBuilder batch = new StringBuilder(8192);
+        while (true) {
+            long t = tail;
+            int n = 0;
+            while (n < 512) {
+                int index = (int) ((t + n) & MASK);
+                Event event = RING.get(index);
+                if (event == null) break;  // 空槽，或生产者已占位但尚未写入
+                RING.lazySet(index, null);
+                n++;
+                try {
+                    format(event, batch);
+                } catch (RuntimeException e) {
+                    batch.append("log format failed: ").append(e).append('\n');
+                }
+            }
+            if (n == 0) {
+                idle = true;
+                // 设置 idle 之后再检查一次，生产者可能刚好在此之前写入
+                if (RING.get((int) (t & MASK)) == null) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                idle = false;
+                continue;
+            }
+            tail = t + n;
+            PrintStream out = System.out;
+            out.print(batch);
+            out.flush();
+            batch.setLength(0);
+            if (batch.capacity() > 1 << 20) batch.trimToSize();
+        }
+    }
+
+    private static void format(Event e, StringBuilder sb) {
+        Throwable thrown = e.fields.length % 2 == 1 && e.fields[e.fields.length - 1] instanceof Throwable
+                ? (Throwable) e.fields[e.fields.length - 1] : null;
+        int pairs = e.fields.length / 2 * 2;
+        if (JSON) {
+            JSONObject json = new JSONObject()
+                    .put("time", Instant.ofEpochMilli(e.time).toString())
+                    .put("level", e.level.name().toLowerCase(Locale.ROOT))
+                    .put("thread", e.thread)
+                    .put("logger", e.logger)
+                    .put("msg", e.message);
+            for (int i = 0; i < pairs; i += 2) {
+                json.put(String.valueOf(e.fields[i]), e.fields[i + 1] == null ? JSONObject.NULL : e.fields[i + 1]);
+            }
+            if (e.sample > 1) json.put("sample", e.sample);
+            if (thrown != null) json.put("exception", stackTrace(thrown));
+            sb.append(json).append('\n');
+            return;
+        }
+        TIME.formatTo(Instant.ofEpochMilli(e.time), sb);
+        sb.append(' ').append(e.level.name());
+        if (e.level.name().length() == 4) sb.append(' ');
+        sb.append(" [").append(e.thread).append("] ").append(e.logger).append(" - ").append(e.message);
+        for (int i = 0; i < pairs; i += 2) {
+            sb.append(' ').append(e.fields[i]).append('=');
+            appendValue(sb, String.valueOf(e.fields[i + 1]));
+        }
+        if (e.sample > 1) sb.append(" sample=").append(e.sample);
+        sb.append('\n');
+        if (thrown != null) sb.append(stackTrace(thrown));
+    }
+
+    private static void appendValue(StringBuilder sb, String value) {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ' ' || c == '"' || c == '=' || c == '\n';
+        }
+        if (!quote) {
+            sb.append(value);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c == '\n') sb.append("\\n");
+            else sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private static String stackTrace(Throwable t) {
+        StringWriter sw = new StringWriter();
+        t.printStackTrace(new PrintWriter(sw));
+        return sw.toString();
+    }
+}
@@ -8,12 +8,14 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 
 public class Main {
 
     public static int port = 80;
+    public static boolean virtualThreads = false;
+    public static boolean ssePassthrough = false;
+    public static AccountPool.Strategy poolStrategy = AccountPool.Strategy.ROUND_ROBIN;
     private static final Pattern NUMBER_PATTERN = Pattern.compile("-?\\d+(\\.\\d+)?");
 
     private static boolean isPort(String arg) {
@@ -94,6 +96,23 @@ public class Main {
         System.out.println("Options:");
         System.out.println("  -h, --help                 Display this help message");
         System.out.println("  -p, --port <number>        Specify the port number (default: 80)");
+        System.out.println("      --virtual-threads      Handle each request on a virtual thread (JDK 21+)");
+        System.out.println("      --sse-passthrough      Forward upstream SSE frames unchanged instead of re-wrapping them");
+        System.out.println("      --pool-strategy <name> Account selection when no token is sent:");
+        System.out.println("                             round-robin (default), least-in-flight, quota");
+        System.out.println("      --log-level <level>    Log level: debug, info (default), warn, error");
+        System.out.println("      --coalesce             Share one upstream call between identical concurrent");
+        System.out.println("                             non-streaming requests with temperature 0");
+        System.out.println("      --response-cache       Cache temperature-0 completions and embeddings");
+        System.out.println("                             in memory and in responses.db");
+        System.out.println("      --batch-embeddings     Merge concurrent small embedding requests into one");
+        System.out.println("                             upstream call");
+        System.out.println("      --max-concurrency <n>  Upper bound of the adaptive chat completion concurrency");
+        System.out.println("                             limit (default: 256, 0 disables admission control)");
+        System.out.println("      --rate-limit <rpm>[,<tpm>]  Default per-account requests / tokens per minute");
+        System.out.println("                             (0 = unlimited; rpm_limit / tpm_limit in tokens.db override)");
+        System.out.println("      --account-rate-limit <user>=<rpm>[,<tpm>]  Store the limits of one account");
+        System.out.println("                             (GitHub login or long-term token) in tokens.db, 0 = default");
 //        System.exit(0);
     }
 
@@ -133,6 +152,100 @@ public class Main {
 //                        System.exit(0);
                     }
                     break;
+                case "--virtual-threads":
+                    virtualThreads = true;
+                    break;
+                case "--sse-passthrough":
+                    ssePassthrough = true;
+                    break;
+                case "--pool-strategy":
+                    if (i + 1 < args.length) {
+                        try {
+                            poolStrategy = AccountPool.Strategy.parse(args[++i]);
+                        } catch (IllegalArgumentException e) {
+                            System.err.println("Error: Unknown pool strategy " + args[i]);
+                            printHelp();
+                        }
+                    } else {
+                        System.err.println("Error: Pool strategy is missing");
+                        printHelp();
+                    }
+                    break;
+                case "--batch-embeddings":
+                    EmbeddingBatcher.setEnabled(true);
+                    break;
+                case "--response-cache":
+                    ResponseCache.setEnabled(true);
+                    break;
+                case "--coalesce":
+                    RequestCoalescer.setEnabled(true);
+                    break;
+                case "--max-concurrency":
+                    if (i + 1 < args.length) {
+                        try {
+                            AdmissionController.setMaxConcurrency(Integer.parseInt(args[++i]));
+                        } catch (NumberFormatException e) {
+                            System.err.println("Error: Max concurrency must be a number");
+                            printHelp();
+                        }
+                    } else {
+                        System.err.println("Error: Max concurrency is missing");
+                        printHelp();
+                    }
+                    break;
+                case "--rate-limit":
+                    if (i + 1 < args.length) {
+                        try {
+                            String[] limits = args[++i].split(",", 2);
+                            RateLimiter.setDefaults(Long.parseLong(limits[0].trim()),
+                                    limits.length > 1 ? Long.parseLong(limits[1].trim()) : 0L);
+                        } catch (NumberFormatException e) {
+                            System.err.println("Error: Rate limit must be <rpm>[,<tpm>]");
+                            printHelp();
+                        }
+                    } else {
+                        System.err.println("Error: Rate limit is missing");
+                        printHelp();
+                    }
+                    break;
+                case "--account-rate-limit":
+                    if (i + 1 < args.length) {
+                        String value = args[++i];
+                        int eq = value.lastIndexOf('=');
+                        try {
+                            if (eq <= 0) throw new NumberFormatException(value);
+                            String[] limits = value.substring(eq + 1).split(",", 2);
+                            long rpm = Long.parseLong(limits[0].trim());
+                            long tpm = limits.length > 1 ? Long.parseLong(limits[1].trim()) : 0L;
+                            String account = value.substring(0, eq).trim();
+                            int updated = RateLimiter.setAccountLimits(account, rpm, tpm);
+                            if (updated > 0) {
+                                System.out.println("Rate limit set to " + rpm + " rpm, " + tpm + " tpm for " + updated + " account(s)");
+                            } else {
+                                System.err.println("Error: No account in tokens.db matches the given user or token");
+                            }
+                        } catch (NumberFormatException e) {
+                            System.err.println("Error: Account rate limit must be <user>=<rpm>[,<tpm>]");
+                            printHelp();
+                        }
+                    } else {
+                        System.err.println("Error: Account rate limit is missing");
+                        printHelp();
+                    }
+                    break;
+                case "--log-level":
+                    if (i + 1 < args.length) {
+                        try {
+                            Log.setLevel(Log.parseLevel(args[++i]));
+                        } catch (IllegalArgumentException e) {
+                            System.err.println("Error: Unknown log level " + args[i]);
+                            printHelp();
+                        }
+                    } else {
+                        System.err.println("Error: Log level is missing");
+                        printHelp();
+                    }
+                    break;
                 default:
                     System.err.println("Unknown option: " + arg);
                     printHelp();
@@ -174,17 +287,37 @@ public class Main {
     public static void main(String[] args) {
 
         int p = parseArgs(args);
+        startServer(p);
+    }
 
-        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    /**
+     * 按当前选项（virtualThreads / ssePassthrough / poolStrategy）启动代理并返回 HttpServer，
+     * loadtest 也通过它在进程内启动代理
+     */
+    public static HttpServer startServer(int p) {
+        if (virtualThreads && Runtime.version().feature() < 24 && System.getProperty("copilot.http.http2") == null) {
+            // JDK 24 之前，OkHttp 的 HTTP/2 流在 synchronized 中等待，会把虚拟线程钉在载体线程上
+            UpstreamClient.setPreferHttp2(false);
+            System.out.println("Virtual threads on JDK " + Runtime.version().feature() + ": using HTTP/1.1 upstream to avoid pinning");
+        }
+        ExecutorService executor = ServerExecutors.createServerExecutor(virtualThreads);
+        CompletionHandler.setSsePassthrough(ssePassthrough);
+        AccountPool.setStrategy(poolStrategy);
         HttpServer server = createHttpServer(p);
-//        server.createContext("/v1/chat/completions", new CompletionHandler());
-//        server.createContext("/v1/embeddings", new EmbeddingHandler());
-//        server.createContext("/v1/models", new ModelsHandler());
-        server.createContext("/v1/chat/completions", exchange -> new CompletionHandler().handle(exchange));
-        server.createContext("/v1/embeddings", exchange -> new EmbeddingHandler().handle(exchange));
-        server.createContext("/v1/models", exchange -> new ModelsHandler().handle(exchange));
+        // handler 都是无状态的单例
+        CompletionHandler completionHandler = new CompletionHandler();
+        EmbeddingHandler embeddingHandler = new EmbeddingHandler();
+        ModelsHandler modelsHandler = new ModelsHandler();
+        Metrics.instrument(server.createContext("/v1/chat/completions", completionHandler));
+        Metrics.instrument(server.createContext("/v1/embeddings", embeddingHandler));
+        Metrics.instrument(server.createContext("/v1/models", modelsHandler));
+        server.createContext("/metrics", new MetricsHandler());
+        server.createContext("/health", new HealthHandler());
         server.setExecutor(executor);
         server.start();
+        // 在后台载入账号 token 并预先建立上游连接，完成前 /health 返回 503
+        Warmup.start();
+        return server;
     }
 
 }
@@ -0,0 +1,357 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * 进程内指标，以 Prometheus 文本格式在 {@code /metrics} 输出（见 {@link MetricsHandler}）。
+ * <p>
+ * 计数器和直方图的桶都是 {@link LongAdder}，请求路径上只有一次 ConcurrentHashMap 查找和无锁累加；
+ * 标签固定的调用方可以把返回的 {@link Counter} / {@link Histogram} 保存下来，连查找也省掉。
+ * gauge 在抓取时才读取。每个指标最多 {@code copilot.metrics.maxSeries}（默认 1000）组标签，
+ * 超出后新的标签组合都记到 {@code "other"} 上，客户端传来的模型名不会让指标无限增长。
+ */
+public final class Metrics {
+    private static final int MAX_SERIES = Integer.getInteger("copilot.metrics.maxSeries", 1000);
+
+    /** 延迟直方图的桶（秒） */
+    public static final double[] LATENCY_BUCKETS = {
+            0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+    /** 速率直方图的桶（每秒 token 数） */
+    public static final double[] RATE_BUCKETS = {
+            1, 5, 10, 20, 50, 100, 200, 500, 1000
+    };
+
+    private static final ConcurrentHashMap<String, Family> FAMILIES = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+    }
+
+    public static final class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] buckets;  // 非累计，最后一个为 +Inf
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) i++;
+            buckets[i].increment();
+            sum.add(value);
+        }
+
+        /**
+         * 记录从 startNanos（{@link System#nanoTime()}）到现在的秒数
+         */
+        public void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / 1e9);
+        }
+    }
+
+    private enum Type { COUNTER, GAUGE, HISTOGRAM }
+
+    /**
+     * 同名指标的所有标签组合
+     */
+    private static final class Family {
+        final String name;
+        final String help;
+        final Type type;
+        final double[] bounds;
+        final ConcurrentHashMap<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String name, String help, Type type, double[] bounds) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.bounds = bounds;
+        }
+
+        Object get(String[] labels) {
+            String key = labelString(labels, false);
+            Object metric = series.get(key);
+            if (metric != null) return metric;
+            if (series.size() >= MAX_SERIES) {
+                key = labelString(labels, true);
+            }
+            return series.computeIfAbsent(key, k -> type == Type.HISTOGRAM ? new Histogram(bounds) : new Counter());
+        }
+    }
+
+    /**
+     * 计数器；labels 为交替的名称和值
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER, null).get(labels);
+    }
+
+    public static Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) family(name, help, Type.HISTOGRAM, buckets).get(labels);
+    }
+
+    /**
+     * 注册一个抓取时读取的 gauge；同名同标签重复注册时以最后一次为准
+     */
+    public static void gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+        family(name, help, Type.GAUGE, null).series.put(labelString(labels, false), supplier);
+    }
+
+    private static Family family(String name, String help, Type type, double[] buckets) {
+        Family family = FAMILIES.get(name);
+        if (family == null) {
+            family = FAMILIES.computeIfAbsent(name, n -> new Family(n, help, type, buckets));
+        }
+        return family;
+    }
+
+    /**
+     * 在 context 上统计每个路由的请求数、状态码和耗时
+     */
+    public static void instrument(HttpContext context) {
+        String route = context.getPath();
+        Histogram duration = histogram("copilot_http_request_duration_seconds",
+                "Time from receiving a request to finishing its response", LATENCY_BUCKETS, "route", route);
+        context.getFilters().add(new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                chain.doFilter(new InstrumentedExchange(exchange, route, duration));
+            }
+
+            @Override
+            public String description() {
+                return "metrics";
+            }
+        });
+    }
+
+    /**
+     * 以 Prometheus 文本格式输出所有指标
+     */
+    public static String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Family family : new TreeMap<>(FAMILIES).values()) {
+            sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ').append(family.type.name().toLowerCase(Locale.ROOT)).append('\n');
+            for (Map.Entry<String, Object> e : new TreeMap<>(family.series).entrySet()) {
+                String labels = e.getKey();
+                Object metric = e.getValue();
+                if (metric instanceof Counter) {
+                    sample(sb, family.name, labels, null, ((Counter) metric).value.sum());
+                } else if (metric instanceof DoubleSupplier) {
+                    sample(sb, family.name, labels, null, ((DoubleSupplier) metric).getAsDouble());
+                } else {
+                    Histogram h = (Histogram) metric;
+                    long cumulative = 0;
+                    for (int i = 0; i < h.buckets.length; i++) {
+                        cumulative += h.buckets[i].sum();
+                        String le = i < h.bounds.length ? format(h.bounds[i]) : "+Inf";
+                        sample(sb, family.name + "_bucket", labels, le, cumulative);
+                    }
+                    sample(sb, family.name + "_sum", labels, null, h.sum.sum());
+                    sample(sb, family.name + "_count", labels, null, cumulative);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, String le, double value) {
+        sb.append(name);
+        if (!labels.isEmpty() || le != null) {
+            sb.append('{').append(labels);
+            if (le != null) {
+                if (!labels.isEmpty()) sb.append(',');
+                sb.append("le=\"").append(le).append('"');
+            }
+            sb.append('}');
+        }
+        sb.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String labelString(String[] labels, boolean overflow) {
+        if (labels.length == 0) return "";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"");
+            String value = overflow ? "other" : labels[i + 1] == null ? "" : labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') sb.append('\\').append(c);
+                else if (c == '\n') sb.append("\\n");
+                else sb.append(c);
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 记录状态码和耗时的 HttpExchange 包装；耗时在响应体关闭（或无响应体的响应头发出）时记录
+     */
+    private static final class InstrumentedExchange extends HttpExchange {
+        private final HttpExchange delegate;
+        private final String route;
+        private final Histogram duration;
+        private final long start = System.nanoTime();
+        private volatile boolean finished;
+
+        InstrumentedExchange(HttpExchange delegate, String route, Histogram duration) {
+            this.delegate = delegate;
+            this.route = route;
+            this.duration = duration;
+        }
+
+        private void finish() {
+            if (!finished) {
+                finished = true;
+                duration.observeSince(start);
+            }
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+            counter("copilot_http_requests_total", "Requests by route and response status",
+                    "route", route, "status", Integer.toString(rCode)).inc();
+            delegate.sendResponseHeaders(rCode, responseLength);
+            if (responseLength == -1) finish();
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return new FilterOutputStream(delegate.getResponseBody()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        out.close();
+                    } finally {
+                        finish();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+            finish();
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return delegate.getRequestHeaders();
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return delegate.getResponseHeaders();
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return delegate.getRequestURI();
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return delegate.getRequestMethod();
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return delegate.getHttpContext();
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return delegate.getRequestBody();
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return delegate.getRemoteAddress();
+        }
+
+        @Override
+        public int getResponseCode() {
+            return delegate.getResponseCode();
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return delegate.getLocalAddress();
+        }
+
+        @Override
+        public String getProtocol() {
+            return delegate.getProtocol();
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return delegate.getAttribute(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            delegate.setAttribute(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            delegate.setStreams(i, o);
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return delegate.getPrincipal();
+        }
+    }
+}
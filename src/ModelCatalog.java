@@ -0,0 +1,171 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * /v1/models 的响应缓存，按账号（long-term token）索引。
+ * <p>
+ * 每条记录保存序列化好的响应字节和 ETag。TTL（{@code copilot.models.ttlSeconds}，默认 600 秒）内直接返回；
+ * 过期后先返回旧数据，同时在后台刷新（stale-while-revalidate），同一账号同时只有一次刷新。
+ * 超过 {@code copilot.models.maxStaleSeconds}（默认 86400 秒）的数据不再使用，请求线程同步拉取。
+ * 静态模型表在启动时序列化一次，作为未认证请求的响应。
+ */
+public final class ModelCatalog {
+    private static final Log.Logger LOG = Log.logger(ModelCatalog.class);
+    private static final long TTL_MILLIS = Long.getLong("copilot.models.ttlSeconds", 600L) * 1000L;
+    private static final long MAX_STALE_MILLIS = Long.getLong("copilot.models.maxStaleSeconds", 86400L) * 1000L;
+    // 没有 Bearer token 时使用数据库中任意账号，这些请求共用一条缓存
+    private static final String SHARED_KEY = "";
+
+    private static final ConcurrentHashMap<String, Snapshot> CACHE = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, CompletableFuture<Snapshot>> IN_FLIGHT = new ConcurrentHashMap<>();
+    // 已提交给 REFRESHER、尚未完成的后台刷新；提交时就标记，避免刷新开始前重复排队
+    private static final Set<String> REFRESHING = ConcurrentHashMap.newKeySet();
+    private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "models-refresher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * 静态模型表的响应
+     */
+    public static final Snapshot STATIC = Snapshot.of(ModelService.models);
+
+    private ModelCatalog() {
+    }
+
+    /**
+     * 序列化好的一份模型列表
+     */
+    public static final class Snapshot {
+        final byte[] body;
+        final String etag;
+        final long fetchedAt;
+
+        private Snapshot(byte[] body, String etag, long fetchedAt) {
+            this.body = body;
+            this.etag = etag;
+            this.fetchedAt = fetchedAt;
+        }
+
+        static Snapshot of(List<JSONObject> models) {
+            JSONArray dataArray = new JSONArray();
+            for (JSONObject model : models) {
+                dataArray.put(model);
+            }
+            JSONObject responseJson = new JSONObject();
+            responseJson.put("data", dataArray);
+            responseJson.put("object", "list");
+            byte[] body = responseJson.toString().getBytes(StandardCharsets.UTF_8);
+            return new Snapshot(body, etagOf(body), System.currentTimeMillis());
+        }
+
+        /**
+         * If-None-Match 是否命中当前 ETag
+         */
+        public boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) return false;
+            for (String tag : ifNoneMatch.split(",")) {
+                String t = tag.trim();
+                if (t.startsWith("W/")) t = t.substring(2);
+                if (t.equals("*") || t.equals(etag)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 缓存键：Bearer 后面的 long-term token，其余情况共用一条
+     */
+    public static String keyFor(String authorizationHeader) {
+        if (authorizationHeader == null || !authorizationHeader.startsWith("Bearer ")) {
+            return SHARED_KEY;
+        }
+        return authorizationHeader.substring("Bearer ".length()).trim();
+    }
+
+    /**
+     * 返回仍可使用的缓存；已超过 TTL 时顺带触发后台刷新。没有可用缓存时返回 null。
+     */
+    public static Snapshot cached(String key) {
+        Snapshot snapshot = CACHE.get(key);
+        if (snapshot == null) return null;
+        long age = System.currentTimeMillis() - snapshot.fetchedAt;
+        if (age < TTL_MILLIS) return snapshot;
+        if (age > MAX_STALE_MILLIS) return null;
+        refreshAsync(key);
+        return snapshot;
+    }
+
+    /**
+     * 用已获取的临时 token 同步拉取模型列表并写入缓存
+     */
+    public static Snapshot load(String key, String tempToken) throws Exception {
+        CompletableFuture<Snapshot> mine = new CompletableFuture<>();
+        CompletableFuture<Snapshot> existing = IN_FLIGHT.putIfAbsent(key, mine);
+        if (existing != null) {
+            return existing.get();
+        }
+        try {
+            Snapshot snapshot = Snapshot.of(ModelService.fetchModels(tempToken));
+            CACHE.put(key, snapshot);
+            mine.complete(snapshot);
+            return snapshot;
+        } catch (Exception e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            IN_FLIGHT.remove(key, mine);
+        }
+    }
+
+    private static void refreshAsync(String key) {
+        if (IN_FLIGHT.containsKey(key) || !REFRESHING.add(key)) return;
+        REFRESHER.execute(() -> {
+            try {
+                load(key, tempTokenFor(key));
+            } catch (Exception e) {
+                // 刷新失败时继续返回旧数据
+                LOG.warn("Background model refresh failed", "error", e.getMessage());
+            } finally {
+                REFRESHING.remove(key);
+            }
+        });
+    }
+
+    private static String tempTokenFor(String key) throws IOException {
+        String longTermToken = key;
+        if (SHARED_KEY.equals(key)) {
+            AccountPool.Account account = AccountPool.select();
+            longTermToken = account != null ? account.token() : null;
+        }
+        if (longTermToken == null) {
+            throw new IOException("No long-term token available.");
+        }
+        return TempTokenCache.get(longTermToken);
+    }
+
+    private static String etagOf(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            StringBuilder sb = new StringBuilder(34).append('"');
+            for (int i = 0; i < 16; i++) {
+                sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -15,6 +15,11 @@ import java.util.List;
 
 public class ModelService {
     public static List<JSONObject> models = new ArrayList<>();
+    private static String MODELS_URL = "https://api.individual.githubcopilot.com/models";
+
+    public static void setModelsUrl(String url) {
+        MODELS_URL = url;
+    }
 
     static {
         try {
@@ -468,7 +473,7 @@ public class ModelService {
         OkHttpClient client = utils.getOkHttpClient();
 
         Request request = new Request.Builder()
-                .url("https://api.individual.githubcopilot.com/models")
+                .url(MODELS_URL)
                 .addHeader("authorization", "Bearer " + token)
                 .addHeader("editor-version", HeadersInfo.editor_version)
                 .addHeader("copilot_language_server_version", HeadersInfo.copilot_language_server_version)
@@ -482,7 +487,6 @@ public class ModelService {
                 .addHeader("Sec-Fetch-Desc", "empty")
                 .addHeader("accept", "*/*")
                 .addHeader("accept-encoding", "gzip, deflate, br zstd")
-                .addHeader("Connection", "close")
                 .build();
 
         try (Response response = client.newCall(request).execute()) {
@@ -498,6 +502,8 @@ public class ModelService {
                 fetchedModels.add(jsonArray.getJSONObject(i));
             }
         }
+        TokenizerRegistry.registerModels(fetchedModels);
+        ImageInliner.registerModels(fetchedModels);
 
         return fetchedModels;
     }
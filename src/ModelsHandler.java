@@ -2,17 +2,13 @@ import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import org.json.JSONObject;
-import org.json.JSONArray;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class ModelsHandler implements HttpHandler {
-    private final ExecutorService executor = Executors.newFixedThreadPool(10);
+    private static final Log.Logger LOG = Log.logger(ModelsHandler.class);
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
@@ -39,40 +35,46 @@ public class ModelsHandler implements HttpHandler {
             return;
         }
 
-        // Handle request asynchronously
-        executor.submit(() -> {
+        // Dispatch the request (inline on a virtual thread, otherwise on the shared worker pool)
+        ServerExecutors.dispatch(() -> {
             try {
-                List<JSONObject> fetchedModels = ModelService.models;
+                ModelCatalog.Snapshot snapshot = ModelCatalog.STATIC;
                 // Read request headers
                 Headers requestHeaders = exchange.getRequestHeaders();
                 String authorizationHeader = requestHeaders.getFirst("Authorization");
                 if(authorizationHeader != null){
-                    // Get a valid short-term token
-                    String tempToken = utils.getToken(authorizationHeader, exchange);
-                    if (tempToken != null) {
-                        fetchedModels = ModelService.fetchModels(tempToken);
+                    String key = ModelCatalog.keyFor(authorizationHeader);
+                    // Only serve a cached catalog to tokens that are already validated or pooled
+                    boolean known = !authorizationHeader.startsWith("Bearer ") || TempTokenCache.contains(key) || AccountPool.get(key) != null;
+                    ModelCatalog.Snapshot cached = known ? ModelCatalog.cached(key) : null;
+                    if (cached != null) {
+                        snapshot = cached;
+                    } else {
+                        // Get a valid short-term token
+                        String tempToken = utils.getToken(authorizationHeader, exchange);
+                        if (tempToken == null) {
+                            return;
+                        }
+                        cached = ModelCatalog.cached(key);
+                        snapshot = cached != null ? cached : ModelCatalog.load(key, tempToken);
                     }
                 }
 
-                // Convert the model list to JSON object
-                JSONObject responseJson = new JSONObject();
-                JSONArray dataArray = new JSONArray();
-                for (JSONObject model : fetchedModels) {
-                    dataArray.put(model);
+                responseHeaders.set("ETag", snapshot.etag);
+                if (snapshot.matches(requestHeaders.getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
                 }
-                responseJson.put("data", dataArray);
-                responseJson.put("object", "list");
 
-                // Prepare response
-                byte[] responseBytes = responseJson.toString().getBytes(StandardCharsets.UTF_8);
-                exchange.getResponseHeaders().add("Content-Type", "application/json");
-                exchange.sendResponseHeaders(200, responseBytes.length);
+                // Precomputed response bytes
+                exchange.sendResponseHeaders(200, snapshot.body.length);
                 try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(responseBytes);
+                    os.write(snapshot.body);
                 }
 
             } catch (Exception e) {
-                e.printStackTrace();
+                LOG.error("Models request failed", e);
                 sendError(exchange, "Internal Server Error: " + e.getMessage(), 500);
             }
         });
@@ -92,7 +94,7 @@ public class ModelsHandler implements HttpHandler {
                 os.write(bytes);
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            LOG.debug("Error response not sent", "error", e.getMessage());
         }
     }
 }
@@ -0,0 +1,284 @@
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * 按长期 token 限制发往上游的请求速率，避免把客户端的突发流量原样转发导致账号被限流。
+ * <p>
+ * 每个账号两个令牌桶：每分钟请求数（RPM）和每分钟估算 token 数（TPM）。桶用 GCRA 实现，
+ * 状态只是一个 {@link AtomicLong}（理论到达时间），检查和扣减是一次 CAS，没有锁。
+ * 桶容量为 {@code copilot.ratelimit.burstSeconds}（默认 10）秒的额度。
+ * <ul>
+ *     <li>上限：tokens.db 中账号的 {@code rpm_limit} / {@code tpm_limit}（可用 {@code --account-rate-limit} 设置），未配置时用
+ *     {@code copilot.ratelimit.rpm} / {@code copilot.ratelimit.tpm}（也可用 {@code --rate-limit rpm[,tpm]}），0 表示不限</li>
+ *     <li>TPM 在请求前按 {@link TokenizerRegistry} 估算 prompt，响应结束后补扣 completion</li>
+ *     <li>合并的非流式请求（见 {@link RequestCoalescer}）只由实际调用上游的请求占用额度</li>
+ *     <li>额度不足时最多等待 {@code copilot.ratelimit.maxWaitMillis}（默认 2000），否则以 429 拒绝</li>
+ *     <li>上游返回 429 时，在 Retry-After 之前不再放行该账号的请求，并把 RPM 上限学习为最近一分钟实际请求数的 90%（不低于 {@code copilot.ratelimit.minLearnedRpm}，默认 10），
+ *     {@code copilot.ratelimit.learnedMinutes}（默认 10）分钟内没有再次 429 则恢复</li>
+ * </ul>
+ */
+public final class RateLimiter {
+    private static final Log.Logger LOG = Log.logger(RateLimiter.class);
+    private static final long MINUTE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(Math.max(1, Long.getLong("copilot.ratelimit.burstSeconds", 10L)));
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("copilot.ratelimit.maxWaitMillis", 2000L));
+    private static final long LEARNED_NANOS = TimeUnit.MINUTES.toNanos(Long.getLong("copilot.ratelimit.learnedMinutes", 10L));
+    private static final long MIN_LEARNED_RPM = Math.max(1, Long.getLong("copilot.ratelimit.minLearnedRpm", 10L));
+    // 所有时间相对于 ORIGIN，保证为正数
+    private static final long ORIGIN = System.nanoTime();
+
+    private static volatile long defaultRpm = Long.getLong("copilot.ratelimit.rpm", 0L);
+    private static volatile long defaultTpm = Long.getLong("copilot.ratelimit.tpm", 0L);
+
+    private static final TokenManager tokenManager = new TokenManager();
+    private static final ConcurrentHashMap<String, Limits> ACCOUNTS = new ConcurrentHashMap<>();
+
+    private static final Metrics.Counter DELAYED = Metrics.counter("copilot_ratelimit_requests_total",
+            "Requests checked against per-account rate limits by outcome", "result", "delayed");
+    private static final Metrics.Counter REJECTED = Metrics.counter("copilot_ratelimit_requests_total",
+            "Requests checked against per-account rate limits by outcome", "result", "rejected");
+    private static final Metrics.Counter LEARNED = Metrics.counter("copilot_ratelimit_learned_total",
+            "Upstream 429 responses that lowered an account's request limit");
+
+    private RateLimiter() {
+    }
+
+    /**
+     * 账号额度不足，等待时间超过上限
+     */
+    public static final class RateLimitedException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final long retryAfterMillis;
+
+        public RateLimitedException(long retryAfterMillis) {
+            super("Rate limit exceeded, retry after " + retryAfterMillis + " ms");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public long retryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+
+    /**
+     * GCRA 令牌桶：tat 为理论到达时间，领先当前时间不超过桶容量时放行
+     */
+    static final class Bucket {
+        final AtomicLong tat = new AtomicLong();
+
+        /**
+         * 预约 cost 个单位。返回需要等待的纳秒数（>= 0，已扣减）；等待超过 maxWait 时不扣减，返回负的等待时间
+         */
+        long reserve(long cost, long limitPerMinute, long now, long maxWait) {
+            long interval = MINUTE_NANOS / limitPerMinute;
+            // 单个请求最多占满整个桶，超大的 prompt 也能在桶满时通过
+            long increment = Math.min(cost * interval, Math.max(interval, BURST_NANOS));
+            long burst = Math.max(interval, BURST_NANOS);
+            while (true) {
+                long current = tat.get();
+                long next = Math.max(current, now) + increment;
+                long wait = next - burst - now;
+                if (wait > maxWait) return -wait;
+                if (tat.compareAndSet(current, next)) return Math.max(0, wait);
+            }
+        }
+
+        void refund(long cost, long limitPerMinute) {
+            tat.addAndGet(-Math.min(cost * (MINUTE_NANOS / limitPerMinute), Math.max(MINUTE_NANOS / limitPerMinute, BURST_NANOS)));
+        }
+
+        /**
+         * 不检查额度直接扣减（例如响应结束后补扣 completion token）
+         */
+        void charge(long cost, long limitPerMinute, long now) {
+            long increment = cost * (MINUTE_NANOS / limitPerMinute);
+            tat.getAndUpdate(current -> Math.min(Math.max(current, now) + increment, now + MINUTE_NANOS));
+        }
+
+        /**
+         * 在 until 之前不放行
+         */
+        void blockUntil(long until, long limitPerMinute) {
+            long target = until + Math.max(MINUTE_NANOS / limitPerMinute, BURST_NANOS) - MINUTE_NANOS / limitPerMinute;
+            tat.accumulateAndGet(target, Math::max);
+        }
+    }
+
+    /**
+     * 一个账号的上限和两个桶
+     */
+    static final class Limits {
+        final Bucket requests = new Bucket();
+        final Bucket tokens = new Bucket();
+        // 数据库中配置的上限，0 表示用默认值
+        final long rpm;
+        final long tpm;
+        // 从 429 学到的 RPM 上限及其失效时间
+        volatile long learnedRpm;
+        volatile long learnedUntil;
+        // 最近一分钟的请求数，窗口粗略重置即可
+        final AtomicLong windowStart = new AtomicLong();
+        final AtomicLong windowCount = new AtomicLong();
+        volatile long lastWindowCount;
+
+        Limits(long rpm, long tpm) {
+            this.rpm = rpm;
+            this.tpm = tpm;
+        }
+
+        long rpm(long now) {
+            long configured = rpm > 0 ? rpm : defaultRpm;
+            long learned = learnedRpm;
+            if (learned > 0 && now - learnedUntil < 0) {
+                return configured > 0 ? Math.min(configured, learned) : learned;
+            }
+            return configured;
+        }
+
+        long tpm() {
+            return tpm > 0 ? tpm : defaultTpm;
+        }
+
+        void count(long now) {
+            long start = windowStart.get();
+            if (now - start >= MINUTE_NANOS && windowStart.compareAndSet(start, now)) {
+                lastWindowCount = windowCount.getAndSet(0);
+            }
+            windowCount.incrementAndGet();
+        }
+
+        /**
+         * 最近一分钟左右的请求数
+         */
+        long recentRequests() {
+            return Math.max(windowCount.get(), lastWindowCount);
+        }
+    }
+
+    /**
+     * 默认上限，0 表示不限
+     */
+    public static void setDefaults(long rpm, long tpm) {
+        defaultRpm = rpm;
+        defaultTpm = tpm;
+    }
+
+    /**
+     * 把账号的上限写入 tokens.db，并丢弃已载入的上限，下一个请求重新读取
+     *
+     * @param account GitHub 用户名或长期 token
+     * @return 更新的账号数
+     */
+    public static int setAccountLimits(String account, long rpm, long tpm) {
+        int updated = tokenManager.setRateLimits(account, rpm, tpm);
+        if (updated > 0) {
+            ACCOUNTS.keySet().removeIf(token -> token.equals(account) || account.equals(tokenManager.getUsername(token)));
+        }
+        return updated;
+    }
+
+    /**
+     * 为一个上游请求占用额度，必要时等待。
+     *
+     * @param promptTokens 只有账号设置了 TPM 时才调用
+     * @return 0 表示可以发送；大于 0 表示额度不足，为建议的 Retry-After 毫秒数
+     */
+    public static long acquire(String longTermToken, IntSupplier promptTokens) {
+        Limits limits = limits(longTermToken);
+        long now = now();
+        long rpm = limits.rpm(now);
+        long tpm = limits.tpm();
+        limits.count(now);
+        if (rpm <= 0 && tpm <= 0) return 0;
+
+        long wait = 0;
+        if (rpm > 0) {
+            wait = limits.requests.reserve(1, rpm, now, MAX_WAIT_NANOS);
+            if (wait < 0) return reject(-wait);
+        }
+        if (tpm > 0) {
+            int cost = promptTokens.getAsInt();
+            long tokenWait = limits.tokens.reserve(Math.max(1, cost), tpm, now, MAX_WAIT_NANOS);
+            if (tokenWait < 0) {
+                if (rpm > 0) limits.requests.refund(1, rpm);
+                return reject(-tokenWait);
+            }
+            wait = Math.max(wait, tokenWait);
+        }
+        if (wait > 0) {
+            DELAYED.inc();
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 账号是否按 TPM 限速（已 acquire 过的账号），是时调用方需要统计 completion token 用于 {@link #charge}
+     */
+    public static boolean tracksTokens(String longTermToken) {
+        Limits limits = longTermToken != null ? ACCOUNTS.get(longTermToken) : null;
+        return limits != null && limits.tpm() > 0;
+    }
+
+    /**
+     * 响应结束后补扣 completion token
+     */
+    public static void charge(String longTermToken, int completionTokens) {
+        if (longTermToken == null || completionTokens <= 0) return;
+        Limits limits = ACCOUNTS.get(longTermToken);
+        if (limits == null) return;
+        long tpm = limits.tpm();
+        if (tpm > 0) limits.tokens.charge(completionTokens, tpm, now());
+    }
+
+    /**
+     * 上游返回 429：Retry-After 之前不再放行，并按最近的实际请求数降低 RPM 上限
+     *
+     * @param retryAfterMillis 上游的 Retry-After，没有时为负数
+     */
+    public static void onThrottled(String longTermToken, long retryAfterMillis) {
+        if (longTermToken == null) return;
+        Limits limits = limits(longTermToken);
+        long now = now();
+        long observed = Math.max(MIN_LEARNED_RPM, limits.recentRequests() * 9 / 10);
+        long current = limits.rpm(now);
+        if (current <= 0 || observed < current) {
+            limits.learnedRpm = observed;
+            LEARNED.inc();
+            LOG.warn("Lowered account request limit after upstream 429", "account", Log.mask(longTermToken),
+                    "rpm", observed, "retryAfterMs", retryAfterMillis);
+        }
+        limits.learnedUntil = now + LEARNED_NANOS;
+        if (retryAfterMillis > 0) {
+            limits.requests.blockUntil(now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis), limits.rpm(now));
+        }
+    }
+
+    private static long reject(long waitNanos) {
+        REJECTED.inc();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    }
+
+    private static Limits limits(String longTermToken) {
+        Limits limits = ACCOUNTS.get(longTermToken);
+        if (limits == null) {
+            // 数据库查询放在 computeIfAbsent 之外，并发首次访问时多查一次也无妨
+            long[] configured = tokenManager.getRateLimits(longTermToken);
+            Limits created = new Limits(configured[0], configured[1]);
+            limits = ACCOUNTS.putIfAbsent(longTermToken, created);
+            if (limits == null) limits = created;
+        }
+        return limits;
+    }
+
+    private static long now() {
+        return System.nanoTime() - ORIGIN;
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 合并相同的并发非流式 chat completions 请求，默认关闭（{@code --coalesce} 或 {@code copilot.coalesce.enabled=true}）。
+ * <p>
+ * 以规范化请求体（{@link StreamingRequest#digest()}）为键：同一键的上游调用进行中时，后到的请求不再调用上游，
+ * 而是等待同一个结果，所有请求得到相同的响应字节。调用结束即移除，结果不缓存。
+ * <p>
+ * 只合并确定性的请求：temperature 不超过 {@code copilot.coalesce.maxTemperature}（默认 0）。
+ * 未指定 temperature 时按上游默认值 1 处理，不合并。客户端自己指定了 token 的请求只和同一 token 的请求合并。
+ */
+public final class RequestCoalescer {
+    private static final double MAX_TEMPERATURE = Double.parseDouble(System.getProperty("copilot.coalesce.maxTemperature", "0"));
+
+    private static volatile boolean enabled = Boolean.getBoolean("copilot.coalesce.enabled");
+    private static final ConcurrentHashMap<String, CompletableFuture<Result>> IN_FLIGHT = new ConcurrentHashMap<>();
+    private static final Metrics.Counter LEADERS = Metrics.counter("copilot_coalesce_requests_total",
+            "Coalescing-eligible requests by whether they called upstream or joined an in-flight call", "role", "leader");
+    private static final Metrics.Counter FOLLOWERS = Metrics.counter("copilot_coalesce_requests_total",
+            "Coalescing-eligible requests by whether they called upstream or joined an in-flight call", "role", "follower");
+
+    private RequestCoalescer() {
+    }
+
+    /**
+     * 上游调用的结果，被合并的请求共享同一个实例
+     */
+    public static final class Result {
+        final int status;
+        final byte[] body;
+
+        Result(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        boolean isSuccessful() {
+            return status >= 200 && status < 300;
+        }
+    }
+
+    public interface Upstream {
+        Result call() throws IOException;
+    }
+
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * 请求是否可以合并：已开启、非流式、temperature 在阈值以内
+     */
+    public static boolean eligible(StreamingRequest request) {
+        return enabled && !request.isStream() && request.effectiveTemperature() <= MAX_TEMPERATURE;
+    }
+
+    /**
+     * @param scope 合并范围：客户端指定的 token，或账号池请求共用的常量
+     */
+    public static String key(StreamingRequest request, String scope) throws IOException {
+        return scope + ':' + request.digest();
+    }
+
+    /**
+     * 同一 key 没有进行中的调用时执行 upstream，否则等待进行中调用的结果（包括异常）
+     */
+    public static Result execute(String key, Upstream upstream) throws IOException {
+        CompletableFuture<Result> mine = new CompletableFuture<>();
+        CompletableFuture<Result> existing = IN_FLIGHT.putIfAbsent(key, mine);
+        if (existing != null) {
+            FOLLOWERS.inc();
+            try {
+                return existing.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a coalesced request");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new IOException(cause);
+            }
+        }
+
+        LEADERS.inc();
+        try {
+            Result result = upstream.call();
+            mine.complete(result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            IN_FLIGHT.remove(key, mine);
+        }
+    }
+}
@@ -0,0 +1,481 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 确定性请求的响应缓存，默认关闭（{@code --response-cache} 或 {@code copilot.cache.enabled=true}）。
+ * <p>
+ * 两级：堆内 LRU（{@code copilot.cache.memoryBytes}，默认 32 MiB）和 {@code tokens.db} 旁边的
+ * {@code responses.db}（{@code copilot.cache.path}，上限 {@code copilot.cache.diskBytes}，默认 256 MiB，0 表示只用内存）。
+ * 磁盘命中会提升到内存；写入磁盘在后台线程进行，不占用请求线程。条目超过 {@code copilot.cache.ttlSeconds}
+ * （默认 1 天）即失效，超过容量时淘汰最久未访问的条目，单个响应最大 {@code copilot.cache.maxEntryBytes}（默认 1 MiB）。
+ * <p>
+ * 键是请求范围（与 {@link RequestCoalescer#key} 相同：客户端指定的 token，或账号池请求共用的范围，只保存其哈希）
+ * 加上规范化请求的 SHA-256，不同调用方之间不共享缓存：chat completions 用 {@link StreamingRequest#digest()}，只缓存 temperature 不超过
+ * {@code copilot.cache.maxTemperature}（默认 0）的请求，流式响应按原样的 SSE 字节保存和重放；embeddings 按键排序后的 JSON 计算。
+ * 只缓存 200 响应。请求头 {@code Cache-Control: no-cache} 跳过查找但会用新结果更新缓存，{@code no-store} 既不查找也不写入。
+ * 响应头 {@code X-Cache} 为 HIT / MISS / BYPASS。
+ */
+public final class ResponseCache {
+    private static final Log.Logger LOG = Log.logger(ResponseCache.class);
+    private static final long MEMORY_BYTES = Long.getLong("copilot.cache.memoryBytes", 32L * 1024 * 1024);
+    private static final long DISK_BYTES = Long.getLong("copilot.cache.diskBytes", 256L * 1024 * 1024);
+    private static final long TTL_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("copilot.cache.ttlSeconds", 86400L));
+    private static final int MAX_ENTRY_BYTES = Integer.getInteger("copilot.cache.maxEntryBytes", 1024 * 1024);
+    private static final double MAX_TEMPERATURE = Double.parseDouble(System.getProperty("copilot.cache.maxTemperature", "0"));
+    // 每写入这么多条清理一次过期条目并校正磁盘用量
+    private static final int PURGE_INTERVAL = 256;
+
+    private static volatile boolean enabled = Boolean.getBoolean("copilot.cache.enabled");
+
+    private static final Object LOCK = new Object();
+    private static final LinkedHashMap<String, Entry> MEMORY = new LinkedHashMap<>(256, 0.75f, true);
+    private static long memoryBytes;
+
+    private ResponseCache() {
+    }
+
+    /**
+     * 请求的缓存策略，来自请求头 {@code Cache-Control}
+     */
+    public enum Policy {
+        /** 先查缓存，未命中时写入 */
+        USE,
+        /** no-cache：不查缓存，但写入新结果 */
+        REFRESH,
+        /** no-store，或缓存未开启：既不查也不写 */
+        BYPASS;
+
+        boolean lookup() {
+            return this == USE;
+        }
+
+        boolean store() {
+            return this != BYPASS;
+        }
+    }
+
+    /**
+     * 一条缓存的响应
+     */
+    public static final class Entry {
+        final String contentType;
+        final byte[] body;
+        final long created;
+
+        Entry(String contentType, byte[] body, long created) {
+            this.contentType = contentType;
+            this.body = body;
+            this.created = created;
+        }
+
+        boolean expired(long now) {
+            return now - created > TTL_MILLIS;
+        }
+    }
+
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static Policy policy(Headers requestHeaders) {
+        if (!enabled) return Policy.BYPASS;
+        List<String> values = requestHeaders.get("Cache-Control");
+        if (values == null) return Policy.USE;
+        Policy policy = Policy.USE;
+        for (String value : values) {
+            String v = value.toLowerCase(Locale.ROOT);
+            if (v.contains("no-store")) return Policy.BYPASS;
+            if (v.contains("no-cache")) policy = Policy.REFRESH;
+        }
+        return policy;
+    }
+
+    /**
+     * chat completions 请求的键；不可缓存（temperature 过高）时返回 null
+     *
+     * @param scope 缓存范围：客户端指定的 token，或账号池请求共用的常量
+     */
+    public static String chatKey(StreamingRequest request, String scope) throws IOException {
+        if (request.effectiveTemperature() > MAX_TEMPERATURE) return null;
+        return "chat:" + hex(sha256(scope), 16) + ':' + request.digest();
+    }
+
+    /**
+     * embeddings 请求的键，字段顺序和空白不影响结果
+     *
+     * @param scope 缓存范围：客户端指定的 token，或账号池请求共用的常量
+     */
+    public static String embeddingKey(JSONObject request, String scope) {
+        StringBuilder sb = new StringBuilder();
+        canonical(request, sb);
+        return "embeddings:" + hex(sha256(scope), 16) + ':' + hex(sha256(sb.toString()), 32);
+    }
+
+    private static byte[] sha256(String text) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes, int length) {
+        StringBuilder hex = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16)).append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void canonical(Object value, StringBuilder sb) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            List<String> keys = new ArrayList<>(object.keySet());
+            keys.sort(null);
+            sb.append('{');
+            for (int i = 0; i < keys.size(); i++) {
+                if (i > 0) sb.append(',');
+                sb.append(JSONObject.quote(keys.get(i))).append(':');
+                canonical(object.opt(keys.get(i)), sb);
+            }
+            sb.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            sb.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) sb.append(',');
+                canonical(array.opt(i), sb);
+            }
+            sb.append(']');
+        } else {
+            sb.append(JSONObject.valueToString(value));
+        }
+    }
+
+    /**
+     * 查找缓存，先内存后磁盘。endpoint 只用于指标
+     */
+    static Entry get(String endpoint, String key) {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (LOCK) {
+            entry = MEMORY.get(key);
+            if (entry != null && entry.expired(now)) {
+                MEMORY.remove(key);
+                memoryBytes -= entry.body.length;
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            count(endpoint, "memory_hit");
+            return entry;
+        }
+        entry = Disk.get(key, now);
+        if (entry != null) {
+            putMemory(key, entry);
+            count(endpoint, "disk_hit");
+            return entry;
+        }
+        count(endpoint, "miss");
+        return null;
+    }
+
+    public static void put(String key, String contentType, byte[] body) {
+        if (body.length > MAX_ENTRY_BYTES) return;
+        Entry entry = new Entry(contentType, body, System.currentTimeMillis());
+        putMemory(key, entry);
+        Disk.put(key, entry);
+    }
+
+    /**
+     * 按策略查找缓存并设置 {@code X-Cache} 响应头；命中时返回条目（用 {@link #send} 写出）。
+     *
+     * @param key 请求不可缓存时为 null
+     */
+    public static Entry lookup(HttpExchange exchange, String endpoint, Policy policy, String key) {
+        if (!enabled) return null;
+        if (key == null || !policy.lookup()) {
+            count(endpoint, "bypass");
+            exchange.getResponseHeaders().set("X-Cache", "BYPASS");
+            return null;
+        }
+        Entry entry = get(endpoint, key);
+        exchange.getResponseHeaders().set("X-Cache", entry != null ? "HIT" : "MISS");
+        return entry;
+    }
+
+    /**
+     * 把命中的响应写给客户端
+     */
+    public static void send(HttpExchange exchange, Entry entry) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", entry.contentType);
+        exchange.sendResponseHeaders(200, entry.body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(entry.body);
+        }
+    }
+
+    /**
+     * 边写给客户端边记录的输出流，用于缓存流式响应；超过单条上限后停止记录
+     */
+    public static final class Recorder extends FilterOutputStream {
+        private final ByteArrayOutputStream copy = new ByteArrayOutputStream(4096);
+        private boolean overflow;
+
+        public Recorder(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (!overflow) {
+                copy.write(b);
+                overflow = copy.size() > MAX_ENTRY_BYTES;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (!overflow) {
+                copy.write(b, off, len);
+                overflow = copy.size() > MAX_ENTRY_BYTES;
+            }
+        }
+
+        /**
+         * 响应完整写出后调用，保存记录下的字节
+         */
+        public void store(String key, String contentType) {
+            if (!overflow) put(key, contentType, copy.toByteArray());
+        }
+    }
+
+    private static void putMemory(String key, Entry entry) {
+        if (entry.body.length > MEMORY_BYTES) return;
+        synchronized (LOCK) {
+            Entry old = MEMORY.put(key, entry);
+            memoryBytes += entry.body.length - (old != null ? old.body.length : 0);
+            Iterator<Map.Entry<String, Entry>> it = MEMORY.entrySet().iterator();
+            while (memoryBytes > MEMORY_BYTES && it.hasNext()) {
+                memoryBytes -= it.next().getValue().body.length;
+                it.remove();
+            }
+        }
+    }
+
+    private static void count(String endpoint, String result) {
+        Metrics.counter("copilot_response_cache_requests_total", "Response cache lookups by endpoint and result",
+                "endpoint", endpoint, "result", result).inc();
+    }
+
+    static {
+        Metrics.gauge("copilot_response_cache_bytes", "Bytes held by the response cache", () -> {
+            synchronized (LOCK) {
+                return memoryBytes;
+            }
+        }, "tier", "memory");
+        Metrics.gauge("copilot_response_cache_entries", "Entries held by the response cache", () -> {
+            synchronized (LOCK) {
+                return MEMORY.size();
+            }
+        }, "tier", "memory");
+    }
+
+    /**
+     * 磁盘层，第一次用到时才打开 responses.db
+     */
+    private static final class Disk {
+        private static final SqlitePool POOL = DISK_BYTES > 0 ? open() : null;
+        private static final AtomicLong BYTES = new AtomicLong();
+        private static final AtomicLong WRITES = new AtomicLong();
+        // 单个后台写线程，队列满时丢弃写入（缓存只是优化）
+        private static final ThreadPoolExecutor WRITER = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1024), r -> {
+            Thread t = new Thread(r, "response-cache-writer");
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+
+        static {
+            if (POOL != null) {
+                refreshSize();
+                Metrics.gauge("copilot_response_cache_bytes", "Bytes held by the response cache", BYTES::get, "tier", "disk");
+            }
+        }
+
+        private static SqlitePool open() {
+            String path = System.getProperty("copilot.cache.path");
+            if (path == null) {
+                File tokens = new File(System.getProperty("copilot.db.path", "tokens.db")).getAbsoluteFile();
+                path = new File(tokens.getParentFile(), "responses.db").getPath();
+            }
+            try {
+                SqlitePool pool = new SqlitePool("jdbc:sqlite:" + path, 2);
+                pool.write(conn -> {
+                    try (Statement stmt = conn.connection().createStatement()) {
+                        stmt.execute("CREATE TABLE IF NOT EXISTS responses ("
+                                + "key TEXT PRIMARY KEY, "
+                                + "content_type TEXT NOT NULL, "
+                                + "body BLOB NOT NULL, "
+                                + "size INTEGER NOT NULL, "
+                                + "created INTEGER NOT NULL, "
+                                + "last_access INTEGER NOT NULL"
+                                + ");");
+                        return stmt.execute("CREATE INDEX IF NOT EXISTS responses_last_access ON responses(last_access);");
+                    }
+                });
+                return pool;
+            } catch (SQLException | IllegalStateException e) {
+                LOG.warn("Response cache database unavailable, caching in memory only", "path", path, "error", e.getMessage());
+                return null;
+            }
+        }
+
+        static Entry get(String key, long now) {
+            if (POOL == null) return null;
+            try {
+                Entry entry = POOL.read(conn -> {
+                    PreparedStatement pstmt = conn.prepare("SELECT content_type, body, created FROM responses WHERE key = ?");
+                    pstmt.setString(1, key);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        return rs.next() ? new Entry(rs.getString(1), rs.getBytes(2), rs.getLong(3)) : null;
+                    }
+                });
+                if (entry == null) return null;
+                if (entry.expired(now)) {
+                    WRITER.execute(() -> delete(key));
+                    return null;
+                }
+                WRITER.execute(() -> touch(key, now));
+                return entry;
+            } catch (SQLException e) {
+                LOG.warn("Response cache read failed", "error", e.getMessage());
+                return null;
+            }
+        }
+
+        static void put(String key, Entry entry) {
+            if (POOL == null) return;
+            WRITER.execute(() -> {
+                try {
+                    POOL.write(conn -> {
+                        PreparedStatement pstmt = conn.prepare(
+                                "INSERT OR REPLACE INTO responses(key, content_type, body, size, created, last_access) VALUES(?, ?, ?, ?, ?, ?)");
+                        pstmt.setString(1, key);
+                        pstmt.setString(2, entry.contentType);
+                        pstmt.setBytes(3, entry.body);
+                        pstmt.setInt(4, entry.body.length);
+                        pstmt.setLong(5, entry.created);
+                        pstmt.setLong(6, entry.created);
+                        return pstmt.executeUpdate();
+                    });
+                    BYTES.addAndGet(entry.body.length);
+                    if (WRITES.incrementAndGet() % PURGE_INTERVAL == 0) {
+                        purgeExpired();
+                    }
+                    if (BYTES.get() > DISK_BYTES) {
+                        evict();
+                    }
+                } catch (SQLException e) {
+                    LOG.warn("Response cache write failed", "error", e.getMessage());
+                }
+            });
+        }
+
+        private static void touch(String key, long now) {
+            try {
+                POOL.write(conn -> {
+                    PreparedStatement pstmt = conn.prepare("UPDATE responses SET last_access = ? WHERE key = ?");
+                    pstmt.setLong(1, now);
+                    pstmt.setString(2, key);
+                    return pstmt.executeUpdate();
+                });
+            } catch (SQLException e) {
+                LOG.debug("Response cache touch failed", "error", e.getMessage());
+            }
+        }
+
+        private static void delete(String key) {
+            try {
+                POOL.write(conn -> {
+                    PreparedStatement pstmt = conn.prepare("DELETE FROM responses WHERE key = ?");
+                    pstmt.setString(1, key);
+                    return pstmt.executeUpdate();
+                });
+                refreshSize();
+            } catch (SQLException e) {
+                LOG.debug("Response cache delete failed", "error", e.getMessage());
+            }
+        }
+
+        private static void purgeExpired() throws SQLException {
+            POOL.write(conn -> {
+                PreparedStatement pstmt = conn.prepare("DELETE FROM responses WHERE created < ?");
+                pstmt.setLong(1, System.currentTimeMillis() - TTL_MILLIS);
+                return pstmt.executeUpdate();
+            });
+            refreshSize();
+        }
+
+        /**
+         * 按最久未访问的顺序删除，直到用量回到上限的 90%
+         */
+        private static void evict() throws SQLException {
+            refreshSize();
+            while (BYTES.get() > DISK_BYTES * 9 / 10) {
+                int deleted = POOL.write(conn -> {
+                    PreparedStatement pstmt = conn.prepare(
+                            "DELETE FROM responses WHERE key IN (SELECT key FROM responses ORDER BY last_access LIMIT 64)");
+                    return pstmt.executeUpdate();
+                });
+                refreshSize();
+                if (deleted == 0) break;
+            }
+        }
+
+        // INSERT OR REPLACE 会让累加值偏大，定期以 SUM 为准
+        private static void refreshSize() {
+            try {
+                BYTES.set(POOL.read(conn -> {
+                    PreparedStatement pstmt = conn.prepare("SELECT COALESCE(SUM(size), 0) FROM responses");
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        return rs.next() ? rs.getLong(1) : 0L;
+                    }
+                }));
+            } catch (SQLException e) {
+                LOG.debug("Response cache size query failed", "error", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HttpServer 的执行模型。
+ * <p>
+ * 默认（平台线程）模式：HttpServer 用一个小的固定线程池接收请求，handler 再把阻塞的上游调用派发到共享的 worker 池
+ * （{@code copilot.workerThreads}，默认 4 × CPU）。
+ * <p>
+ * 虚拟线程模式（{@code --virtual-threads}，需要 JDK 21+）：每个请求一个虚拟线程，handler 直接在该线程上执行，
+ * OkHttp / SQLite 的阻塞调用只会让虚拟线程挂起，不再占用平台线程。
+ */
+public final class ServerExecutors {
+    private static final Log.Logger LOG = Log.logger(ServerExecutors.class);
+    private static final int WORKER_THREADS =
+            Integer.getInteger("copilot.workerThreads", Math.max(8, 4 * Runtime.getRuntime().availableProcessors()));
+
+    private static volatile boolean virtualThreads;
+    private static volatile ThreadPoolExecutor workers;
+    private static volatile ThreadPoolExecutor streamWriters;
+
+    private ServerExecutors() {
+    }
+
+    /**
+     * 根据启动参数创建 HttpServer 使用的 executor。虚拟线程不可用时退回平台线程模式。
+     */
+    public static ExecutorService createServerExecutor(boolean useVirtualThreads) {
+        if (useVirtualThreads) {
+            ExecutorService executor = newVirtualThreadPerTaskExecutor();
+            if (executor != null) {
+                virtualThreads = true;
+                LOG.info("Using virtual-thread-per-request execution");
+                return executor;
+            }
+            LOG.warn("Virtual threads require JDK 21+, falling back to platform threads");
+        }
+        virtualThreads = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), namedFactory("http-server"));
+        registerGauges("http-server", executor);
+        return executor;
+    }
+
+    public static boolean isVirtual() {
+        return virtualThreads;
+    }
+
+    /**
+     * 执行一个请求任务：虚拟线程模式下直接在当前（虚拟）线程执行，否则交给共享 worker 池
+     */
+    public static void dispatch(Runnable task) {
+        if (virtualThreads) {
+            task.run();
+        } else {
+            workers().execute(task);
+        }
+    }
+
+    /**
+     * 派发一个排队后被放行的请求任务（见 {@link AdmissionController}）。调用方是另一个请求的线程，
+     * 所以虚拟线程模式下为它启动新的虚拟线程，而不是在当前线程上执行
+     */
+    public static void dispatchQueued(Runnable task) {
+        if (virtualThreads && startVirtualThread(task)) return;
+        workers().execute(task);
+    }
+
+    /**
+     * 共享 worker 池，平台线程模式下才会创建
+     */
+    public static ThreadPoolExecutor workers() {
+        ThreadPoolExecutor pool = workers;
+        if (pool == null) {
+            synchronized (ServerExecutors.class) {
+                pool = workers;
+                if (pool == null) {
+                    pool = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 60L, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(), namedFactory("request-worker"));
+                    registerGauges("request-worker", pool);
+                    workers = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * 在独立线程上运行一个与请求同生命周期的任务（例如 {@link SseRelay} 的写出线程）：
+     * 虚拟线程模式下每个任务一个虚拟线程，否则使用按需扩展的平台线程池，空闲 60 秒回收
+     */
+    public static void spawn(Runnable task) {
+        if (virtualThreads && startVirtualThread(task)) return;
+        ThreadPoolExecutor pool = streamWriters;
+        if (pool == null) {
+            synchronized (ServerExecutors.class) {
+                pool = streamWriters;
+                if (pool == null) {
+                    pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                            new SynchronousQueue<>(), namedFactory("stream-writer"));
+                    registerGauges("stream-writer", pool);
+                    streamWriters = pool;
+                }
+            }
+        }
+        pool.execute(task);
+    }
+
+    private static boolean startVirtualThread(Runnable task) {
+        try {
+            Thread.class.getMethod("startVirtualThread", Runnable.class).invoke(null, task);
+            return true;
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static void registerGauges(String name, ThreadPoolExecutor pool) {
+        Metrics.gauge("copilot_executor_queue_depth", "Tasks waiting for a thread", () -> pool.getQueue().size(),
+                "executor", name);
+        Metrics.gauge("copilot_executor_active_threads", "Threads running a task", pool::getActiveCount,
+                "executor", name);
+    }
+
+    /**
+     * 通过反射调用 {@code Executors.newVirtualThreadPerTaskExecutor()}，这样项目仍可用 JDK 17 编译
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,128 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 长连接的 SQLite 连接池。
+ * <p>
+ * 数据库以 WAL 模式打开（{@code synchronous=NORMAL}），读操作从固定数量的只读连接中借用，
+ * 写操作走唯一的写连接并由锁串行化（SQLite 同时只允许一个写者）。每个连接缓存自己的 PreparedStatement，
+ * 请求路径上不再有打开/关闭连接和重复编译 SQL 的开销。
+ */
+public final class SqlitePool {
+
+    /**
+     * 在借出的连接上执行的操作
+     */
+    @FunctionalInterface
+    public interface SqlFunction<T> {
+        T apply(PooledConnection connection) throws SQLException;
+    }
+
+    /**
+     * 带 PreparedStatement 缓存的连接
+     */
+    public static final class PooledConnection {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * 返回缓存的 PreparedStatement，参数会在复用前清空
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null || statement.isClosed()) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        public Connection connection() {
+            return connection;
+        }
+    }
+
+    private final BlockingQueue<PooledConnection> readers;
+    private final PooledConnection writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Metrics.Histogram readTime;
+    private final Metrics.Histogram writeTime;
+
+    public SqlitePool(String url, int readerCount) {
+        String db = url.substring(url.lastIndexOf(':') + 1);
+        db = db.substring(Math.max(db.lastIndexOf('/'), db.lastIndexOf('\\')) + 1);
+        this.readTime = Metrics.histogram("copilot_sqlite_query_seconds", "SQLite statement time, excluding the wait for a connection",
+                Metrics.LATENCY_BUCKETS, "db", db, "op", "read");
+        this.writeTime = Metrics.histogram("copilot_sqlite_query_seconds", "SQLite statement time, excluding the wait for a connection",
+                Metrics.LATENCY_BUCKETS, "db", db, "op", "write");
+        try {
+            // 先打开写连接以便设置 journal_mode，WAL 是持久化到数据库文件上的
+            this.writer = open(url);
+            this.readers = new ArrayBlockingQueue<>(readerCount);
+            for (int i = 0; i < readerCount; i++) {
+                readers.add(open(url));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Unable to open SQLite database " + url + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static PooledConnection open(String url) throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL;");
+            stmt.execute("PRAGMA synchronous = NORMAL;");
+            stmt.execute("PRAGMA foreign_keys = ON;");
+            stmt.execute("PRAGMA busy_timeout = 5000;");
+        }
+        return new PooledConnection(conn);
+    }
+
+    /**
+     * 借用一个读连接执行查询
+     */
+    public <T> T read(SqlFunction<T> fn) throws SQLException {
+        PooledConnection conn;
+        try {
+            conn = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        long start = System.nanoTime();
+        try {
+            return fn.apply(conn);
+        } finally {
+            readTime.observeSince(start);
+            readers.add(conn);
+        }
+    }
+
+    /**
+     * 在唯一的写连接上执行更新
+     */
+    public <T> T write(SqlFunction<T> fn) throws SQLException {
+        writeLock.lock();
+        long start = System.nanoTime();
+        try {
+            return fn.apply(writer);
+        } finally {
+            writeTime.observeSince(start);
+            writeLock.unlock();
+        }
+    }
+}
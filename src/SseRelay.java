@@ -0,0 +1,256 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 流式响应的下游写出：把读上游和写客户端分到两个线程。
+ * <p>
+ * 读上游的线程只把字节放进一个有界缓冲区（{@code copilot.sse.bufferBytes}，默认 64 KiB），由单独的写出线程
+ * 写给客户端。缓冲区满时读线程阻塞，于是上游的读取也随之暂停（背压），内存占用有上限。
+ * <p>
+ * {@link #flush()} 只标记一个 SSE 帧的结束，写出线程合并刷新：距上次刷新超过 {@code copilot.sse.flushMillis}
+ * （默认 10 ms）或未刷新的字节达到 {@code copilot.sse.flushBytes}（默认 8 KiB）时才真正 flush。第一帧立即刷新，
+ * 不影响首 token 时间。
+ * <p>
+ * 写客户端失败即认为客户端已断开：调用 onDisconnect（通常取消上游调用，释放连接和账号配额），
+ * 之后读线程的 write / flush / close 都抛出 {@link ClientDisconnectedException}。
+ * <p>
+ * 两个线程用 {@link ReentrantLock} 协调而不是对象监视器：JDK 21-23 上在 {@code Object.wait()} 中等待的虚拟线程
+ * 会钉住载体线程，而写出线程在整个流的生命周期内都在等待。
+ */
+public final class SseRelay extends OutputStream {
+    private static final int BUFFER_BYTES = Math.max(1024, Integer.getInteger("copilot.sse.bufferBytes", 64 * 1024));
+    private static final long FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("copilot.sse.flushMillis", 10L));
+    private static final int FLUSH_BYTES = Integer.getInteger("copilot.sse.flushBytes", 8 * 1024);
+
+    private static final Metrics.Counter DISCONNECTS = Metrics.counter("copilot_stream_client_disconnects_total",
+            "Streams whose client went away before the response was complete");
+    private static final Metrics.Counter STALLS = Metrics.counter("copilot_stream_backpressure_stalls_total",
+            "Times the upstream reader waited because the client was slower than upstream");
+    private static final Metrics.Counter FLUSHES = Metrics.counter("copilot_stream_flushes_total",
+            "Flushes to streaming clients after coalescing");
+
+    private final OutputStream client;
+    private final Runnable onDisconnect;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // 缓冲区有空位，或客户端已断开（读线程等待）
+    private final Condition space = lock.newCondition();
+    // 有数据、需要刷新、已关闭，或写出线程已结束（写出线程和 close 等待）
+    private final Condition ready = lock.newCondition();
+
+    // 以下字段由 lock 保护
+    private final byte[] ring = new byte[BUFFER_BYTES];
+    private int head;
+    private int count;
+    // 已接收的字节总数，以及最后一次 flush() 时的值
+    private long accepted;
+    private long flushMark;
+    private boolean closed;
+    private boolean writerDone;
+    private IOException failure;
+
+    /**
+     * 客户端断开后读线程收到的异常
+     */
+    public static final class ClientDisconnectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ClientDisconnectedException(IOException cause) {
+            super("Client disconnected: " + cause.getMessage(), cause);
+        }
+    }
+
+    private SseRelay(OutputStream client, Runnable onDisconnect) {
+        this.client = client;
+        this.onDisconnect = onDisconnect;
+    }
+
+    /**
+     * 创建并启动写出线程。关闭返回的流会等待缓冲区写完并关闭 client。
+     */
+    public static SseRelay start(OutputStream client, Runnable onDisconnect) {
+        SseRelay relay = new SseRelay(client, onDisconnect);
+        ServerExecutors.spawn(relay::drain);
+        return relay;
+    }
+
+    public boolean isDisconnected() {
+        lock.lock();
+        try {
+            return failure != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            if (closed) throw new IOException("Stream closed");
+            boolean stalled = false;
+            while (len > 0) {
+                while (count == ring.length && failure == null) {
+                    if (!stalled) {
+                        stalled = true;
+                        STALLS.inc();
+                    }
+                    await(space, 0);
+                }
+                if (failure != null) throw new ClientDisconnectedException(failure);
+                int tail = (head + count) % ring.length;
+                int n = Math.min(len, Math.min(ring.length - count, ring.length - tail));
+                System.arraycopy(b, off, ring, tail, n);
+                count += n;
+                accepted += n;
+                off += n;
+                len -= n;
+                ready.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 标记到目前为止的字节需要送达客户端，实际刷新由写出线程合并
+     */
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            if (failure != null) throw new ClientDisconnectedException(failure);
+            if (flushMark != accepted) {
+                flushMark = accepted;
+                ready.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 等待缓冲区全部写给客户端并关闭客户端流
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (!closed) {
+                closed = true;
+                ready.signalAll();
+            }
+            while (!writerDone) {
+                await(ready, 0);
+            }
+            if (failure != null) throw new ClientDisconnectedException(failure);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 在持有 lock 时等待 condition；nanos 为 0 表示不限时
+     */
+    private static void await(Condition condition, long nanos) throws InterruptedIOException {
+        try {
+            if (nanos > 0) {
+                condition.awaitNanos(nanos);
+            } else {
+                condition.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while relaying a stream");
+        }
+    }
+
+    /**
+     * 写出线程：取出缓冲区中的字节写给客户端，按需合并刷新
+     */
+    private void drain() {
+        byte[] chunk = new byte[Math.min(ring.length, 16 * 1024)];
+        long sent = 0;
+        long flushed = 0;
+        // 让第一帧立即刷新
+        long lastFlush = System.nanoTime() - FLUSH_NANOS;
+        try {
+            while (true) {
+                int n;
+                long mark;
+                boolean done;
+                lock.lock();
+                try {
+                    while (count == 0 && !closed) {
+                        if (flushMark > flushed) {
+                            long wait = lastFlush + FLUSH_NANOS - System.nanoTime();
+                            if (wait <= 0) break;
+                            await(ready, wait);
+                        } else {
+                            await(ready, 0);
+                        }
+                    }
+                    n = Math.min(count, Math.min(chunk.length, ring.length - head));
+                    System.arraycopy(ring, head, chunk, 0, n);
+                    head = (head + n) % ring.length;
+                    count -= n;
+                    mark = flushMark;
+                    done = closed && count == 0;
+                    if (n > 0) space.signal();
+                } finally {
+                    lock.unlock();
+                }
+                if (n > 0) {
+                    client.write(chunk, 0, n);
+                    sent += n;
+                }
+                long now = System.nanoTime();
+                if (sent > flushed && (done || sent - flushed >= FLUSH_BYTES
+                        || (mark > flushed && sent >= mark && now - lastFlush >= FLUSH_NANOS))) {
+                    client.flush();
+                    FLUSHES.inc();
+                    flushed = sent;
+                    lastFlush = now;
+                }
+                if (done) break;
+            }
+            client.close();
+        } catch (IOException e) {
+            disconnected(e);
+        } finally {
+            lock.lock();
+            try {
+                writerDone = true;
+                ready.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void disconnected(IOException e) {
+        lock.lock();
+        try {
+            failure = e;
+            // 丢弃未写出的字节，唤醒等待空间的读线程
+            count = 0;
+            space.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        DISCONNECTS.inc();
+        try {
+            onDisconnect.run();
+        } catch (RuntimeException ignored) {
+        }
+    }
+}
@@ -0,0 +1,489 @@
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 流式解析 chat completions 请求体，不构建 JSON DOM。
+ * <p>
+ * 逐个 token 扫描请求，原始字节按片段保存在 okio Buffer 中（只保存一份，重试时可重放），
+ * 同时只取出代理需要的字段：{@code model}、{@code stream}、{@code stream_options.include_usage}、
+ * 消息中的文本（用于统计 prompt tokens）以及 {@code image_url.url}。远程图片 URL 在原位置替换为
+ * data URI，{@link #toRequestBody()} 把各片段直接写入 OkHttp 的 sink，不再经过 String。
+ */
+public final class StreamingRequest {
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final ByteString QUOTE_OR_BACKSLASH = ByteString.encodeUtf8("\"\\");
+    private static final ByteString LITERAL_END = ByteString.encodeUtf8(",}] \t\r\n");
+    private static final ByteString DATA_URI_START = ByteString.encodeUtf8("\"data:");
+    private static final int MAX_DEPTH = 256;
+    // 未指定 temperature 时上游使用的默认值
+    private static final double DEFAULT_TEMPERATURE = 1.0;
+
+    /**
+     * 请求体不是合法的 JSON，或缺少必需字段
+     */
+    public static final class MalformedJsonException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedJsonException(String message) {
+            super(message);
+        }
+    }
+
+    // 当前所在的对象 / 数组元素类型，决定哪些字段需要提取
+    private enum Kind { ROOT, STREAM_OPTIONS, MESSAGE, PART, IMAGE_URL, OTHER }
+
+    /**
+     * 一个远程图片 URL 在请求体中的位置
+     */
+    private static final class ImagePart {
+        final Buffer raw;   // 原始 JSON 字符串（含引号），下载失败时原样写回
+        final String url;
+        ByteString dataUri;
+
+        ImagePart(Buffer raw, String url) {
+            this.raw = raw;
+            this.url = url;
+        }
+
+        long size() {
+            return dataUri != null ? dataUri.size() + 2 : raw.size();
+        }
+    }
+
+    private String model;
+    private boolean stream;
+    private boolean includeUsage;
+    private boolean hasImage;
+    private double temperature = Double.NaN;
+    private final List<String> promptTexts = new ArrayList<>();
+    // Buffer 或 ImagePart，按原始顺序
+    private final List<Object> parts = new ArrayList<>();
+    private final List<ImagePart> images = new ArrayList<>();
+
+    // 解析期间的状态
+    private BufferedSource src;
+    private Buffer out;
+    private int depth;
+    private long offset;
+
+    private StreamingRequest() {
+    }
+
+    /**
+     * 从请求流中解析。读完后流即可关闭，请求体之后只以 okio 片段形式存在。
+     */
+    public static StreamingRequest parse(InputStream in) throws IOException {
+        StreamingRequest request = new StreamingRequest();
+        request.src = Okio.buffer(Okio.source(in));
+        request.out = new Buffer();
+        request.skipWhitespace();
+        request.object(Kind.ROOT);
+        request.skipWhitespace();
+        if (!request.src.exhausted()) {
+            throw request.malformed("unexpected data after the request object");
+        }
+        request.parts.add(request.out);
+        request.src = null;
+        request.out = null;
+        if (request.model == null) {
+            throw new MalformedJsonException("Missing required field: model");
+        }
+        return request;
+    }
+
+    public String model() {
+        return model;
+    }
+
+    public boolean isStream() {
+        return stream;
+    }
+
+    public boolean includeUsage() {
+        return includeUsage;
+    }
+
+    public boolean hasImage() {
+        return hasImage;
+    }
+
+    /**
+     * 请求中的 temperature，未指定（或为 null）时为 NaN
+     */
+    public double temperature() {
+        return temperature;
+    }
+
+    /**
+     * 上游实际使用的 temperature：未指定时为默认值 1
+     */
+    public double effectiveTemperature() {
+        return Double.isNaN(temperature) ? DEFAULT_TEMPERATURE : temperature;
+    }
+
+    /**
+     * 请求体的 SHA-256（hex），字符串之外的空白不参与计算，缩进和换行不同的相同请求得到相同结果
+     */
+    public String digest() throws IOException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Buffer body = new Buffer();
+        toRequestBody().writeTo(body);
+        byte[] chunk = new byte[8192];
+        boolean inString = false, escaped = false;
+        int n;
+        while ((n = body.read(chunk)) > 0) {
+            int kept = 0;
+            for (int i = 0; i < n; i++) {
+                byte b = chunk[i];
+                if (inString) {
+                    if (escaped) escaped = false;
+                    else if (b == '\\') escaped = true;
+                    else if (b == '"') inString = false;
+                } else if (b == '"') {
+                    inString = true;
+                } else if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                    continue;
+                }
+                chunk[kept++] = b;
+            }
+            sha256.update(chunk, 0, kept);
+        }
+        return ByteString.of(sha256.digest()).hex();
+    }
+
+    /**
+     * 消息中的文本内容（字符串 content 和 text 片段）
+     */
+    public List<String> promptTexts() {
+        return promptTexts;
+    }
+
+    /**
+     * 下载远程图片并在原位置替换为 data URI（见 {@link ImageInliner}）
+     */
+    public void inlineImages() throws IOException {
+        if (images.isEmpty()) return;
+        List<String> urls = new ArrayList<>(images.size());
+        for (ImagePart image : images) {
+            urls.add(image.url);
+        }
+        ByteString[] resolved = ImageInliner.resolve(urls, model);
+        for (int i = 0; i < resolved.length; i++) {
+            images.get(i).dataUri = resolved[i];
+        }
+    }
+
+    /**
+     * 可重放的请求体，按片段直接写入 sink
+     */
+    public RequestBody toRequestBody() {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public long contentLength() {
+                long length = 0;
+                for (Object part : parts) {
+                    length += part instanceof Buffer ? ((Buffer) part).size() : ((ImagePart) part).size();
+                }
+                return length;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                for (Object part : parts) {
+                    if (part instanceof Buffer) {
+                        Buffer buffer = (Buffer) part;
+                        // 共享 segment，不复制字节
+                        buffer.copyTo(sink.getBuffer(), 0, buffer.size());
+                    } else {
+                        ImagePart image = (ImagePart) part;
+                        if (image.dataUri != null) {
+                            sink.writeByte('"').write(image.dataUri).writeByte('"');
+                        } else {
+                            image.raw.copyTo(sink.getBuffer(), 0, image.raw.size());
+                        }
+                    }
+                    sink.emitCompleteSegments();
+                }
+            }
+        };
+    }
+
+    /* ---------------- 解析 ---------------- */
+
+    private void object(Kind kind) throws IOException {
+        if (++depth > MAX_DEPTH) throw malformed("nesting too deep");
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            copyByte();
+        } else {
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') throw malformed("expected a member name");
+                copyByte();
+                String key = string(true);
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                member(kind, key);
+                skipWhitespace();
+                byte b = copyByte();
+                if (b == '}') break;
+                if (b != ',') throw malformed("expected ',' or '}'");
+            }
+        }
+        depth--;
+    }
+
+    private void array(Kind elementKind) throws IOException {
+        if (++depth > MAX_DEPTH) throw malformed("nesting too deep");
+        expect('[');
+        skipWhitespace();
+        if (peek() == ']') {
+            copyByte();
+        } else {
+            while (true) {
+                skipWhitespace();
+                value(elementKind);
+                skipWhitespace();
+                byte b = copyByte();
+                if (b == ']') break;
+                if (b != ',') throw malformed("expected ',' or ']'");
+            }
+        }
+        depth--;
+    }
+
+    /**
+     * 处理对象成员的值：需要的字段取出，其余原样复制
+     */
+    private void member(Kind kind, String key) throws IOException {
+        byte b = peek();
+        switch (kind) {
+            case ROOT:
+                if (key.equals("model") && b == '"') {
+                    copyByte();
+                    model = string(true);
+                    return;
+                }
+                if (key.equals("stream") && b != '"' && b != '{' && b != '[') {
+                    stream = "true".equals(literal());
+                    return;
+                }
+                if (key.equals("stream_options") && b == '{') {
+                    object(Kind.STREAM_OPTIONS);
+                    return;
+                }
+                if (key.equals("temperature") && b != '"' && b != '{' && b != '[') {
+                    String value = literal();
+                    try {
+                        temperature = Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        // null 或不合法的值交给上游处理
+                        temperature = Double.NaN;
+                    }
+                    return;
+                }
+                if (key.equals("messages") && b == '[') {
+                    array(Kind.MESSAGE);
+                    return;
+                }
+                break;
+            case STREAM_OPTIONS:
+                if (key.equals("include_usage") && b != '"' && b != '{' && b != '[') {
+                    includeUsage = "true".equals(literal());
+                    return;
+                }
+                break;
+            case MESSAGE:
+                if (key.equals("content")) {
+                    if (b == '"') {
+                        copyByte();
+                        promptTexts.add(string(true));
+                        return;
+                    }
+                    if (b == '[') {
+                        array(Kind.PART);
+                        return;
+                    }
+                }
+                break;
+            case PART:
+                if (key.equals("text") && b == '"') {
+                    copyByte();
+                    promptTexts.add(string(true));
+                    return;
+                }
+                if (key.equals("image_url") && b == '{') {
+                    hasImage = true;
+                    object(Kind.IMAGE_URL);
+                    return;
+                }
+                break;
+            case IMAGE_URL:
+                if (key.equals("url") && b == '"') {
+                    imageUrl();
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        value(Kind.OTHER);
+    }
+
+    private void value(Kind objectKind) throws IOException {
+        byte b = peek();
+        if (b == '{') {
+            object(objectKind);
+        } else if (b == '[') {
+            array(Kind.OTHER);
+        } else if (b == '"') {
+            copyByte();
+            string(false);
+        } else {
+            literal();
+        }
+    }
+
+    /**
+     * 图片 URL：已是 data URI 的直接复制；远程 URL 单独成为一个片段，稍后替换
+     */
+    private void imageUrl() throws IOException {
+        if (src.request(DATA_URI_START.size()) && src.rangeEquals(0, DATA_URI_START)) {
+            copyByte();
+            string(false);
+            return;
+        }
+        Buffer saved = out;
+        Buffer raw = new Buffer();
+        out = raw;
+        copyByte();
+        String url = string(true);
+        out = saved;
+        if (url.isEmpty()) {
+            out.writeAll(raw);
+            return;
+        }
+        parts.add(out);
+        ImagePart image = new ImagePart(raw, url);
+        parts.add(image);
+        images.add(image);
+        out = new Buffer();
+    }
+
+    /**
+     * 读取字符串剩余部分（开头的引号已复制），capture 为 true 时返回解码后的内容
+     */
+    private String string(boolean capture) throws IOException {
+        StringBuilder sb = capture ? new StringBuilder() : null;
+        while (true) {
+            long i = src.indexOfElement(QUOTE_OR_BACKSLASH);
+            if (i == -1) throw malformed("unterminated string");
+            if (i > 0) {
+                if (capture) {
+                    ByteString chunk = src.readByteString(i);
+                    out.write(chunk);
+                    sb.append(chunk.utf8());
+                } else {
+                    src.readFully(out, i);
+                }
+                offset += i;
+            }
+            byte b = copyByte();
+            if (b == '"') {
+                return capture ? sb.toString() : null;
+            }
+            byte e = copyByte();
+            if (e == 'u') {
+                src.require(4);
+                String hex = src.getBuffer().readUtf8(4);
+                out.writeUtf8(hex);
+                offset += 4;
+                if (capture) {
+                    try {
+                        sb.append((char) Integer.parseInt(hex, 16));
+                    } catch (NumberFormatException ex) {
+                        throw malformed("invalid unicode escape");
+                    }
+                }
+            } else if (capture) {
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    default: sb.append((char) e); // \" \\ \/
+                }
+            }
+        }
+    }
+
+    /**
+     * 数字、true、false、null
+     */
+    private String literal() throws IOException {
+        long i = src.indexOfElement(LITERAL_END);
+        if (i == -1) {
+            // 只有在顶层之后才会读到流末尾，这里必定不合法
+            throw malformed("unexpected end of input");
+        }
+        if (i == 0) throw malformed("unexpected character '" + (char) peek() + "'");
+        String token = src.readUtf8(i);
+        out.writeUtf8(token);
+        offset += i;
+        return token;
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (src.request(1)) {
+            byte b = src.getBuffer().getByte(0);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') return;
+            copyByte();
+        }
+    }
+
+    private byte peek() throws IOException {
+        if (!src.request(1)) throw malformed("unexpected end of input");
+        return src.getBuffer().getByte(0);
+    }
+
+    private byte copyByte() throws IOException {
+        if (!src.request(1)) throw malformed("unexpected end of input");
+        byte b = src.readByte();
+        out.writeByte(b);
+        offset++;
+        return b;
+    }
+
+    private void expect(char c) throws IOException {
+        if (copyByte() != c) throw malformed("expected '" + c + "'");
+    }
+
+    private MalformedJsonException malformed(String message) {
+        return new MalformedJsonException("Invalid JSON request body at offset " + offset + ": " + message);
+    }
+}
@@ -0,0 +1,64 @@
+import com.knuddels.jtokkit.api.Encoding;
+
+/**
+ * 流式 completion 的增量 token 计数器。
+ * <p>
+ * delta 到达时先放入一个小缓冲区，超过窗口（{@code copilot.usage.windowChars}，默认 512 字符）后，
+ * 在最后一个“单词 → 空白”边界处切开，只对前半部分分词计数，剩下的尾巴留到下一个窗口。
+ * cl100k / o200k 的预分词总是在空白前断开，所以按这种边界切分与整体计数几乎一致（只有空白与标点混排的边界处可能差一两个 token），
+ * 内存占用恒定，{@code [DONE]} 时只需处理最后一个窗口。
+ */
+public final class StreamingTokenCounter {
+    private static final int WINDOW = Integer.getInteger("copilot.usage.windowChars", 512);
+
+    private final Encoding encoding;
+    private final StringBuilder pending = new StringBuilder(WINDOW * 2);
+    private int tokens;
+
+    public StreamingTokenCounter(Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    public void append(CharSequence delta) {
+        pending.append(delta);
+        if (pending.length() >= WINDOW) {
+            drain(false);
+        }
+    }
+
+    /**
+     * 计数剩余部分并返回总 token 数
+     */
+    public int finish() {
+        drain(true);
+        return tokens;
+    }
+
+    private void drain(boolean all) {
+        int cut = all ? pending.length() : lastBoundary();
+        if (cut <= 0) {
+            // 一直没有空白（例如长串 base64），缓冲过大时强制切开
+            if (pending.length() < WINDOW * 4) {
+                return;
+            }
+            cut = pending.length();
+            if (Character.isHighSurrogate(pending.charAt(cut - 1))) {
+                cut--;
+            }
+        }
+        tokens += encoding.countTokens(pending.substring(0, cut));
+        pending.delete(0, cut);
+    }
+
+    /**
+     * 最后一个“非空白字符后紧跟空白”的位置
+     */
+    private int lastBoundary() {
+        for (int i = pending.length() - 1; i > 0; i--) {
+            if (Character.isWhitespace(pending.charAt(i)) && !Character.isWhitespace(pending.charAt(i - 1))) {
+                return i;
+            }
+        }
+        return 0;
+    }
+}
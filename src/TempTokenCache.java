@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 内存中的 Copilot 临时 token 缓存，按 long-term token 索引。
+ * <p>
+ * 请求线程只读缓存；后台调度器在 {@code exp} 之前（默认提前 120 秒，{@code copilot.token.refreshAheadSeconds}）
+ * 主动刷新。同一账号同时只会有一次刷新（singleflight），SQLite 只作为持久化层。
+ */
+public final class TempTokenCache {
+    private static final Log.Logger LOG = Log.logger(TempTokenCache.class);
+    private static final long REFRESH_AHEAD_SECONDS = Long.getLong("copilot.token.refreshAheadSeconds", 120L);
+    private static final long RETRY_DELAY_SECONDS = 30L;
+
+    private static final TokenManager tokenManager = new TokenManager();
+    private static final ConcurrentHashMap<String, Entry> CACHE = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, CompletableFuture<Entry>> IN_FLIGHT = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, ScheduledFuture<?>> SCHEDULED = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "temp-token-refresher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private TempTokenCache() {
+    }
+
+    /**
+     * 缓存中的一条记录
+     */
+    static final class Entry {
+        final CopilotToken token;
+        final String username;
+
+        Entry(CopilotToken token, String username) {
+            this.token = token;
+            this.username = username;
+        }
+
+        boolean isExpired(long nowEpoch) {
+            return token.isExpired(nowEpoch);
+        }
+    }
+
+    /**
+     * 返回一个有效的临时 token。命中缓存时不做任何 I/O。
+     */
+    public static String get(String longTermToken) throws IOException {
+        Entry entry = CACHE.get(longTermToken);
+        if (entry != null && !entry.isExpired(System.currentTimeMillis() / 1000)) {
+            return entry.token.raw();
+        }
+        // 首次访问先尝试 SQLite 中持久化的 token；已缓存但过期说明后台刷新失败，直接换新
+        return refresh(longTermToken, entry == null, entry).token.raw();
+    }
+
+    /**
+     * 缓存中解析好的临时 token（未缓存时返回 null），可用于按 sku / proxy-ep 等字段做路由
+     */
+    public static CopilotToken descriptor(String longTermToken) {
+        Entry entry = CACHE.get(longTermToken);
+        return entry != null ? entry.token : null;
+    }
+
+    /**
+     * 账号是否已在缓存中
+     */
+    public static boolean contains(String longTermToken) {
+        return CACHE.containsKey(longTermToken);
+    }
+
+    /**
+     * 缓存的用户名（未缓存时返回 null）
+     */
+    public static String getUsername(String longTermToken) {
+        Entry entry = CACHE.get(longTermToken);
+        return entry != null ? entry.username : null;
+    }
+
+    /**
+     * 新账号注册后直接放入缓存，并安排提前刷新
+     */
+    public static void register(String longTermToken, CopilotToken tempToken, String username) {
+        Entry entry = new Entry(tempToken, username);
+        CACHE.put(longTermToken, entry);
+        scheduleRefresh(longTermToken, entry);
+    }
+
+    /**
+     * 同一账号的并发刷新只会真正执行一次，其余调用者等待同一个结果
+     *
+     * @param seen 调用方看到的缓存条目；如果在抢到刷新之前别人已经刷新完成（缓存中是另一个未过期的条目），直接返回它
+     */
+    private static Entry refresh(String longTermToken, boolean allowPersisted, Entry seen) throws IOException {
+        CompletableFuture<Entry> mine = new CompletableFuture<>();
+        CompletableFuture<Entry> existing = IN_FLIGHT.putIfAbsent(longTermToken, mine);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            Entry current = CACHE.get(longTermToken);
+            if (current != null && current != seen && !current.isExpired(Instant.now().getEpochSecond())) {
+                mine.complete(current);
+                return current;
+            }
+            Entry entry = load(longTermToken, allowPersisted);
+            CACHE.put(longTermToken, entry);
+            scheduleRefresh(longTermToken, entry);
+            mine.complete(entry);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            IN_FLIGHT.remove(longTermToken, mine);
+        }
+    }
+
+    private static Entry load(String longTermToken, boolean allowPersisted) throws IOException {
+        long now = Instant.now().getEpochSecond();
+        Entry cached = CACHE.get(longTermToken);
+        String username = cached != null ? cached.username : tokenManager.getUsername(longTermToken);
+
+        if (allowPersisted) {
+            String persisted = tokenManager.getTempToken(longTermToken);
+            if (persisted != null && !persisted.isEmpty()) {
+                CopilotToken token = CopilotToken.parse(persisted);
+                if (token.exp() - REFRESH_AHEAD_SECONDS > now) {
+                    return new Entry(token, username);
+                }
+            }
+        }
+
+        String newTempToken = utils.GetToken(longTermToken);
+        if (newTempToken == null || newTempToken.isEmpty()) {
+            throw new IOException("Unable to generate a new temporary token.");
+        }
+        CopilotToken token = CopilotToken.parse(newTempToken);
+        boolean updated = tokenManager.updateTempToken(longTermToken, newTempToken, token.exp());
+        if (!updated) {
+            throw new IOException("Unable to update temporary token.");
+        }
+        return new Entry(token, username);
+    }
+
+    private static void scheduleRefresh(String longTermToken, Entry entry) {
+        long delay = entry.token.exp() - REFRESH_AHEAD_SECONDS - Instant.now().getEpochSecond();
+        schedule(longTermToken, Math.max(delay, RETRY_DELAY_SECONDS));
+    }
+
+    private static void schedule(String longTermToken, long delaySeconds) {
+        ScheduledFuture<?> task = SCHEDULER.schedule(() -> backgroundRefresh(longTermToken), delaySeconds, TimeUnit.SECONDS);
+        ScheduledFuture<?> previous = SCHEDULED.put(longTermToken, task);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    private static void backgroundRefresh(String longTermToken) {
+        try {
+            refresh(longTermToken, false, CACHE.get(longTermToken));
+        } catch (Exception e) {
+            LOG.warn("Background token refresh failed", "account", Log.mask(longTermToken), "error", e.getMessage());
+            // 仍在有效期内就继续重试；已过期则交给下一次请求按需刷新
+            Entry entry = CACHE.get(longTermToken);
+            if (entry != null && !entry.isExpired(Instant.now().getEpochSecond())) {
+                schedule(longTermToken, RETRY_DELAY_SECONDS);
+            }
+        }
+    }
+
+    private static Entry await(CompletableFuture<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for token refresh", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Token refresh failed: " + cause.getMessage(), cause);
+        }
+    }
+}
@@ -1,13 +1,19 @@
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
+import java.util.Set;
 
 public class TokenManager {
-    private static final String DB_URL = "jdbc:sqlite:tokens.db";
+    private static final Log.Logger LOG = Log.logger(TokenManager.class);
+    private static final String DB_URL = "jdbc:sqlite:" + System.getProperty("copilot.db.path", "tokens.db");
+    private static final int POOL_SIZE = Integer.getInteger("copilot.db.poolSize", 4);
 
-    // Constructor, initializes database connection and creates the table
-    public TokenManager() {
+    // 进程内共享的连接池，建表只在第一次加载时执行一次
+    private static final SqlitePool POOL = initPool();
+
+    private static SqlitePool initPool() {
+        SqlitePool pool = new SqlitePool(DB_URL, POOL_SIZE);
         // Create table
         String createTableSQL = "CREATE TABLE IF NOT EXISTS tokens ("
                 + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -15,40 +21,49 @@ public class TokenManager {
                 + "long_term_token TEXT NOT NULL UNIQUE, "
                 + "temp_token TEXT, "
                 + "temp_token_expiry INTEGER,"
-                + "machine_id TEXT"
+                + "machine_id TEXT,"
+                + "rpm_limit INTEGER,"
+                + "tpm_limit INTEGER"
                 + ");";
-
-        try (Connection conn = this.connect();
-             Statement stmt = conn.createStatement()) {
-            stmt.execute(createTableSQL);
+        try {
+            pool.write(conn -> {
+                try (Statement stmt = conn.connection().createStatement()) {
+                    stmt.execute(createTableSQL);
+                    // 旧版本创建的表没有限速列
+                    Set<String> columns = new HashSet<>();
+                    try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(tokens)")) {
+                        while (rs.next()) {
+                            columns.add(rs.getString("name"));
+                        }
+                    }
+                    if (!columns.contains("rpm_limit")) stmt.execute("ALTER TABLE tokens ADD COLUMN rpm_limit INTEGER");
+                    if (!columns.contains("tpm_limit")) stmt.execute("ALTER TABLE tokens ADD COLUMN tpm_limit INTEGER");
+                    return true;
+                }
+            });
         } catch (SQLException e) {
-            System.out.println("Error creating table: " + e.getMessage());
+            LOG.error("Error creating table", "error", e.getMessage());
         }
+        return pool;
     }
 
-    // Connect to the SQLite database
-    private Connection connect() {
-        Connection conn = null;
-        try {
-            conn = DriverManager.getConnection(DB_URL);
-            Statement stmt = conn.createStatement();
-            stmt.execute("PRAGMA foreign_keys = ON;");
-        } catch (SQLException e) {
-            System.out.println("Connection error: " + e.getMessage());
-        }
-        return conn;
+    // 构造函数不再做任何 I/O，所有实例共享同一个连接池
+    public TokenManager() {
     }
 
     // Check if the long-term token exists
     public boolean isLongTermTokenExists(String longTermToken) {
         String query = "SELECT id FROM tokens WHERE long_term_token = ?";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
-            pstmt.setString(1, longTermToken);
-            ResultSet rs = pstmt.executeQuery();
-            return rs.next();
+        try {
+            return POOL.read(conn -> {
+                PreparedStatement pstmt = conn.prepare(query);
+                pstmt.setString(1, longTermToken);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next();
+                }
+            });
         } catch (SQLException e) {
-            System.out.println("Error checking long_term_token: " + e.getMessage());
+            LOG.error("Error checking long_term_token", "error", e.getMessage());
             return false;
         }
     }
@@ -56,94 +71,69 @@ public class TokenManager {
     // Add a new long-term token record
     public boolean addLongTermToken(String longTermToken, String tempToken, long tempTokenExpiry,String username) {
         String insertSQL = "INSERT INTO tokens(username,long_term_token, temp_token, temp_token_expiry) VALUES(?, ?, ?,?)";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(insertSQL)) {
-            pstmt.setString(1, username);
-            pstmt.setString(2, longTermToken);
-            pstmt.setString(3, tempToken);
-            pstmt.setLong(4, tempTokenExpiry);
-            pstmt.executeUpdate();
-            System.out.println("Long-term token added successfully.");
+        try {
+            POOL.write(conn -> {
+                PreparedStatement pstmt = conn.prepare(insertSQL);
+                pstmt.setString(1, username);
+                pstmt.setString(2, longTermToken);
+                pstmt.setString(3, tempToken);
+                pstmt.setLong(4, tempTokenExpiry);
+                return pstmt.executeUpdate();
+            });
+            LOG.info("Long-term token added", "user", username);
             return true;
         } catch (SQLException e) {
-            System.out.println("Error adding long-term token: " + e.getMessage());
+            LOG.error("Error adding long-term token", "error", e.getMessage());
             return false;
         }
     }
 
-    // Get a random long-term token
-    public String getRandomLongTermToken() {
+    // Get every long-term token (loaded once into AccountPool)
+    public List<String> getAllLongTermTokens() {
         String query = "SELECT long_term_token FROM tokens";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
-            ResultSet rs = pstmt.executeQuery();
-
-            // Add all long_term_tokens to a list
-            List<String> tokens = new ArrayList<>();
-            while (rs.next()) {
-                tokens.add(rs.getString("long_term_token"));
-            }
-
-            // Randomly select one
-            if (!tokens.isEmpty()) {
-                Random random = new Random();
-                int index = random.nextInt(tokens.size());
-                return tokens.get(index);
-            } else {
-                System.out.println("No tokens found in the database.");
-                return null;
-            }
+        try {
+            return POOL.read(conn -> {
+                PreparedStatement pstmt = conn.prepare(query);
+                List<String> tokens = new ArrayList<>();
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        tokens.add(rs.getString("long_term_token"));
+                    }
+                }
+                return tokens;
+            });
         } catch (SQLException e) {
-            System.out.println("Error retrieving long_term_token: " + e.getMessage());
-            return null;
+            LOG.error("Error retrieving long_term_token", "error", e.getMessage());
+            return new ArrayList<>();
         }
     }
 
     // Get the temp token
     public String getTempToken(String longTermToken) {
-        String query = "SELECT temp_token FROM tokens WHERE long_term_token = ?";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
-            pstmt.setString(1, longTermToken);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getString("temp_token");
-            }
-        } catch (SQLException e) {
-            System.out.println("Error retrieving temp_token: " + e.getMessage());
-        }
-        return null;
+        return queryString("SELECT temp_token FROM tokens WHERE long_term_token = ?", longTermToken, "temp_token");
     }
 
     public String getUsername(String longTermToken) {
-        String query = "SELECT username FROM tokens WHERE long_term_token = ?";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
-            pstmt.setString(1, longTermToken);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getString("username");
-            }
-        } catch (SQLException e) {
-            System.out.println("Error retrieving username: " + e.getMessage());
-        }
-        return null;
+        return queryString("SELECT username FROM tokens WHERE long_term_token = ?", longTermToken, "username");
     }
+
     // Update the temp token and its expiry time
     public boolean updateTempToken(String longTermToken, String newTempToken, long newExpiry) {
         String updateSQL = "UPDATE tokens SET temp_token = ?, temp_token_expiry = ? WHERE long_term_token = ?";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(updateSQL)) {
-            pstmt.setString(1, newTempToken);
-            pstmt.setLong(2, newExpiry);
-            pstmt.setString(3, longTermToken);
-            int affectedRows = pstmt.executeUpdate();
+        try {
+            int affectedRows = POOL.write(conn -> {
+                PreparedStatement pstmt = conn.prepare(updateSQL);
+                pstmt.setString(1, newTempToken);
+                pstmt.setLong(2, newExpiry);
+                pstmt.setString(3, longTermToken);
+                return pstmt.executeUpdate();
+            });
             if (affectedRows > 0) {
-                System.out.println("Temp token updated successfully.");
+                LOG.debug("Temp token updated", "exp", newExpiry);
                 return true;
             }
         } catch (SQLException e) {
-            System.out.println("Error updating temp_token: " + e.getMessage());
+            LOG.error("Error updating temp_token", "error", e.getMessage());
         }
         return false;
     }
@@ -152,19 +142,21 @@ public class TokenManager {
      */
     public boolean setMachineId(String longTermToken, String machineId) {
         String updateSQL = "UPDATE tokens SET machine_id = ? WHERE long_term_token = ?";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(updateSQL)) {
-            pstmt.setString(1, machineId);
-            pstmt.setString(2, longTermToken);
-            int rows = pstmt.executeUpdate();
+        try {
+            int rows = POOL.write(conn -> {
+                PreparedStatement pstmt = conn.prepare(updateSQL);
+                pstmt.setString(1, machineId);
+                pstmt.setString(2, longTermToken);
+                return pstmt.executeUpdate();
+            });
             if (rows > 0) {
-                System.out.println("Machine ID set successfully.\n"+machineId);
+                LOG.info("Machine ID set", "machine_id", machineId);
                 return true;
             } else {
-                System.out.println("No record found for token: " + longTermToken);
+                LOG.warn("No record found for token", "token", Log.mask(longTermToken));
             }
         } catch (SQLException e) {
-            System.out.println("Error setting machine_id: " + e.getMessage());
+            LOG.error("Error setting machine_id", "error", e.getMessage());
         }
         return false;
     }
@@ -180,20 +172,71 @@ public class TokenManager {
      * 根据 long_term_token 查询 machine_id
      */
     public String getMachineId(String longTermToken) {
-        String query = "SELECT machine_id FROM tokens WHERE long_term_token = ?";
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
-            pstmt.setString(1, longTermToken);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getString("machine_id");
-            } else {
-                System.out.println("No machine_id for token: " + longTermToken);
-            }
+        String machineId = queryString("SELECT machine_id FROM tokens WHERE long_term_token = ?", longTermToken, "machine_id");
+        if (machineId == null) {
+            LOG.info("No machine_id for token", "token", Log.mask(longTermToken));
+        }
+        return machineId;
+    }
+
+    /**
+     * 账号配置的每分钟请求数和 token 数上限 {rpm, tpm}，未配置的为 0（见 {@link RateLimiter}）
+     */
+    public long[] getRateLimits(String longTermToken) {
+        String query = "SELECT rpm_limit, tpm_limit FROM tokens WHERE long_term_token = ?";
+        try {
+            return POOL.read(conn -> {
+                PreparedStatement pstmt = conn.prepare(query);
+                pstmt.setString(1, longTermToken);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? new long[]{rs.getLong("rpm_limit"), rs.getLong("tpm_limit")} : new long[2];
+                }
+            });
+        } catch (SQLException e) {
+            LOG.error("Error retrieving rate limits", "error", e.getMessage());
+            return new long[2];
+        }
+    }
+
+    /**
+     * 设置账号的每分钟请求数和 token 数上限，0 表示使用默认值
+     *
+     * @param account GitHub 用户名或长期 token
+     * @return 更新的账号数
+     */
+    public int setRateLimits(String account, long rpm, long tpm) {
+        String updateSQL = "UPDATE tokens SET rpm_limit = ?, tpm_limit = ? WHERE username = ? OR long_term_token = ?";
+        try {
+            return POOL.write(conn -> {
+                PreparedStatement pstmt = conn.prepare(updateSQL);
+                pstmt.setLong(1, rpm);
+                pstmt.setLong(2, tpm);
+                pstmt.setString(3, account);
+                pstmt.setString(4, account);
+                return pstmt.executeUpdate();
+            });
+        } catch (SQLException e) {
+            LOG.error("Error setting rate limits", "error", e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * 按 long_term_token 查询单个字符串列
+     */
+    private String queryString(String query, String longTermToken, String column) {
+        try {
+            return POOL.read(conn -> {
+                PreparedStatement pstmt = conn.prepare(query);
+                pstmt.setString(1, longTermToken);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? rs.getString(column) : null;
+                }
+            });
         } catch (SQLException e) {
-            System.out.println("Error retrieving machine_id: " + e.getMessage());
+            LOG.error("Error retrieving " + column, "error", e.getMessage());
+            return null;
         }
-        return null;
     }
 
 }
@@ -0,0 +1,119 @@
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingRegistry;
+import com.knuddels.jtokkit.api.EncodingType;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按模型选择 tokenizer 并缓存计数结果。
+ * <p>
+ * 模型的编码取自 {@code capabilities.tokenizer}（静态模型表和上游拉取到的模型都会登记），每种编码只创建一个
+ * {@link Encoding}。prompt 按消息分别计数，较长文本的计数结果按内容哈希存入有界 LRU
+ * （{@code copilot.tokenizer.memoSize}，默认 4096 条），重复的 system prompt 和对话前缀不会每轮重新分词。
+ */
+public final class TokenizerRegistry {
+    private static final int MEMO_SIZE = Integer.getInteger("copilot.tokenizer.memoSize", 4096);
+    // 太短的文本直接分词比查表更划算
+    private static final int MEMO_MIN_LENGTH = 64;
+
+    private static final EncodingRegistry REGISTRY = Encodings.newDefaultEncodingRegistry();
+    private static final ConcurrentHashMap<EncodingType, Encoding> ENCODINGS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, EncodingType> MODEL_TOKENIZERS = new ConcurrentHashMap<>();
+    private static final Map<Long, Integer> MEMO = Collections.synchronizedMap(
+            new LinkedHashMap<Long, Integer>(MEMO_SIZE * 4 / 3 + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+                    return size() > MEMO_SIZE;
+                }
+            });
+
+    static {
+        registerModels(ModelService.models);
+    }
+
+    private TokenizerRegistry() {
+    }
+
+    /**
+     * 登记模型列表中声明的 tokenizer
+     */
+    public static void registerModels(List<JSONObject> models) {
+        for (JSONObject model : models) {
+            JSONObject capabilities = model.optJSONObject("capabilities");
+            String id = model.optString("id", null);
+            if (capabilities == null || id == null) continue;
+            EncodingType.fromName(capabilities.optString("tokenizer", ""))
+                    .ifPresent(type -> MODEL_TOKENIZERS.put(id, type));
+        }
+    }
+
+    public static EncodingType typeForModel(String model) {
+        if (model == null) return EncodingType.CL100K_BASE;
+        EncodingType type = MODEL_TOKENIZERS.get(model);
+        if (type != null) return type;
+        // 未登记的模型按名称推断：gpt-4o 及之后的 OpenAI 模型使用 o200k_base
+        if (model.startsWith("gpt-4o") || model.startsWith("gpt-4.1") || model.startsWith("gpt-5")
+                || model.startsWith("o1") || model.startsWith("o3") || model.startsWith("o4")) {
+            return EncodingType.O200K_BASE;
+        }
+        return EncodingType.CL100K_BASE;
+    }
+
+    public static Encoding forModel(String model) {
+        return encoding(typeForModel(model));
+    }
+
+    /**
+     * 每种编码只加载一次（词表较大，按需加载）
+     */
+    public static Encoding encoding(EncodingType type) {
+        return ENCODINGS.computeIfAbsent(type, REGISTRY::getEncoding);
+    }
+
+    /**
+     * 统计一组文本的 token 数（{@link StreamingRequest#promptTexts()}）
+     */
+    public static int countPromptTokens(String model, List<String> texts) {
+        EncodingType type = typeForModel(model);
+        int total = 0;
+        for (String text : texts) {
+            total += countTokens(type, text);
+        }
+        return total;
+    }
+
+    /**
+     * 计数单段文本，长文本走 LRU 缓存
+     */
+    public static int countTokens(EncodingType type, String text) {
+        if (text == null || text.isEmpty()) return 0;
+        Encoding encoding = encoding(type);
+        if (text.length() < MEMO_MIN_LENGTH) {
+            return encoding.countTokens(text);
+        }
+        Long key = contentHash(type, text);
+        Integer cached = MEMO.get(key);
+        if (cached != null) return cached;
+        int count = encoding.countTokens(text);
+        MEMO.put(key, count);
+        return count;
+    }
+
+    /**
+     * 64 位 FNV-1a，混入编码类型和长度
+     */
+    private static long contentHash(EncodingType type, String text) {
+        long h = 0xcbf29ce484222325L ^ ((long) type.ordinal() << 32 | text.length());
+        for (int i = 0; i < text.length(); i++) {
+            h ^= text.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
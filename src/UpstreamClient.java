@@ -0,0 +1,178 @@
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.net.Proxy;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 全局共享的上游 OkHttpClient。
+ * <p>
+ * 所有 handler 共用同一个 ConnectionPool / Dispatcher / SSLContext，这样到 Copilot 的连接可以复用 TLS 会话，
+ * 并在 HTTP/2 上多路复用。可通过系统属性调整：
+ * <ul>
+ *     <li>{@code copilot.http.maxIdleConnections} 连接池最大空闲连接数（默认 32）</li>
+ *     <li>{@code copilot.http.keepAliveSeconds} 空闲连接保活时间（默认 300 秒）</li>
+ *     <li>{@code copilot.http.maxRequests} Dispatcher 全局并发上限（默认 256）</li>
+ *     <li>{@code copilot.http.maxRequestsPerHost} Dispatcher 单 host 并发上限（默认 64）</li>
+ *     <li>{@code copilot.http.http2} 是否优先使用 HTTP/2（默认 true；也可在首次使用前调用 {@link #setPreferHttp2(boolean)}）</li>
+ *     <li>{@code copilot.http.systemProxy} 是否使用系统代理（默认 true；连接本地 mock 时设为 false）</li>
+ * </ul>
+ */
+public final class UpstreamClient {
+    private static final int MAX_IDLE_CONNECTIONS = Integer.getInteger("copilot.http.maxIdleConnections", 32);
+    private static final long KEEP_ALIVE_SECONDS = Long.getLong("copilot.http.keepAliveSeconds", 300L);
+    private static final int MAX_REQUESTS = Integer.getInteger("copilot.http.maxRequests", 256);
+    private static final int MAX_REQUESTS_PER_HOST = Integer.getInteger("copilot.http.maxRequestsPerHost", 64);
+    private static final boolean SYSTEM_PROXY = Boolean.parseBoolean(System.getProperty("copilot.http.systemProxy", "true"));
+
+    private static final ConnectionPool CONNECTION_POOL =
+            new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+    private static final Dispatcher DISPATCHER = createDispatcher();
+
+    // 以下两个字段由 UpstreamClient.class 保护；客户端在首次 get() 时才创建
+    private static boolean preferHttp2 = Boolean.parseBoolean(System.getProperty("copilot.http.http2", "true"));
+    private static boolean built;
+
+    static {
+        Metrics.gauge("copilot_okhttp_connections", "Upstream connections in the OkHttp pool",
+                CONNECTION_POOL::connectionCount);
+        Metrics.gauge("copilot_okhttp_idle_connections", "Idle upstream connections in the OkHttp pool",
+                CONNECTION_POOL::idleConnectionCount);
+        Metrics.gauge("copilot_okhttp_running_calls", "Upstream calls currently executing",
+                DISPATCHER::runningCallsCount);
+        Metrics.gauge("copilot_okhttp_queued_calls", "Async upstream calls waiting for a Dispatcher slot",
+                DISPATCHER::queuedCallsCount);
+    }
+
+    private UpstreamClient() {
+    }
+
+    /**
+     * 返回共享的客户端。需要不同超时等配置时请使用 {@code get().newBuilder()}，这样仍然共享连接池。
+     */
+    public static OkHttpClient get() {
+        return Holder.CLIENT;
+    }
+
+    /**
+     * 设置是否优先使用 HTTP/2，必须在客户端创建（第一次 {@link #get()}）之前调用
+     *
+     * @throws IllegalStateException 客户端已经创建
+     */
+    public static synchronized void setPreferHttp2(boolean enabled) {
+        if (built) {
+            throw new IllegalStateException("Upstream client already created, HTTP/2 preference can no longer change");
+        }
+        preferHttp2 = enabled;
+    }
+
+    private static final class Holder {
+        static final OkHttpClient CLIENT = createClient();
+    }
+
+    /**
+     * 连接池与 Dispatcher 的当前状态快照
+     */
+    public static PoolStats stats() {
+        return new PoolStats(
+                CONNECTION_POOL.connectionCount(),
+                CONNECTION_POOL.idleConnectionCount(),
+                DISPATCHER.runningCallsCount(),
+                DISPATCHER.queuedCallsCount());
+    }
+
+    private static Dispatcher createDispatcher() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+        return dispatcher;
+    }
+
+    private static OkHttpClient createClient() {
+        try {
+            // 创建一个不验证证书的 TrustManager
+            final X509TrustManager trustAllCertificates = new X509TrustManager() {
+                @Override
+                public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+
+                }
+
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            };
+
+            // 创建 SSLContext，使用我们的 TrustManager
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[]{trustAllCertificates}, null);
+
+            boolean http2;
+            synchronized (UpstreamClient.class) {
+                built = true;
+                http2 = preferHttp2;
+            }
+            List<Protocol> protocols = http2
+                    ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                    : Collections.singletonList(Protocol.HTTP_1_1);
+
+            return new OkHttpClient.Builder()
+                    .proxy(SYSTEM_PROXY ? utils.getSystemProxy() : Proxy.NO_PROXY)  // 设置代理
+                    .sslSocketFactory(sslContext.getSocketFactory(), trustAllCertificates)  // 设置 SSL
+                    .hostnameVerifier((hostname, session) -> true)  // 不验证主机名
+                    .connectionPool(CONNECTION_POOL)
+                    .dispatcher(DISPATCHER)
+                    .protocols(protocols)
+                    .connectTimeout(600, TimeUnit.SECONDS)  // 连接超时
+                    .readTimeout(600, TimeUnit.SECONDS)     // 读取超时
+                    .writeTimeout(600, TimeUnit.SECONDS)    // 写入超时
+                    .build();
+        } catch (Exception e) {
+            throw new RuntimeException("OkHttpClient 初始化失败", e);
+        }
+    }
+
+    /**
+     * 连接池统计信息
+     */
+    public static final class PoolStats {
+        public final int connections;
+        public final int idleConnections;
+        public final int runningCalls;
+        public final int queuedCalls;
+
+        PoolStats(int connections, int idleConnections, int runningCalls, int queuedCalls) {
+            this.connections = connections;
+            this.idleConnections = idleConnections;
+            this.runningCalls = runningCalls;
+            this.queuedCalls = queuedCalls;
+        }
+
+        public int activeConnections() {
+            return connections - idleConnections;
+        }
+
+        @Override
+        public String toString() {
+            return "connections=" + connections
+                    + ", idle=" + idleConnections
+                    + ", running=" + runningCalls
+                    + ", queued=" + queuedCalls;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+import okhttp3.Headers;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * chat completions 的上游重试与故障转移。
+ * <p>
+ * 对 429 / 502 / 503 / 504 和网络错误重试，最多 {@code copilot.retry.maxAttempts} 次（默认 3）：
+ * <ul>
+ *     <li>429：请求未指定账号时换一个账号池中的账号立即重试；否则按 Retry-After 等待后重试</li>
+ *     <li>5xx / 网络错误：在账号 token 返回的 {@code endpoints.api} 与默认地址之间切换，指数退避（带抖动）后重试</li>
+ * </ul>
+ * Retry-After 超过 {@code copilot.retry.maxDelayMillis} 时不再等待，直接把上游错误返回给客户端。
+ * 重试受全局预算限制：每个请求存入 {@code copilot.retry.budgetPercent}%（默认 20）次重试额度，
+ * 上游整体故障时重试不会把流量放大数倍。
+ * <p>
+ * 流式请求会等到上游第一个字节到达后才返回，所以所有重试都发生在向客户端写出任何内容之前。
+ */
+public final class UpstreamRetry {
+    private static final Log.Logger LOG = Log.logger(UpstreamRetry.class);
+    // 上游抖动时每个请求都会重试，只记录其中一部分
+    private static final Log.Logger RETRY_LOG = LOG.sampled(10);
+    private static final int MAX_ATTEMPTS = Integer.getInteger("copilot.retry.maxAttempts", 3);
+    private static final long BASE_DELAY_MILLIS = Long.getLong("copilot.retry.baseDelayMillis", 250L);
+    private static final long MAX_DELAY_MILLIS = Long.getLong("copilot.retry.maxDelayMillis", 5000L);
+    private static final long BUDGET_PER_REQUEST = Integer.getInteger("copilot.retry.budgetPercent", 20) * 10L;
+    // 预算以千分之一次重试为单位；启动时允许 10 次，最多积累 100 次
+    private static final long BUDGET_INITIAL = 10_000L;
+    private static final long BUDGET_MAX = 100_000L;
+    private static final long RETRY_COST = 1000L;
+
+    private static final AtomicLong BUDGET = new AtomicLong(BUDGET_INITIAL);
+
+    private UpstreamRetry() {
+    }
+
+    /**
+     * 为指定账号构造上游请求头（包括临时 token）
+     */
+    @FunctionalInterface
+    public interface HeaderFactory {
+        Headers create(AccountPool.Account account) throws IOException;
+    }
+
+    /**
+     * 一次客户端请求对应的上游调用。持有当前使用的账号（计入 in-flight），{@link #close()} 时释放。
+     */
+    public static final class Call implements Closeable {
+        private final String path;
+        private final String model;
+        private final boolean pinned;
+        private final HeaderFactory headerFactory;
+        private AccountPool.Account account;
+        private Headers headers;
+        private boolean useFallbackEndpoint;
+        // 正在执行的上游调用，供 cancel() 从其他线程中断
+        private volatile okhttp3.Call inFlight;
+        private volatile boolean cancelled;
+
+        /**
+         * @param account 初始账号，可以为 null
+         * @param pinned  客户端自己指定了 token 时为 true，此时不会换账号
+         * @param path    接口路径，例如 {@code /chat/completions}
+         * @param model   请求的模型，只用于指标标签
+         */
+        public Call(AccountPool.Account account, boolean pinned, Headers headers,
+                    HeaderFactory headerFactory, String path, String model) {
+            this.account = account;
+            this.pinned = pinned;
+            this.headers = headers;
+            this.headerFactory = headerFactory;
+            this.path = path;
+            this.model = model;
+            if (account != null) account.acquire();
+        }
+
+        public AccountPool.Account account() {
+            return account;
+        }
+
+        /**
+         * 发送请求（请求体必须可重放），返回最终的上游响应（可能仍是错误响应）。所有尝试都是网络错误时抛出最后一个异常。
+         *
+         * @param awaitFirstByte 流式请求传 true：成功响应要等到首个字节到达才算成功
+         */
+        public Response execute(RequestBody body, boolean awaitFirstByte) throws IOException {
+            deposit();
+            for (int attempt = 1; ; attempt++) {
+                Response resp = null;
+                IOException failure = null;
+                long start = System.nanoTime();
+                try {
+                    okhttp3.Call http = utils.newOkHttpCall(headers, body, url());
+                    inFlight = http;
+                    if (cancelled) http.cancel();
+                    resp = http.execute();
+                    if (awaitFirstByte && resp.isSuccessful() && !resp.body().source().request(1)) {
+                        throw new IOException("Upstream closed the stream before sending any data");
+                    }
+                } catch (IOException e) {
+                    if (resp != null) resp.close();
+                    resp = null;
+                    failure = e;
+                }
+                int status = resp != null ? resp.code() : -1;
+                recordAttempt(path, model, account, status, start);
+                if (account != null) account.record(status, resp != null ? resp.headers() : null);
+                if (!cancelled) {
+                    AdmissionController.observe(account != null ? account.token() : null, status, System.nanoTime() - start);
+                }
+                if (resp != null && !isRetryable(status)) {
+                    return resp;
+                }
+
+                long delay = -1;
+                if (attempt < MAX_ATTEMPTS) {
+                    delay = nextDelay(status, resp, attempt);
+                }
+                if (delay < 0 || cancelled || !withdraw()) {
+                    if (resp != null) return resp;
+                    throw failure;
+                }
+                Metrics.counter("copilot_upstream_retries_total", "Upstream attempts that were retried", "endpoint", path).inc();
+                RETRY_LOG.info("Retrying upstream call", "endpoint", path,
+                        "status", resp != null ? status : null, "error", failure != null ? failure.getMessage() : null,
+                        "attempt", attempt + 1, "max", MAX_ATTEMPTS, "delayMs", delay);
+                if (resp != null) resp.close();
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting to retry", e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 决定下一次尝试：切换账号或端点，并返回需要等待的毫秒数；返回 -1 表示放弃
+         */
+        private long nextDelay(int status, Response resp, int attempt) {
+            long retryAfter = resp != null ? retryAfterMillis(resp.header("Retry-After")) : -1;
+            if (status == 429) {
+                if (switchAccount()) return 0;
+                if (retryAfter > MAX_DELAY_MILLIS) return -1;
+                return retryAfter >= 0 ? retryAfter : backoff(attempt);
+            }
+            // 5xx / 网络错误：先换端点，没有备用端点时换账号
+            if (!switchEndpoint()) {
+                switchAccount();
+            }
+            if (retryAfter > MAX_DELAY_MILLIS) return -1;
+            return retryAfter >= 0 ? retryAfter : backoff(attempt);
+        }
+
+        private boolean switchAccount() {
+            if (pinned || headerFactory == null) return false;
+            AccountPool.Account next = AccountPool.select();
+            if (next == null || next == account || !next.available(System.currentTimeMillis())) return false;
+            try {
+                headers = headerFactory.create(next);
+            } catch (IOException e) {
+                LOG.warn("Failover account unavailable", "error", e.getMessage());
+                return false;
+            }
+            if (account != null) account.release();
+            next.acquire();
+            account = next;
+            useFallbackEndpoint = false;
+            return true;
+        }
+
+        private boolean switchEndpoint() {
+            String primary = primaryUrl();
+            String fallback = CompletionHandler.getCopilotChatCompletionsUrl();
+            if (primary == null || primary.equals(fallback)) return false;
+            useFallbackEndpoint = !useFallbackEndpoint;
+            return true;
+        }
+
+        private String primaryUrl() {
+            String api = account != null ? AccountPool.endpoint(account.token()) : null;
+            return api != null ? api + path : null;
+        }
+
+        private String url() {
+            String primary = primaryUrl();
+            return primary == null || useFallbackEndpoint ? CompletionHandler.getCopilotChatCompletionsUrl() : primary;
+        }
+
+        /**
+         * 取消进行中的上游调用（例如客户端已断开），正在读取响应的线程会收到 IOException，之后不再重试。可从任意线程调用。
+         */
+        public void cancel() {
+            cancelled = true;
+            okhttp3.Call http = inFlight;
+            if (http != null) http.cancel();
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public void close() {
+            if (account != null) {
+                account.release();
+                account = null;
+            }
+        }
+    }
+
+    /**
+     * 记录一次上游请求的耗时和状态；status 为 -1 表示网络错误
+     */
+    static void recordAttempt(String path, String model, AccountPool.Account account, int status, long start) {
+        Metrics.histogram("copilot_upstream_latency_seconds", "Upstream time to response headers (first byte for streams)",
+                Metrics.LATENCY_BUCKETS, "endpoint", path, "model", model,
+                "account", account != null ? account.label() : "none").observeSince(start);
+        Metrics.counter("copilot_upstream_requests_total", "Upstream attempts by status, error for network failures",
+                "endpoint", path, "status", status < 0 ? "error" : Integer.toString(status)).inc();
+    }
+
+    static boolean isRetryable(int status) {
+        return status == -1 || status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * 指数退避，取上限的一半加随机抖动
+     */
+    private static long backoff(int attempt) {
+        long cap = Math.min(BASE_DELAY_MILLIS << Math.min(attempt - 1, 20), MAX_DELAY_MILLIS);
+        return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+    }
+
+    /**
+     * 解析 Retry-After（秒数或 HTTP 日期），无法解析时返回 -1
+     */
+    static long retryAfterMillis(String value) {
+        if (value == null || value.isEmpty()) return -1;
+        try {
+            return Math.max(0L, Long.parseLong(value.trim()) * 1000L);
+        } catch (NumberFormatException ignored) {
+        }
+        try {
+            long at = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return Math.max(0L, at - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static void deposit() {
+        long current;
+        do {
+            current = BUDGET.get();
+            if (current >= BUDGET_MAX) return;
+        } while (!BUDGET.compareAndSet(current, Math.min(BUDGET_MAX, current + BUDGET_PER_REQUEST)));
+    }
+
+    private static boolean withdraw() {
+        long current;
+        do {
+            current = BUDGET.get();
+            if (current < RETRY_COST) {
+                RETRY_LOG.warn("Retry budget exhausted, returning upstream error");
+                return false;
+            }
+        } while (!BUDGET.compareAndSet(current, current - RETRY_COST));
+        return true;
+    }
+}
@@ -0,0 +1,176 @@
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 启动预热，让重启后的第一批请求不必等待 token 交换和 TLS 握手。
+ * <p>
+ * 服务启动后在后台执行，期间请求照常处理（只是可能更慢），{@code /health} 返回 503：
+ * <ol>
+ *     <li>为 tokens.db 中的每个账号准备临时 token：仍有效的直接载入缓存，快过期的重新获取，
+ *     并发数为 {@code copilot.warmup.parallelism}（默认 4），最多等待 {@code copilot.warmup.tokenTimeoutSeconds}（默认 30）秒</li>
+ *     <li>确定每个账号的 API 地址：token 响应中的 {@code endpoints.api}，没有时从临时 token 的 {@code proxy-ep} 推导</li>
+ *     <li>向所有上游 host 预先建立连接（每个 host {@code copilot.warmup.connectionsPerHost} 个，默认 2），
+ *     TLS 握手完成后连接留在 OkHttp 连接池中</li>
+ * </ol>
+ * 新账号注册后同样会预先连接它的 API 地址。{@code copilot.warmup.enabled=false} 时跳过预热，立即就绪。
+ */
+public final class Warmup {
+    private static final Log.Logger LOG = Log.logger(Warmup.class);
+    private static final int PARALLELISM = Math.max(1, Integer.getInteger("copilot.warmup.parallelism", 4));
+    private static final int CONNECTIONS_PER_HOST = Integer.getInteger("copilot.warmup.connectionsPerHost", 2);
+    private static final long TOKEN_TIMEOUT_SECONDS = Long.getLong("copilot.warmup.tokenTimeoutSeconds", 30L);
+    private static final long CONNECT_TIMEOUT_SECONDS = 10L;
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("copilot.warmup.enabled", "true"));
+
+    private static volatile boolean ready;
+
+    static {
+        Metrics.gauge("copilot_ready", "1 once startup warm-up has finished", () -> ready ? 1 : 0);
+    }
+
+    private Warmup() {
+    }
+
+    public static boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 在后台线程上开始预热
+     */
+    public static void start() {
+        if (!ENABLED) {
+            ready = true;
+            return;
+        }
+        Thread thread = new Thread(Warmup::run, "warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void run() {
+        long start = System.nanoTime();
+        List<String> tokens = new ArrayList<>();
+        for (AccountPool.Account account : AccountPool.accounts()) {
+            tokens.add(account.token());
+        }
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(PARALLELISM, Math.max(1, tokens.size())), r -> {
+            Thread t = new Thread(r, "warmup-token");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<CompletableFuture<Void>> loads = new ArrayList<>();
+            for (String token : tokens) {
+                loads.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        TempTokenCache.get(token);
+                        resolveEndpoint(token, TempTokenCache.descriptor(token));
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        LOG.warn("Token warm-up failed", "account", Log.mask(token), "error", e.getMessage());
+                    }
+                }, pool));
+            }
+            try {
+                CompletableFuture.allOf(loads.toArray(CompletableFuture<?>[]::new)).get(TOKEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                // 卡住的 token 请求不再等待，继续预热其余部分；它们完成后仍会写入缓存
+                int pending = 0;
+                for (CompletableFuture<Void> load : loads) {
+                    if (!load.isDone()) pending++;
+                }
+                failed.addAndGet(pending);
+                LOG.warn("Token warm-up did not finish", "pending", pending, "timeoutSeconds", TOKEN_TIMEOUT_SECONDS,
+                        "error", e.toString());
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        Set<String> hosts = new LinkedHashSet<>();
+        addHost(hosts, CompletionHandler.getCopilotChatCompletionsUrl());
+        for (String token : tokens) {
+            addHost(hosts, AccountPool.endpoint(token));
+        }
+        List<CompletableFuture<Void>> connects = new ArrayList<>();
+        for (String base : hosts) {
+            for (int i = 0; i < CONNECTIONS_PER_HOST; i++) {
+                connects.add(preconnect(base));
+            }
+        }
+        try {
+            CompletableFuture.allOf(connects.toArray(CompletableFuture<?>[]::new)).get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            LOG.warn("Connection warm-up did not finish", "error", String.valueOf(e.getMessage()));
+        }
+
+        ready = true;
+        LOG.info("Warm-up finished", "accounts", tokens.size(), "failed", failed.get(), "hosts", hosts.size(),
+                "connections", UpstreamClient.stats().connections, "ms", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * 新账号注册后预先连接它的 API 地址（不等待结果）
+     */
+    public static void onRegistered(String longTermToken, CopilotToken tempToken) {
+        resolveEndpoint(longTermToken, tempToken);
+        Set<String> hosts = new LinkedHashSet<>();
+        addHost(hosts, AccountPool.endpoint(longTermToken));
+        for (String base : hosts) {
+            preconnect(base);
+        }
+    }
+
+    /**
+     * token 响应没有带 endpoints.api 时（例如使用持久化的临时 token），按 proxy-ep 推导（见 {@link CopilotToken#apiEndpoint()}）
+     */
+    static void resolveEndpoint(String longTermToken, CopilotToken tempToken) {
+        if (AccountPool.endpoint(longTermToken) != null || tempToken == null) return;
+        AccountPool.setEndpoint(longTermToken, tempToken.apiEndpoint());
+    }
+
+    private static void addHost(Set<String> hosts, String url) {
+        HttpUrl parsed = url != null ? HttpUrl.parse(url) : null;
+        if (parsed != null) {
+            hosts.add(parsed.scheme() + "://" + parsed.host() + ":" + parsed.port() + "/");
+        }
+    }
+
+    /**
+     * 发一个 HEAD 请求建立连接；响应内容无关紧要，连接会留在连接池中
+     */
+    private static CompletableFuture<Void> preconnect(String base) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Request request = new Request.Builder().url(base).head().build();
+        utils.getOkHttpClient().newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                LOG.debug("Pre-connect failed", "host", base, "error", e.getMessage());
+                done.complete(null);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                response.close();
+                done.complete(null);
+            }
+        });
+        return done;
+    }
+}
@@ -4,89 +4,39 @@ import com.sun.net.httpserver.HttpExchange;
 import okhttp3.*;
 import org.json.JSONObject;
 
-import javax.net.ssl.*;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
-import java.net.SocketAddress;
 import java.nio.charset.StandardCharsets;
-import java.security.KeyStore;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
-import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeoutException;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
 
 public class utils {
-    private static final ReentrantLock tokenLock = new ReentrantLock();
+    private static final Log.Logger LOG = Log.logger(utils.class);
     private static final TokenManager tokenManager = new TokenManager();
-
-    // OkHttp client instance
-    public static OkHttpClient client = createOkHttpClient();
-
-    public static OkHttpClient getOkHttpClient() {
-        return createOkHttpClient();
+    private static final long USER_LOOKUP_TIMEOUT_SECONDS = 5L;
+    // 正在注册的长期 token
+    private static final ConcurrentHashMap<String, CompletableFuture<Void>> REGISTERING = new ConcurrentHashMap<>();
+    private static String COPILOT_TOKEN_URL = "https://api.github.com/copilot_internal/v2/token";
+    private static String GITHUB_USER_URL = "https://api.github.com/user";
+
+    // 测试时可以指向本地的 mock（见 loadtest）
+    public static void setCopilotTokenUrl(String url) {
+        COPILOT_TOKEN_URL = url;
     }
-    private static OkHttpClient createOkHttpClient() {
-        OkHttpClient okHttpClient = null;
-        try {
-            // 获取默认的受信任的证书存储
-            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            trustManagerFactory.init((KeyStore) null);
-
-            // 提取默认 TrustManager
-            X509TrustManager defaultTrustManager = (X509TrustManager) trustManagerFactory.getTrustManagers()[0];
 
-            // 创建一个不验证证书的 TrustManager
-            final X509TrustManager trustAllCertificates = new X509TrustManager() {
-                @Override
-                public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-
-                }
-
-                @Override
-                public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-
-                }
-
-                @Override
-                public X509Certificate[] getAcceptedIssuers() {
-                    return new X509Certificate[0];
-                }
-            };
-
-            // 创建 SSLContext，使用我们的 TrustManager
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, new TrustManager[]{trustAllCertificates}, null);
-
-
-            Proxy proxy = getSystemProxy();
+    public static void setGithubUserUrl(String url) {
+        GITHUB_USER_URL = url;
+    }
 
-            // 创建 OkHttpClient
-            okHttpClient = new OkHttpClient.Builder()
-                    .proxy(proxy)  // 设置代理
-                    .sslSocketFactory(sslContext.getSocketFactory(), trustAllCertificates)  // 设置 SSL
-                    .hostnameVerifier((hostname, session) -> {
-                        return true;  // 不验证主机名
-                    })
-                    .connectTimeout(600, TimeUnit.SECONDS)  // 连接超时
-                    .readTimeout(600, TimeUnit.SECONDS)     // 读取超时
-                    .writeTimeout(600, TimeUnit.SECONDS)    // 写入超时
-                    .build();
-        } catch (Exception e) {
-            throw new RuntimeException("OkHttpClient 初始化失败", e);
-        }
-        return okHttpClient;
+    // 共享的 OkHttp client，见 UpstreamClient
+    public static OkHttpClient getOkHttpClient() {
+        return UpstreamClient.get();
     }
 
     /**
@@ -221,12 +171,12 @@ public class utils {
             if ("0x1".equalsIgnoreCase(enable) || "1".equals(enable)) {
                 String server = readRegistry(hive, path, "ProxyServer");
                 if (server != null && !server.isEmpty()) {
-                    System.out.println("Detected system proxy from Registry: " + server);
+                    LOG.info("Detected system proxy from Registry", "proxy", server);
                     return parseProxy(server);
                 }
             }
         } catch (IOException e) {
-            System.err.println("Read Registry Failed: " + e.getMessage());
+            LOG.warn("Read Registry Failed", "error", e.getMessage());
         }
 
         return Proxy.NO_PROXY;
@@ -271,9 +221,19 @@ public class utils {
     }
 
     public static String GetToken(String longTermToken) {
+        long start = System.nanoTime();
+        String token = requestToken(longTermToken);
+        String result = token != null ? "success" : "failure";
+        Metrics.counter("copilot_token_refresh_total", "Temporary token requests by result", "result", result).inc();
+        Metrics.histogram("copilot_token_refresh_seconds", "Temporary token request time", Metrics.LATENCY_BUCKETS,
+                "result", result).observeSince(start);
+        return token;
+    }
+
+    private static String requestToken(String longTermToken) {
         try {
             Request request = new Request.Builder()
-                    .url("https://api.github.com/copilot_internal/v2/token")
+                    .url(COPILOT_TOKEN_URL)
                     .addHeader("Connection", "keep-alive")
                     .addHeader("authorization", "Bearer " + longTermToken)
                     .addHeader("sec-ch-ua-platform", "\"Windows\"")
@@ -290,17 +250,17 @@ public class utils {
                     .get()
                     .build();
 
-            try (Response response = client.newCall(request).execute()) {
+            try (Response response = getOkHttpClient().newCall(request).execute()) {
                 if (response.isSuccessful() && response.body() != null) {
                     String responseBody = decompressResponse(response);
 
                     if (responseBody == null || responseBody.isEmpty()) {
-                        System.out.println("Empty response body");
+                        LOG.warn("Empty token response body");
                         return null;
                     }
 
                     if (!responseBody.startsWith("{")) {
-                        System.out.println("Response is not JSON format: " + responseBody);
+                        LOG.warn("Token response is not JSON", "body", responseBody);
                         return null;
                     }
 
@@ -308,29 +268,28 @@ public class utils {
 
                     if (jsonObject.has("token")) {
                         String token = jsonObject.getString("token");
-                        System.out.println("\nNew Token:\n " + token);
+                        LOG.info("New temp token", "exp", extractTimestamp(token));
 
                         if (jsonObject.has("endpoints")) {
                             JSONObject endpoints = jsonObject.getJSONObject("endpoints");
                             CompletionHandler.setCopilotChatCompletionsUrl(endpoints.getString("api") + "/chat/completions");
+                            AccountPool.setEndpoint(longTermToken, endpoints.getString("api"));
                         }
                         return token;
                     } else {
-                        System.out.println("\"token\" field not found in the response.");
+                        LOG.warn("\"token\" field not found in the response");
                     }
                 } else {
                     String errorResponse = null;
                     if (response.body() != null) {
                         errorResponse = decompressResponse(response);
                     }
-                    System.out.println("Request failed, status code: " + response.code());
-                    System.out.println("Response body: " + errorResponse);
+                    LOG.warn("Token request failed", "status", response.code(), "body", errorResponse);
                 }
             }
             return null;
         } catch (Exception e) {
-            System.out.println("Cannot get token: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("Cannot get token", "error", e.getMessage(), e);
             return null;
         }
     }
@@ -357,11 +316,11 @@ public class utils {
                         break;
 
                     default:
-                        System.err.println("Unknown compression format: " + contentEncoding);
+                        LOG.warn("Unknown compression format", "encoding", contentEncoding);
                         break;
                 }
             } else {
-                System.out.println("No Content-Encoding header, assuming uncompressed");
+                LOG.debug("No Content-Encoding header, assuming uncompressed");
             }
 
             // 读取解压后的内容
@@ -387,27 +346,9 @@ public class utils {
     }
 
     public static String getValidTempToken(String longTermToken) throws IOException {
-        tokenLock.lock();
-        try {
-            String tempToken = tokenManager.getTempToken(longTermToken);
-            System.out.println("\n\nLogin in as:" + tokenManager.getUsername(longTermToken));
-            if (isTokenExpired(tempToken)) {
-                String newTempToken = utils.GetToken(longTermToken);
-                if (newTempToken == null || newTempToken.isEmpty()) {
-                    throw new IOException("Unable to generate a new temporary token.");
-                }
-                int newExpiry = extractTimestamp(newTempToken);
-                boolean updated = tokenManager.updateTempToken(longTermToken, newTempToken, newExpiry);
-                if (!updated) {
-                    throw new IOException("Unable to update temporary token.");
-                }
-                return newTempToken;
-            } else {
-                return tempToken;
-            }
-        } finally {
-            tokenLock.unlock();
-        }
+        String tempToken = TempTokenCache.get(longTermToken);
+        LOG.debug("Login in as", "user", TempTokenCache.getUsername(longTermToken));
+        return tempToken;
     }
 
     public static void sendError(HttpExchange exchange, String message, int HTTP_code) {
@@ -421,48 +362,125 @@ public class utils {
                 os.write(bytes);
             }
         } catch (IOException e) {
-            System.out.println("headers already sent");
+            LOG.debug("Error response not sent, headers already sent", "status", HTTP_code);
         }
     }
 
+    /**
+     * 临时 token 的 exp。请求路径上请直接使用获取 token 时解析好的 {@link CopilotToken}
+     */
     public static int extractTimestamp(String input) {
-        String[] splitArray = input.split(";");
-        for (String part : splitArray) {
-            if (part.startsWith("exp=")) {
-                return Integer.parseInt(part.substring(4));
+        return (int) CopilotToken.parse(input).exp();
+    }
+
+    public static boolean isTokenExpired(String token) {
+        return CopilotToken.parse(token).isExpired();
+    }
+
+    /**
+     * 注册一个新的长期 token：获取临时 token、查询 GitHub 用户名（与前者并行）、写入 tokens.db 并加入账号池。
+     * 同一 token 的并发注册只执行一次，其余调用者等待同一个结果。
+     */
+    private static void registerAccount(String longTermToken) throws IOException {
+        CompletableFuture<Void> mine = new CompletableFuture<>();
+        CompletableFuture<Void> existing = REGISTERING.putIfAbsent(longTermToken, mine);
+        if (existing != null) {
+            try {
+                existing.get();
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for account registration", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        try {
+            CompletableFuture<String> login = fetchGithubLogin(longTermToken);
+            String newTempToken = utils.GetToken(longTermToken);
+            if (newTempToken == null || newTempToken.isEmpty()) {
+                throw new IOException("Unable to generate a new temporary token.");
+            }
+            String username;
+            try {
+                username = login.get(USER_LOOKUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                username = "";
+            } catch (ExecutionException | TimeoutException e) {
+                username = "";
             }
+            CopilotToken parsed = CopilotToken.parse(newTempToken);
+            if (!tokenManager.addLongTermToken(longTermToken, newTempToken, parsed.exp(), username)) {
+                throw new IOException("Unable to add long-term token.");
+            }
+            TempTokenCache.register(longTermToken, parsed, username);
+            AccountPool.add(longTermToken);
+            Warmup.onRegistered(longTermToken, parsed);
+            mine.complete(null);
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            REGISTERING.remove(longTermToken, mine);
         }
-        return 0;
     }
 
-    public static boolean isTokenExpired(String token) {
-        int exp = extractTimestamp(token);
-        int currentEpoch = (int) Instant.now().getEpochSecond();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
-
-        LocalDateTime expirationTime = LocalDateTime.ofInstant(Instant.ofEpochSecond(exp), ZoneId.systemDefault());
-        String formattedExpiration = expirationTime.format(formatter);
-
-        LocalDateTime currentTime = LocalDateTime.ofInstant(Instant.ofEpochSecond(currentEpoch), ZoneId.systemDefault());
-        String formattedCurrent = currentTime.format(formatter);
-
-        int remainingSeconds = exp - currentEpoch;
-        int minutes = remainingSeconds / 60;
-        int seconds = remainingSeconds % 60;
-
-        System.out.println("\n   Current epoch: " + currentEpoch);
-        System.out.println("Expiration epoch: " + exp);
-        System.out.println("  Current  time: " + formattedCurrent);
-        System.out.println("Expiration time: " + formattedExpiration);
-        System.out.println("Remaining: " + minutes + " minutes " + seconds + " seconds");
-        return exp < currentEpoch;
+    /**
+     * 异步查询 token 对应的 GitHub 用户名（在 OkHttp 的 Dispatcher 线程上执行），失败时结果为空字符串
+     */
+    private static CompletableFuture<String> fetchGithubLogin(String longTermToken) {
+        CompletableFuture<String> login = new CompletableFuture<>();
+        Request request = new Request.Builder()
+                .url(GITHUB_USER_URL)
+                .addHeader("Authorization", "Bearer " + longTermToken)
+                .addHeader("Accept", "application/vnd.github+json")
+                .addHeader("Editor-Version", HeadersInfo.editor_version)
+                .addHeader("user-agent", HeadersInfo.user_agent)
+                .addHeader("x-github-api-version", "2022-11-28")
+                .addHeader("Sec-Fetch-Site", "none")
+                .addHeader("Sec-Fetch-Mode", "no-cors")
+                .addHeader("Sec-Fetch-Dest", "empty")
+                .get()
+                .build();
+        getOkHttpClient().newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                LOG.warn("GitHub user request failed", "error", e.getMessage());
+                login.complete("");
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (response) {
+                    String responseBody = response.body() != null ? response.body().string() : null;
+                    if (!response.isSuccessful()) {
+                        LOG.warn("GitHub user request failed", "status", response.code(), "body", responseBody);
+                        login.complete("");
+                        return;
+                    }
+                    JSONObject jsonObject = responseBody != null ? new JSONObject(responseBody) : null;
+                    String name = jsonObject != null ? jsonObject.optString("login", "") : "";
+                    if (!name.isEmpty()) LOG.info("GitHub login", "user", name);
+                    login.complete(name);
+                } catch (Exception e) {
+                    LOG.warn("GitHub user request failed", "error", e.getMessage());
+                    login.complete("");
+                }
+            }
+        });
+        return login;
     }
 
     public static String getToken(String authorizationHeader, HttpExchange exchange) {
         String longTermToken;
         if (authorizationHeader == null || !authorizationHeader.startsWith("Bearer ")) {
-            longTermToken = tokenManager.getRandomLongTermToken();
-            System.out.println("Using random long-term token: " + longTermToken);
+            AccountPool.Account account = AccountPool.select();
+            if (account == null) {
+                sendError(exchange, "No account available.", 503);
+                return null;
+            }
+            longTermToken = account.token();
         } else {
             longTermToken = authorizationHeader.substring("Bearer ".length()).trim();
             if (longTermToken.isEmpty()) {
@@ -471,59 +489,11 @@ public class utils {
             }
 
 
-            if (!tokenManager.isLongTermTokenExists(longTermToken)) {
-                AtomicReference<String> login= new AtomicReference<>("");
-                CompletableFuture.runAsync(() -> {
-                    try {
-                        Request request = new Request.Builder()
-                                .url("https://api.github.com/user")
-                                .addHeader("Authorization", "Bearer " + longTermToken)
-                                .addHeader("Accept", "application/vnd.github+json")
-                                .addHeader("Editor-Version", HeadersInfo.editor_version)
-                                .addHeader("user-agent", HeadersInfo.user_agent)
-                                .addHeader("x-github-api-version", "2022-11-28")
-                                .addHeader("Sec-Fetch-Site", "none")
-                                .addHeader("Sec-Fetch-Mode", "no-cors")
-                                .addHeader("Sec-Fetch-Dest", "empty")
-                                .get()
-                                .build();
-
-
-                        Response response = client.newCall(request).execute();
-                        if (response.isSuccessful()) {
-                            String responseBody = null;
-                            if (response.body() != null) {
-                                responseBody = response.body().string();
-                            }
-                            JSONObject jsonObject = null;
-                            if (responseBody != null) {
-                                jsonObject = new JSONObject(responseBody);
-                            }
-                            if (jsonObject != null && jsonObject.has("login")) {
-                                login.set(jsonObject.getString("login"));
-                                System.out.println("\nlogin as: " + login);
-                            }
-                        } else {
-                            String errorResponse = null;
-                            if (response.body() != null) {
-                                errorResponse = response.body().string();
-                            }
-                            System.out.println("Request failed, status code: " + response.code());
-                            System.out.println("Response body: " + errorResponse);
-                        }
-                    } catch (IOException ioException) {
-                        ioException.printStackTrace();
-                    }
-                }, Executors.newSingleThreadScheduledExecutor());
-                String newTempToken = utils.GetToken(longTermToken);
-                if (newTempToken == null || newTempToken.isEmpty()) {
-                    sendError(exchange, "Unable to generate a new temporary token.", 500);
-                    return null;
-                }
-                int tempTokenExpiry = utils.extractTimestamp(newTempToken);
-                boolean added = tokenManager.addLongTermToken(longTermToken, newTempToken, tempTokenExpiry, String.valueOf(login));
-                if (!added) {
-                    sendError(exchange, "Unable to add long-term token.", 500);
+            if (!TempTokenCache.contains(longTermToken) && !tokenManager.isLongTermTokenExists(longTermToken)) {
+                try {
+                    registerAccount(longTermToken);
+                } catch (IOException e) {
+                    sendError(exchange, e.getMessage(), 500);
                     return null;
                 }
             }
@@ -547,26 +517,33 @@ public class utils {
     /**
      * 使用 OkHttp 发起 POST 请求并返回 Response
      */
-    public static Response executeOkHttpRequest(Map<String, String> headers, JSONObject jsonBody, String url) throws IOException {
+    public static Response executeOkHttpRequest(Headers headers, JSONObject jsonBody, String url) throws IOException {
         // 构造 RequestBody
         RequestBody body = RequestBody.create(
                 jsonBody.toString(),
                 MediaType.parse("application/json; charset=utf-8")
         );
+        return executeOkHttpRequest(headers, body, url);
+    }
 
-        // 构造请求
-        Request.Builder requestBuilder = new Request.Builder()
-                .url(url)
-                .post(body);
-
-        // 设置请求头
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            requestBuilder.addHeader(entry.getKey(), entry.getValue());
-        }
-
-        Request request = requestBuilder.build();
-
+    /**
+     * 使用已构造好的 RequestBody 发起 POST 请求（例如 {@link StreamingRequest#toRequestBody()}）
+     */
+    public static Response executeOkHttpRequest(Headers headers, RequestBody body, String url) throws IOException {
         // 发送请求并返回响应
-        return utils.getOkHttpClient().newCall(request).execute();
+        return newOkHttpCall(headers, body, url).execute();
+    }
+
+    /**
+     * 构造但不执行 POST 请求，调用方需要在别的线程取消它时使用（见 {@link UpstreamRetry.Call#cancel()}）
+     */
+    public static Call newOkHttpCall(Headers headers, RequestBody body, String url) {
+        // 构造请求，请求头见 HeadersInfo#getCopilotHeaders
+        Request request = new Request.Builder()
+                .url(url)
+                .headers(headers)
+                .post(body)
+                .build();
+        return getOkHttpClient().newCall(request);
     }
 }